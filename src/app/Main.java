@@ -1,14 +1,26 @@
 package app;
 
+import app.com.HandlerPool;
+import app.config.ConfigHistory;
+import app.config.DumpReport;
+import app.config.MappingIndex;
 import app.config.TweakerConfig;
 import app.ui.EditorPane;
+import app.ui.MidiLearn;
 import app.ui.TweakerModel;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
+import javafx.scene.control.Alert;
 import javafx.scene.control.Button;
+import javafx.scene.control.ToggleButton;
+import javafx.scene.input.KeyCode;
+import javafx.scene.input.KeyCodeCombination;
+import javafx.scene.input.KeyCombination;
 import javafx.scene.layout.GridPane;
 import javafx.scene.layout.HBox;
+import javafx.scene.layout.Region;
 import javafx.scene.layout.VBox;
 import javafx.scene.text.Font;
 import javafx.scene.text.FontWeight;
@@ -17,12 +29,21 @@ import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 
 import java.io.File;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 
 public class Main extends Application {
 
 
     // This is the data model, where the whole configuration of the tweaker is saved
     TweakerConfig tweakerConfig;
+    // Dump buttons, which change while a dump is running, and the dump in progress (if any)
+    Button dumpConfigButton;
+    Button dumpChangesButton;
+    CompletableFuture<DumpReport> runningDump;
+    // Undo and redo of the edits
+    ConfigHistory history;
 
     public void saveToFile() {
 
@@ -56,7 +77,64 @@ public class Main extends Application {
             tweakerConfig.loadFromFile(file);
         } catch (Exception e) {
             System.out.println("Exception in loadFromFile: " + e.getMessage());
+            return;
         }
+
+        // Presets made elsewhere may have several controls sending the same message
+        List<MappingIndex.Conflict> conflicts = tweakerConfig.mappingConflicts();
+        if (conflicts.isEmpty()) return;
+        StringBuilder sb = new StringBuilder("Some controls send the same message:\n");
+        for (MappingIndex.Conflict c : conflicts) sb.append(c).append("\n");
+        Alert a = new Alert(Alert.AlertType.WARNING, sb.toString());
+        a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
+        a.show();
+    }
+
+    // Starts a dump in the background, or cancels the one that is running. The progress is shown in
+    // the dump helper text, and only failures are reported with an alert
+    public void dump(boolean onlyChanges) {
+
+        if (runningDump != null) {
+            runningDump.cancel(true);
+            return;
+        }
+
+        runningDump = tweakerConfig.dumpAsync(onlyChanges);
+        dumpConfigButton.setText("Cancel dump");
+        dumpChangesButton.setDisable(true);
+        runningDump.whenComplete((report, e) -> Platform.runLater(() -> {
+            runningDump = null;
+            dumpConfigButton.setText("Dump configuration");
+            dumpChangesButton.setDisable(false);
+            Throwable cause = TweakerConfig.causeOf(e);
+            if (cause == null || cause instanceof CancellationException) return;
+            Alert a = new Alert(Alert.AlertType.ERROR, "The configuration could not be dumped (" + cause.getMessage() + ").");
+            a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
+            a.show();
+        }));
+    }
+
+    public void dumpToAll() {
+
+        // Runs in the background; the report is shown when every device has finished
+        tweakerConfig.dumpToAll().whenComplete((results, e) -> Platform.runLater(() -> {
+            Alert a;
+            if (e != null) {
+                a = new Alert(Alert.AlertType.ERROR, "Could not dump to the devices (" + e.getMessage() + ").");
+            } else if (results.isEmpty()) {
+                a = new Alert(Alert.AlertType.WARNING, "No Tweaker could be opened.");
+            } else {
+                StringBuilder sb = new StringBuilder();
+                boolean ok = true;
+                for (HandlerPool.Result r : results) {
+                    sb.append(r).append("\n");
+                    ok &= r.isSuccess();
+                }
+                a = new Alert(ok ? Alert.AlertType.INFORMATION : Alert.AlertType.ERROR, sb.toString());
+            }
+            a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
+            a.show();
+        }));
     }
 
     @Override
@@ -70,14 +148,26 @@ public class Main extends Application {
         // Then, the saving and dumping buttons
         Button saveToFileButton = new Button("Save configuration to file");
         Button loadFromFileButton = new Button("Load configuration from file");
-        Button dumpConfigButton = new Button("Dump configuration");
+        dumpConfigButton = new Button("Dump configuration");
+        dumpChangesButton = new Button("Dump changes only");
+        Button dumpToAllButton = new Button("Dump to all connected Tweakers");
+        ToggleButton learnButton = new ToggleButton("MIDI learn");
         // Set the button styles
         saveToFileButton.setMinSize(240, 32);
         loadFromFileButton.setMinSize(240, 32);
         dumpConfigButton.setMinSize(240, 32);
+        dumpChangesButton.setMinSize(240, 32);
+        dumpToAllButton.setMinSize(240, 32);
+        learnButton.setMinSize(240, 32);
         // Dump helper text
         Text changesText = new Text("Never dumped.");
         changesText.setFont(Font.font(null, FontWeight.NORMAL, 14));
+        // Mapping conflicts, kept up to date as the mappings change
+        Text conflictsText = new Text("");
+        conflictsText.setFont(Font.font(null, FontWeight.NORMAL, 14));
+        // MIDI learn helper text
+        Text learnText = new Text("");
+        learnText.setFont(Font.font(null, FontWeight.NORMAL, 14));
 
 
         // Store all these buttons and text in a grid pane
@@ -86,6 +176,11 @@ public class Main extends Application {
         saveButtons.add(loadFromFileButton, 1, 0);
         saveButtons.add(dumpConfigButton, 0, 1);
         saveButtons.add(changesText, 1, 1);
+        saveButtons.add(dumpChangesButton, 0, 2);
+        saveButtons.add(dumpToAllButton, 1, 2);
+        saveButtons.add(conflictsText, 0, 3, 2, 1);
+        saveButtons.add(learnButton, 0, 4);
+        saveButtons.add(learnText, 1, 4);
         // Set the style
         saveButtons.setAlignment(Pos.CENTER);
         saveButtons.setHgap(12);
@@ -101,13 +196,57 @@ public class Main extends Application {
         // Create the configuration and set the handlers
         tweakerConfig = new TweakerConfig();
         tweakerConfig.changeTextSet(changesText);
+        // The helper text follows the dump while it runs; the config sets the final status
+        tweakerConfig.dumpStatusProperty().addListener((obs, old, status) -> {
+            if (!status.isEmpty()) changesText.setText(status);
+        });
+        tweakerConfig.addChangeListener(change -> {
+            if (!change.isMappingChanged()) return;
+            int n = tweakerConfig.getMappingIndex().getConflictCount();
+            conflictsText.setText(n == 0 ? "" : "\u26A0 " + n + (n == 1 ? " message is" : " messages are")
+                    + " sent by more than one control. \u26A0");
+        });
         saveToFileButton.setOnMouseClicked(mouseEvent -> {saveToFile();});
         loadFromFileButton.setOnMouseClicked(mouseEvent -> {loadFromFile();});
-        dumpConfigButton.setOnMouseClicked(mouseEvent -> {tweakerConfig.dump();});
+        dumpConfigButton.setOnMouseClicked(mouseEvent -> {dump(false);});
+        dumpChangesButton.setOnMouseClicked(mouseEvent -> {dump(true);});
+        dumpToAllButton.setOnMouseClicked(mouseEvent -> {dumpToAll();});
         // Left part of the screen (left pane)
         EditorPane editorPane = new EditorPane(tweakerConfig);
         // Set the handlers
         tweakerModel.setHandlers(tweakerConfig, editorPane);
+        // Flash the controls played on the device
+        tweakerModel.startHighlighting(tweakerConfig.getHandler().getInput(), tweakerConfig.getMappingIndex());
+        // MIDI learn: the selected control takes the next message played, then the next control of its
+        // section is selected, until the end of the section
+        MidiLearn learn = new MidiLearn(tweakerConfig, tweakerConfig.getHandler().getInput(), next -> {
+            if (next < 0) {
+                learnButton.setSelected(false);
+                learnText.setText("Learning done.");
+            } else {
+                tweakerModel.selectOwner(next);
+            }
+        });
+        learnButton.selectedProperty().addListener((obs, old, selected) -> {
+            if (!selected) {
+                learn.stop();
+                return;
+            }
+            int owner = tweakerModel.getSelectedOwner();
+            if (owner < 0) {
+                learnButton.setSelected(false);
+                learnText.setText("Select a control first.");
+                return;
+            }
+            learn.start(owner);
+            learnText.setText("Play " + MappingIndex.nameOf(owner) + "...");
+        });
+        // Clicking another control while learning makes it the target
+        tweakerModel.selectedOwnerProperty().addListener((obs, old, owner) -> {
+            if (!learn.isLearning() || owner.intValue() < 0) return;
+            learn.start(owner.intValue());
+            learnText.setText("Play " + MappingIndex.nameOf(owner.intValue()) + "...");
+        });
 
 
         // TODO Add other things, like status bars
@@ -117,6 +256,14 @@ public class Main extends Application {
 
         //Creating a scene object
         Scene scene = new Scene(root, 1200, 700);
+        // Undo and redo. All the edits made before a pulse (e.g. everything a propagation button did)
+        // become one step
+        history = new ConfigHistory(tweakerConfig);
+        scene.addPostLayoutPulseListener(history::checkpoint);
+        // The editor pane follows the changes by itself
+        scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN), history::undo);
+        scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Y, KeyCombination.SHORTCUT_DOWN), history::redo);
+        scene.getAccelerators().put(new KeyCodeCombination(KeyCode.Z, KeyCombination.SHORTCUT_DOWN, KeyCombination.SHIFT_DOWN), history::redo);
         //Setting title to the Stage
         stage.setTitle("Tweaker Editor");
         //Adding scene to the stage
@@ -0,0 +1,93 @@
+package app.bench;
+
+import java.lang.management.ManagementFactory;
+
+
+// Minimal micro-benchmark runner. Every benchmark is warmed up (so the JIT has compiled it), then run
+// for a number of rounds of fixed duration. For each one it reports the time per operation (mean and
+// the best and worst round) and the bytes allocated per operation by the calling thread.
+//
+// Settings, as system properties:
+//  - bench.warmup: warm-up time in milliseconds (default 1000)
+//  - bench.rounds: number of measured rounds (default 5)
+//  - bench.round: duration of every round in milliseconds (default 500)
+//  - bench.filter: only run the benchmarks whose name contains this text
+final class Bench {
+
+    // A benchmarked operation. Its result is consumed, so the JIT can not remove the work
+    interface Op {
+        long run() throws Exception;
+    }
+
+    private static final long WARMUP_NANOS = Long.getLong("bench.warmup", 1000) * 1_000_000;
+    private static final int ROUNDS = Integer.getInteger("bench.rounds", 5);
+    private static final long ROUND_NANOS = Long.getLong("bench.round", 500) * 1_000_000;
+    private static final String FILTER = System.getProperty("bench.filter", "");
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    // Results end up here
+    private static volatile long sink;
+
+
+    private Bench() {
+    }
+
+
+    static void header() {
+        System.out.printf("%-40s %14s %14s %14s %12s%n", "Benchmark", "ns/op", "best", "worst", "B/op");
+    }
+
+    static void run(String name, Op op) throws Exception {
+        if (!name.contains(FILTER)) return;
+
+        // Warm up, and find how many operations take about a millisecond, so the clock is not read
+        // after every operation
+        int batch = 1;
+        long end = System.nanoTime() + WARMUP_NANOS;
+        while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            runBatch(op, batch);
+            if (System.nanoTime() - start < 1_000_000 && batch < (1 << 24)) batch *= 2;
+        }
+
+        double best = Double.MAX_VALUE;
+        double worst = 0;
+        long totalOps = 0;
+        long totalNanos = 0;
+        long thread = Thread.currentThread().getId();
+        long allocatedBefore = threads.getThreadAllocatedBytes(thread);
+
+        for (int r = 0; r < ROUNDS; r++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long now = start;
+            while (now - start < ROUND_NANOS) {
+                runBatch(op, batch);
+                ops += batch;
+                now = System.nanoTime();
+            }
+            double perOp = (double) (now - start) / ops;
+            best = Math.min(best, perOp);
+            worst = Math.max(worst, perOp);
+            totalOps += ops;
+            totalNanos += now - start;
+        }
+
+        long allocated = threads.getThreadAllocatedBytes(thread) - allocatedBefore;
+        System.out.printf("%-40s %14.1f %14.1f %14.1f %12.1f%n", name, (double) totalNanos / totalOps,
+                best, worst, (double) allocated / totalOps);
+    }
+
+    // Bytes allocated so far by the calling thread
+    static long allocatedBytes() {
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void runBatch(Op op, int batch) throws Exception {
+        long s = 0;
+        for (int i = 0; i < batch; i++) s += op.run();
+        sink += s;
+    }
+}
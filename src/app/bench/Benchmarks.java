@@ -0,0 +1,637 @@
+package app.bench;
+
+import app.com.DeviceRegistry;
+import app.com.DumpVerifier;
+import app.com.HandlerPool;
+import app.com.RawMidiReceiver;
+import app.com.RunningStatusEncoder;
+import app.com.SysExCodec;
+import app.com.TweakerHandler;
+import app.com.VirtualTweaker;
+import app.config.ConfigChange;
+import app.config.ConfigHistory;
+import app.config.ConfigSnapshot;
+import app.config.MappingIndex;
+import app.config.TweakerConfig;
+import app.log.Log;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+// Benchmarks of the configuration and MIDI paths. Runs headless, against a VirtualTweaker (or a
+// receiver that drops everything) instead of the hardware:
+//
+//   java -cp <classes, gson, javafx> app.bench.Benchmarks
+//
+// See Bench for the settings. Allocations are those of the thread running the benchmark; for the dump
+// benchmarks that is the composing side, the sender thread is not included.
+public class Benchmarks {
+
+    // Receiver that only drops the messages, to measure the pipeline without any device work
+    private static class NullReceiver implements Receiver {
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+
+    public static void main(String[] args) throws Exception {
+
+        // Logging would only measure the console
+        Log.setLevel(Log.WARN);
+
+        // Configurations connected to an emulated device and to nothing. No pacing, so the wire rate
+        // does not hide the cost of the code
+        VirtualTweaker virtual = new VirtualTweaker();
+        TweakerHandler virtualHandler = handler(virtual);
+        TweakerConfig config = new TweakerConfig(virtualHandler);
+        TweakerHandler nullHandler = handler(new NullReceiver());
+
+        File file = File.createTempFile("tweaker-bench", ".twp");
+        file.deleteOnExit();
+        config.saveToFile(file);
+
+        Bench.header();
+
+        // -+- Files -+-
+        Bench.run("config.saveToFile", () -> {
+            config.saveToFile(file);
+            return file.length();
+        });
+        Bench.run("config.loadFromFile", () -> {
+            config.loadFromFile(file);
+            return 0;
+        });
+
+        // -+- Packed form -+-
+        // A copy of the whole configuration, and loading it back when nothing differs
+        byte[] packed = config.toPackedBytes();
+        checkPackedValidation(config);
+        Bench.run("config.toPackedBytes", () -> config.toPackedBytes().length);
+        Bench.run("config.loadPacked(same)", () -> {
+            config.loadPacked(packed);
+            return 0;
+        });
+        Bench.run("config.packedHashCode", config::packedHashCode);
+        checkConcurrentReads();
+
+        // -+- Undo history -+-
+        checkHistory();
+        // An edit to one button and its step, then undoing and redoing it
+        ConfigHistory history = new ConfigHistory(config);
+        int[] edit = {0};
+        Bench.run("history.checkpoint(one edit)", () -> {
+            config.butSetMapping(5, (byte) (edit[0]++ & 127));
+            history.checkpoint();
+            return history.size();
+        });
+        Bench.run("history.undo+redo", () -> {
+            history.undo();
+            history.redo();
+            return history.getCursor();
+        });
+        System.out.printf("history: %d steps in %d bytes (budget %d)%n",
+                history.size(), history.getMemoryBytes(), history.getBudgetBytes());
+
+        // -+- Dump -+-
+        int[] note = {0};
+        Bench.run("config.dumpTo(virtual)", () -> {
+            config.dumpTo(virtualHandler).join();
+            return virtual.getMessages();
+        });
+        Bench.run("config.dumpTo(null receiver)", () -> {
+            config.dumpTo(nullHandler).join();
+            return 0;
+        });
+
+        // Verified dump: the emulator echoes every message back through the input ring
+        VirtualTweaker echoing = new VirtualTweaker();
+        echoing.setEcho(true);
+        TweakerHandler echoHandler = new TweakerHandler(new DeviceRegistry());
+        echoHandler.getScheduler().setEnabled(false);
+        echoHandler.attach(echoing, echoing);
+        config.getVerifier().setMatcher(DumpVerifier.ECHO);
+        Bench.run("config.dumpVerified(virtual, echo)", () -> {
+            if (!config.dumpVerified(echoHandler).isVerified()) throw new IllegalStateException("Dump not verified");
+            return 0;
+        });
+
+        // Raw byte output with running status, to a stream that drops everything
+        checkRunningStatus(config);
+        checkPool(config);
+        TweakerHandler rawHandler = new TweakerHandler(new DeviceRegistry());
+        rawHandler.getScheduler().setEnabled(false);
+        rawHandler.attachRaw(OutputStream.nullOutputStream(), null);
+        Bench.run("config.dumpTo(raw, running status)", () -> {
+            config.dumpTo(rawHandler).join();
+            return 0;
+        });
+
+        // A change invalidates one section of the dump plan, which is compiled again on the next dump
+        char[] colors = {'r', 'g'};
+        Bench.run("config.dumpTo(null) after a change", () -> {
+            note[0] ^= 1;
+            config.butLedSetColor(7, colors[note[0]]);
+            config.dumpTo(nullHandler).join();
+            return 0;
+        });
+
+        // Queuing notes allocates nothing (checked first). Here they are queued as fast as possible, so
+        // the ring fills up and waiting for room is all that B/op shows
+        checkSendAllocation();
+        Bench.run("handler.sendNote", () -> {
+            note[0] = (note[0] + 1) & 127;
+            nullHandler.sendNote(1, note[0], 16);
+            return note[0];
+        });
+
+        // Reading the metrics must stay cheap enough to poll from the UI
+        Bench.run("metrics.snapshot", () -> virtualHandler.getMetrics().snapshot().getMessages());
+        System.out.println("virtual handler: " + virtualHandler.getMetrics().snapshot());
+
+        // -+- SysEx codec -+-
+        // One op is one block, so blocks per second = 1e9 / (ns/op)
+        checkCodec();
+        byte[] block = new byte[SysExCodec.MAX_LENGTH];
+        Bench.run("SysExCodec.cnot", () -> {
+            note[0] = (note[0] + 1) & 15;
+            return SysExCodec.cnot(note[0] + 1, (note[0] & 1) == 0);
+        });
+        Bench.run("SysExCodec.encode(buttons)", () -> {
+            int length = SysExCodec.begin(SysExCodec.BUTTONS, block, 0);
+            for (int i = 0; i < 50; i++) SysExCodec.put(block, 0, i, (i & 15) + 1, (i & 1) == 0, i);
+            return length;
+        });
+        Bench.run("SysExCodec.decode(buttons)", () -> {
+            int length = SysExCodec.length(SysExCodec.BUTTONS);
+            long sum = SysExCodec.blockOf(block, 0, length);
+            for (int i = 0; i < 50; i++) {
+                sum += SysExCodec.channel(block, 0, i) + SysExCodec.mapping(block, 0, i);
+                if (SysExCodec.outputType(block, 0, i)) sum++;
+            }
+            return sum;
+        });
+
+        // -+- Mapping conflicts -+-
+        checkMappingIndex();
+        int[] mapping = {0};
+        Bench.run("config.butSetMapping(indexed)", () -> {
+            config.butSetMapping(7, (byte) (mapping[0]++ & 127));
+            return config.getMappingIndex().getConflictCount();
+        });
+        Bench.run("config.mappingConflicts", () -> config.mappingConflicts().size());
+        // What the model does for every message the device sends
+        MappingIndex index = config.getMappingIndex();
+        int[] played = {0};
+        Bench.run("MappingIndex.ownerOf", () -> index.ownerOf(0x90, 63 + (played[0]++ & 7)));
+
+        // -+- Change notifications -+-
+        checkChanges();
+        // A propagation to every button, delivered as one change
+        int[] delivered = {0};
+        config.addChangeListener(change -> delivered[0] += change.size());
+        Bench.run("config.butPropAll+flushChanges", () -> {
+            config.butSetMapping(3, (byte) (mapping[0]++ & 127));
+            config.butPropAll(3, false);
+            config.flushChanges();
+            return delivered[0];
+        });
+
+        // -+- Propagators -+-
+        Bench.run("config.butPropAll", () -> {
+            config.butPropAll(3, false);
+            return 0;
+        });
+        Bench.run("config.butPropGrid", () -> {
+            config.butPropGrid(3, false);
+            return 0;
+        });
+        Bench.run("config.butPropColumn", () -> {
+            config.butPropColumn(9, false);
+            return 0;
+        });
+        Bench.run("config.butPropRow", () -> {
+            config.butPropRow(9, false);
+            return 0;
+        });
+        Bench.run("config.encPropAll", () -> {
+            config.encPropAll(1, false);
+            return 0;
+        });
+        Bench.run("config.encPropRow", () -> {
+            config.encPropRow(1, false);
+            return 0;
+        });
+        Bench.run("config.encPropColumn", () -> {
+            config.encPropColumn(1, false);
+            return 0;
+        });
+        Bench.run("config.padPropAll", () -> {
+            config.padPropAll(2, false);
+            return 0;
+        });
+        Bench.run("config.potPropAll", () -> {
+            config.potPropAll(2, false);
+            return 0;
+        });
+
+        virtualHandler.close();
+        nullHandler.close();
+        echoHandler.close();
+    }
+
+    // Info of a listed device, so two of them can describe identical units
+    private static class UnitInfo extends MidiDevice.Info {
+        UnitInfo() {
+            super("Tweaker", "Electrix", "External MIDI Port", "1.0");
+        }
+    }
+
+    // A pool over identical units must dump to every one of them once, even when the editor's handler
+    // is connected to one: it only stands in for its own unit
+    private static void checkPool(TweakerConfig config) throws Exception {
+        VirtualTweaker reference = new VirtualTweaker();
+        config.dumpTo(handler(reference)).join();
+
+        MidiDevice.Info[] infos = {new UnitInfo(), new UnitInfo()};
+        VirtualTweaker[] units = {new VirtualTweaker(), new VirtualTweaker()};
+        TweakerHandler shared = handler(units[0], infos[0]);
+        HandlerPool pool = HandlerPool.openAll(Arrays.asList(infos), shared, info -> {
+            if (info != infos[1]) throw new IllegalStateException("Shared unit opened again");
+            return handler(units[1], info);
+        });
+        if (pool.size() != 2 || pool.getHandlers().get(0) != shared || pool.getHandlers().get(1) == shared)
+            throw new IllegalStateException("Pool over identical units: " + pool.getHandlers());
+        for (HandlerPool.Result r : config.dumpToAll(pool).join()) {
+            if (!r.isSuccess()) throw new IllegalStateException("Pool dump failed: " + r);
+        }
+        pool.close();
+        shared.close();
+        for (VirtualTweaker unit : units) {
+            if (unit.getMessages() != reference.getMessages())
+                throw new IllegalStateException("A unit got " + unit.getMessages() + " messages instead of one dump (" + reference.getMessages() + ")");
+        }
+    }
+
+    // Receiver that holds the sender inside send() on note 0 until it is released, so the sender is
+    // out of the queue lock while the caller fills the ring
+    private static class GatedReceiver implements Receiver {
+        private final Semaphore entered = new Semaphore(0);
+        private final Semaphore released = new Semaphore(0);
+
+        @Override
+        public void send(MidiMessage message, long timeStamp) {
+            if (message instanceof ShortMessage sm && sm.getData1() == 0) {
+                entered.release();
+                released.acquireUninterruptibly();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Sending a note must not allocate anything when the caller does not have to wait: neither for
+    // room in the ring (every burst is half of it) nor for the lock (the sender is held in the receiver
+    // while the burst is queued). Waiting is the only allocation left, in the queue's lock and
+    // condition. Throws on a single byte
+    private static void checkSendAllocation() throws Exception {
+        GatedReceiver gate = new GatedReceiver();
+        TweakerHandler h = handler(gate);
+        int burst = h.getQueueCapacity() / 2;
+        int warmup = 2000;
+        long allocated = 0;
+        long messages = 0;
+        for (int round = 0; round < warmup + 2000; round++) {
+            // Taken by the sender, which stops in the receiver
+            h.sendNote(1, 0, 16);
+            gate.entered.acquire();
+            long before = Bench.allocatedBytes();
+            for (int i = 1; i < burst; i++) h.sendNote(1 + (i & 15), i & 127 | 1, 16);
+            long after = Bench.allocatedBytes();
+            gate.released.release();
+            h.flush().join();
+            if (round < warmup) continue;
+            allocated += after - before;
+            messages += burst - 1;
+        }
+        h.close();
+        if (allocated != 0) throw new IllegalStateException("sendNote allocated " + allocated + " bytes in " + messages + " messages");
+        System.out.printf("send allocation: 0 bytes in %d messages%n", messages);
+    }
+
+    // Encodes every block with every channel and output type and decodes it back. Throws if anything
+    // does not survive the round trip, so the throughput figures are only shown for a working codec
+    private static void checkCodec() {
+        byte[] buffer = new byte[SysExCodec.MAX_LENGTH];
+        for (int block = SysExCodec.BUTTONS; block <= SysExCodec.PADS; block++) {
+            int entries = SysExCodec.entries(block);
+            for (int channel = 1; channel <= 16; channel++) {
+                for (int type = 0; type < 2; type++) {
+                    int length = SysExCodec.begin(block, buffer, 0);
+                    for (int i = 0; i < entries; i++) SysExCodec.put(buffer, 0, i, channel, type == 0, (i * 7 + channel) & 127);
+
+                    if (SysExCodec.blockOf(buffer, 0, length) != block) {
+                        throw new IllegalStateException("Block " + block + " not recognised after encoding");
+                    }
+                    for (int i = 0; i < entries; i++) {
+                        if (SysExCodec.channel(buffer, 0, i) != channel || SysExCodec.outputType(buffer, 0, i) != (type == 0)
+                                || SysExCodec.mapping(buffer, 0, i) != ((i * 7 + channel) & 127)) {
+                            throw new IllegalStateException("Block " + block + " entry " + i + " did not round trip");
+                        }
+                    }
+                }
+            }
+        }
+        // A truncated block must be rejected
+        int length = SysExCodec.begin(SysExCodec.PADS, buffer, 0);
+        if (SysExCodec.blockOf(buffer, 0, length - 1) != -1) throw new IllegalStateException("Truncated block accepted");
+    }
+
+    // A dump sent as raw bytes with running status must leave the emulator in the same state as one
+    // sent as messages, in fewer bytes
+    private static void checkRunningStatus(TweakerConfig config) throws Exception {
+        VirtualTweaker direct = new VirtualTweaker();
+        config.dumpTo(handler(direct)).join();
+
+        VirtualTweaker raw = new VirtualTweaker();
+        RawMidiReceiver receiver = new RawMidiReceiver(raw.rawInput());
+        config.dumpTo(handler(receiver)).join();
+
+        if (raw.getMessages() != direct.getMessages()) throw new IllegalStateException("Running status lost messages");
+        for (int ch = 1; ch <= 16; ch++) {
+            for (int i = 0; i < 128; i++) {
+                if (raw.getNote(ch, i) != direct.getNote(ch, i) || raw.getCC(ch, i) != direct.getCC(ch, i))
+                    throw new IllegalStateException("Running status changed channel " + ch + ", " + i);
+            }
+        }
+        for (int b = 1; b <= VirtualTweaker.BLOCKS; b++) {
+            for (int i = 0; i < direct.getBlockSize(b); i++) {
+                if (raw.getCnot(b, i) != direct.getCnot(b, i) || raw.getMapping(b, i) != direct.getMapping(b, i))
+                    throw new IllegalStateException("Running status changed block " + b);
+            }
+        }
+        // A message whose write failed is sent again by the sender, with its status byte: the device may
+        // not have got it
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        boolean[] fail = {false};
+        RawMidiReceiver failing = new RawMidiReceiver(new OutputStream() {
+            @Override
+            public void write(int b) {
+                written.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (fail[0]) {
+                    fail[0] = false;
+                    throw new IOException("Unplugged");
+                }
+                written.write(b, off, len);
+            }
+        });
+        failing.send(new ShortMessage(ShortMessage.NOTE_ON, 0, 60, 100), -1);
+        fail[0] = true;
+        ShortMessage retried = new ShortMessage(ShortMessage.NOTE_ON, 0, 61, 100);
+        try {
+            failing.send(retried, -1);
+        } catch (IllegalStateException expected) {
+            failing.send(retried, -1);
+        }
+        if (!Arrays.equals(written.toByteArray(), new byte[]{(byte) 0x90, 60, 100, (byte) 0x90, 61, 100}))
+            throw new IllegalStateException("Message sent again without its status: " + Arrays.toString(written.toByteArray()));
+
+        RunningStatusEncoder e = receiver.getEncoder();
+        System.out.printf("running status: %d of %d bytes (%.0f%% saved)%n",
+                e.getOutputBytes(), e.getInputBytes(), e.getSavings() * 100);
+    }
+
+    // The index kept up to date edit after edit must match one built from scratch, and find the
+    // conflicts
+    private static void checkMappingIndex() {
+        TweakerConfig config = new TweakerConfig(handler(new NullReceiver()));
+        if (config.getMappingIndex().getConflictCount() != 0) throw new IllegalStateException("Conflicts in the defaults");
+
+        config.butSetMapping(2, (byte) 63);
+        config.padSetHitMapping(0, (byte) 63);
+        if (config.getMappingIndex().ownerCount(MappingIndex.NOTE, 1, 63) != 2 || config.getMappingIndex().getConflictCount() != 1)
+            throw new IllegalStateException("Button and pad on note 63 not found");
+        // A button sending CCs moves to the CC table
+        config.butSetOutputType(2, false);
+        if (config.getMappingIndex().getConflictCount() != 0) throw new IllegalStateException("Output type not followed");
+
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            int id = random.nextInt(50);
+            switch (random.nextInt(4)) {
+                case 0 -> config.butSetMapping(id, (byte) random.nextInt(128));
+                case 1 -> config.butSetChannel(id, (byte) (1 + random.nextInt(2)));
+                case 2 -> config.padSetRetriggerMapping(id % 8, (byte) random.nextInt(128));
+                default -> config.butPropRow(id % 43, random.nextBoolean());
+            }
+        }
+        TweakerConfig fresh = new TweakerConfig(handler(new NullReceiver()));
+        fresh.loadPacked(config.toPackedBytes());
+        if (!config.mappingConflicts().toString().equals(fresh.mappingConflicts().toString()))
+            throw new IllegalStateException("Incremental index differs from a fresh one");
+        System.out.println("mapping index: " + config.getMappingIndex().getConflictCount() + " conflicts after random edits");
+
+        // Incoming messages lead back to their controls
+        TweakerConfig defaults = new TweakerConfig(handler(new NullReceiver()));
+        MappingIndex index = defaults.getMappingIndex();
+        if (index.ownerOf(0x90, 63) != MappingIndex.PAD_HIT || index.ownerOf(0x80, 64) != MappingIndex.PAD_HIT + 1
+                || index.ownerOf(0xB0, 56) != MappingIndex.ENCODER || index.ownerOf(0x91, 63) != -1
+                || index.ownerOf(0xE0, 63) != -1) throw new IllegalStateException("Reverse lookup failed");
+        defaults.padSetHitChannel(0, (byte) 2);
+        if (index.ownerOf(0x91, 63) != MappingIndex.PAD_HIT) throw new IllegalStateException("Reverse lookup not updated");
+    }
+
+    // loadPacked must reject values that could not be dumped, and change nothing then. The LEDs are
+    // the last groups: 38 button LEDs and 5 nav LEDs of 3 bytes (color or status, mapping, channel),
+    // after 8 pads of 12 bytes and 50 buttons of 5, and the 7 encoders of 8 bytes come first. The
+    // booleans must be 0 or 1
+    private static void checkPackedValidation(TweakerConfig config) {
+        byte[] before = config.toPackedBytes();
+        int navLeds = before.length - 5 * 3;
+        int butLeds = navLeds - 38 * 3;
+        int pads = butLeds - 8 * 12;
+        int buttons = pads - 50 * 5;
+        int[][] invalid = {
+                {butLeds + 2, 0}, {butLeds + 3 * 7 + 2, 17}, {butLeds + 1, -1},
+                {navLeds + 2, 0}, {navLeds + 3 * 4 + 2, 17}, {navLeds + 1, -5}, {navLeds, 2},
+                {buttons + 2, 2}, {buttons + 5 * 9 + 3, -1}, {buttons + 5 * 49 + 4, 5},
+                {1, 2}, {8 * 3 + 3, 127}, {pads + 4, 2}, {pads + 12 * 7 + 5, -1}};
+        for (int[] field : invalid) {
+            byte[] bytes = before.clone();
+            bytes[field[0]] = (byte) field[1];
+            try {
+                config.loadPacked(bytes);
+                throw new IllegalStateException("Byte " + field[0] + " = " + field[1] + " was accepted");
+            } catch (IllegalArgumentException expected) {
+                // Rejected
+            }
+            if (!Arrays.equals(config.toPackedBytes(), before)) throw new IllegalStateException("Rejected bytes were loaded");
+        }
+    }
+
+    // A burst of edits must be delivered as one change with only what really changed
+    private static void checkChanges() {
+        TweakerConfig config = new TweakerConfig(handler(new NullReceiver()));
+        List<ConfigChange> changes = new ArrayList<>();
+        config.addChangeListener(changes::add);
+
+        config.butSetMapping(4, (byte) 90);
+        config.butPropAll(4, true);
+        config.padSetHitChannel(1, (byte) 3);
+        config.padSetHitChannel(1, (byte) 1);
+        config.flushChanges();
+        if (changes.size() != 1) throw new IllegalStateException(changes.size() + " changes delivered");
+        ConfigChange c = changes.get(0);
+        if (c.isChanged(ConfigChange.PADS)) throw new IllegalStateException("Value set back was delivered");
+        if (!c.isChanged(ConfigChange.BUTTONS, 4) || !c.isMappingChanged(ConfigChange.BUTTONS))
+            throw new IllegalStateException("Button change missing: " + c);
+        if (config.flushChanges() != null) throw new IllegalStateException("Change delivered twice");
+    }
+
+    // Undo and redo must give back the exact configurations, share what they did not change, and keep
+    // to the budget
+    private static void checkHistory() {
+        TweakerConfig config = new TweakerConfig(handler(new NullReceiver()));
+        ConfigHistory history = new ConfigHistory(config, 4096);
+        byte[] start = config.toPackedBytes();
+
+        config.butPropAll(0, false);
+        config.butSetMapping(3, (byte) 100);
+        history.checkpoint();
+        byte[] edited = config.toPackedBytes();
+        if (!history.get(1).sharesGroup(history.get(0), 0)) throw new IllegalStateException("Encoders not shared");
+
+        if (!history.undo() || !Arrays.equals(config.toPackedBytes(), start)) throw new IllegalStateException("Undo did not restore");
+        if (!history.redo() || !Arrays.equals(config.toPackedBytes(), edited)) throw new IllegalStateException("Redo did not restore");
+        // An edit that was not checkpointed is undone too, and can be redone
+        config.padSetHitMapping(2, (byte) 5);
+        byte[] pending = config.toPackedBytes();
+        if (!history.undo() || !Arrays.equals(config.toPackedBytes(), edited)) throw new IllegalStateException("Pending edit not undone");
+        if (!history.redo() || !Arrays.equals(config.toPackedBytes(), pending)) throw new IllegalStateException("Pending edit not redone");
+        history.jumpTo(0);
+        if (!Arrays.equals(config.toPackedBytes(), start)) throw new IllegalStateException("Jump did not restore");
+        // Changing a value and back again is not a step
+        history.jumpTo(history.size() - 1);
+        int steps = history.size();
+        config.butSetMapping(3, (byte) 1);
+        config.butSetMapping(3, (byte) 100);
+        if (history.checkpoint() || history.size() != steps) throw new IllegalStateException("Empty step added");
+
+        for (int i = 0; i < 100; i++) {
+            config.butSetMapping(i % 50, (byte) (i & 127));
+            history.checkpoint();
+        }
+        if (history.getMemoryBytes() > history.getBudgetBytes()) throw new IllegalStateException("History over budget");
+        history.jumpTo(0);
+        history.jumpTo(history.size() - 1);
+    }
+
+    // Copies taken from other threads while one thread edits must always be one of the configurations
+    // between two edits, never a mix. The editing thread goes round three edits that change many
+    // fields at once (a restore, a packed load and a propagation) while readers copy and hash the
+    // configuration as fast as they can. Also shows how much the readers slow the editing down
+    private static void checkConcurrentReads() throws Exception {
+        TweakerConfig config = new TweakerConfig(handler(new NullReceiver()));
+        ConfigSnapshot first = config.snapshot();
+        byte[] a = config.toPackedBytes();
+        // b: every button and pad changed
+        for (int i = 0; i < 50; i++) config.butSetMapping(i, (byte) (127 - i));
+        for (int i = 0; i < 8; i++) config.padSetHitChannel(i, (byte) 9);
+        byte[] b = config.toPackedBytes();
+        // c: b with button 3 propagated to every button
+        config.butPropAll(3, false);
+        byte[] c = config.toPackedBytes();
+        byte[][] states = {a, b, c};
+        int[] hashes = {Arrays.hashCode(a), Arrays.hashCode(b), Arrays.hashCode(c)};
+
+        long millis = 300;
+        long alone = edit(config, first, b, millis, null);
+
+        int readers = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLong reads = new AtomicLong();
+        AtomicReference<String> torn = new AtomicReference<>();
+        Thread[] threads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            threads[r] = new Thread(() -> {
+                long n = 0;
+                while (running.get()) {
+                    byte[] copy = config.toPackedBytes();
+                    int hash = config.packedHashCode();
+                    if (!isOneOf(copy, states))
+                        torn.compareAndSet(null, "a copy mixing two configurations");
+                    if (hash != hashes[0] && hash != hashes[1] && hash != hashes[2])
+                        torn.compareAndSet(null, "a hash of no configuration (" + hash + ")");
+                    n++;
+                }
+                reads.addAndGet(n);
+            }, "bench-reader-" + r);
+            threads[r].start();
+        }
+        long contended = edit(config, first, b, millis, running);
+        for (Thread t : threads) t.join();
+
+        if (torn.get() != null) throw new IllegalStateException("A reader got " + torn.get());
+        if (!isOneOf(config.toPackedBytes(), states))
+            throw new IllegalStateException("Configuration lost");
+        System.out.printf("concurrent reads: %d readers, %d consistent reads, %d edits (%d edits alone)%n",
+                readers, reads.get(), contended, alone);
+    }
+
+    private static boolean isOneOf(byte[] copy, byte[][] states) {
+        for (byte[] state : states) if (Arrays.equals(copy, state)) return true;
+        return false;
+    }
+
+    // Goes round the three edits of checkConcurrentReads for some time on the calling thread, and
+    // returns how many it made. Stops the readers at the end
+    private static long edit(TweakerConfig config, ConfigSnapshot first, byte[] b, long millis, AtomicBoolean running) {
+        long end = System.nanoTime() + millis * 1_000_000;
+        long edits = 0;
+        while (System.nanoTime() < end) {
+            config.restore(first);
+            config.loadPacked(b);
+            config.butPropAll(3, false);
+            edits += 3;
+        }
+        if (running != null) running.set(false);
+        return edits;
+    }
+
+    private static TweakerHandler handler(Receiver receiver) {
+        return handler(receiver, null);
+    }
+
+    private static TweakerHandler handler(Receiver receiver, MidiDevice.Info info) {
+        // A registry that is never started: nothing is looked up, the receiver is attached directly
+        TweakerHandler h = new TweakerHandler(new DeviceRegistry());
+        h.getScheduler().setEnabled(false);
+        h.attach(receiver, null, info);
+        return h;
+    }
+}
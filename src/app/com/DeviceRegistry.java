@@ -0,0 +1,198 @@
+package app.com;
+
+import app.log.Log;
+
+import javax.sound.midi.MidiDevice;
+import javax.sound.midi.MidiSystem;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+// Keeps the list of MIDI devices of the system. Enumerating them can take hundreds of milliseconds on
+// some systems, so it is done on a background thread: once at startup and then every few seconds to
+// notice when devices are plugged or unplugged. Everybody else reads the cached result.
+//
+// There is one registry for the whole application (getDefault()).
+public class DeviceRegistry {
+
+    // Time between two enumerations
+    public static final long POLL_MILLIS = 2000;
+
+    // Called from the polling thread when a device appears or disappears
+    public interface Listener {
+        void attached(MidiDevice.Info info);
+        void detached(MidiDevice.Info info);
+    }
+
+    private static DeviceRegistry instance;
+
+    private final ScheduledExecutorService poller;
+    private final CopyOnWriteArrayList<Listener> listeners;
+    // Completes after the first enumeration
+    private final CompletableFuture<Void> firstScan;
+
+    // Last enumeration, in the order returned by MidiSystem.getMidiDeviceInfo()
+    private volatile List<MidiDevice.Info> devices;
+    private volatile long lastScanNanos;
+
+
+    public static synchronized DeviceRegistry getDefault() {
+        if (instance == null) {
+            instance = new DeviceRegistry();
+            instance.start(POLL_MILLIS);
+        }
+        return instance;
+    }
+
+
+    public DeviceRegistry() {
+        poller = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "midi-device-poll");
+            t.setDaemon(true);
+            return t;
+        });
+        listeners = new CopyOnWriteArrayList<>();
+        firstScan = new CompletableFuture<>();
+        devices = List.of();
+        lastScanNanos = 0;
+    }
+
+
+    // Starts polling. The first enumeration runs immediately
+    public void start(long periodMillis) {
+        poller.scheduleWithFixedDelay(this::scan, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        poller.shutdownNow();
+    }
+
+    // Asks for an enumeration now instead of waiting for the next poll
+    public CompletableFuture<Void> rescan() {
+        return CompletableFuture.runAsync(this::scan, poller);
+    }
+
+
+    // Enumerates the devices and tells the listeners what changed. Runs on the polling thread
+    private void scan() {
+        try {
+            long start = System.nanoTime();
+            List<MidiDevice.Info> found = Arrays.asList(MidiSystem.getMidiDeviceInfo());
+            lastScanNanos = System.nanoTime() - start;
+            update(found);
+        } catch (Exception e) {
+            Log.warn("DeviceRegistry: Enumeration failed ({})", e.getMessage());
+        } finally {
+            firstScan.complete(null);
+        }
+    }
+
+
+    // Replaces the list and tells the listeners what changed. Identical units (a row of Tweakers) look
+    // the same, so the old and new entries are paired one to one, first the same info objects and then,
+    // for the providers that list new objects every time, the look-alikes. Whatever is left on one side
+    // was plugged or unplugged, as many times as it is left
+    private void update(List<MidiDevice.Info> found) {
+        List<MidiDevice.Info> old = devices;
+        devices = found;
+
+        // Info only has identity equality, so remove() takes out that very object
+        List<MidiDevice.Info> attached = new ArrayList<>(found);
+        List<MidiDevice.Info> detached = new ArrayList<>();
+        for (MidiDevice.Info i : old) if (!attached.remove(i)) detached.add(i);
+        for (Iterator<MidiDevice.Info> it = detached.iterator(); it.hasNext(); ) {
+            int j = indexOf(attached, it.next());
+            if (j < 0) continue;
+            attached.remove(j);
+            it.remove();
+        }
+
+        for (MidiDevice.Info i : attached) {
+            Log.debug("DeviceRegistry: attached name={} desc={}", i.getName(), i.getDescription());
+            for (Listener l : listeners) l.attached(i);
+        }
+        for (MidiDevice.Info i : detached) {
+            Log.debug("DeviceRegistry: detached name={} desc={}", i.getName(), i.getDescription());
+            for (Listener l : listeners) l.detached(i);
+        }
+    }
+
+
+    public void addListener(Listener l) {
+        listeners.add(l);
+    }
+
+    public void removeListener(Listener l) {
+        listeners.remove(l);
+    }
+
+
+    // Cached list of devices. Waits for the first enumeration if it has not finished yet
+    public List<MidiDevice.Info> getDevices() {
+        firstScan.join();
+        return devices;
+    }
+
+    // Cached list of the devices that look like a Tweaker
+    public List<MidiDevice.Info> getTweakers() {
+        List<MidiDevice.Info> result = new ArrayList<>();
+        for (MidiDevice.Info i : getDevices()) if (isTweaker(i)) result.add(i);
+        return result;
+    }
+
+    // First Tweaker found, or null
+    public MidiDevice.Info findTweaker() {
+        for (MidiDevice.Info i : getDevices()) if (isTweaker(i)) return i;
+        return null;
+    }
+
+    // The device as listed in the last enumeration: that same info object if it is there, else
+    // something that looks like it (see sameDevice), else null
+    public MidiDevice.Info find(MidiDevice.Info info) {
+        List<MidiDevice.Info> list = devices;
+        if (list.contains(info)) return info;
+        int i = indexOf(list, info);
+        return i < 0 ? null : list.get(i);
+    }
+
+    // Whether the device is still in the last enumeration
+    public boolean isPresent(MidiDevice.Info info) {
+        return find(info) != null;
+    }
+
+    // Duration of the last enumeration, in nanoseconds
+    public long getLastScanNanos() {
+        return lastScanNanos;
+    }
+
+
+    // Recognises the Tweaker from its name and description
+    public static boolean isTweaker(MidiDevice.Info i) {
+        // Windows
+        if (i.getName().equals("Tweaker") && i.getDescription().equals("External MIDI Port")) return true;
+        // macOS
+        return i.getDescription().contains("Tweaker");
+    }
+
+    // MidiDevice.Info only has identity equality, and some providers return new objects on every
+    // enumeration, so compare what describes the device instead
+    public static boolean sameDevice(MidiDevice.Info a, MidiDevice.Info b) {
+        if (a == b) return true;
+        if (a == null || b == null) return false;
+        return a.getName().equals(b.getName()) && a.getDescription().equals(b.getDescription())
+                && a.getVendor().equals(b.getVendor()) && a.getVersion().equals(b.getVersion())
+                && a.getClass() == b.getClass();
+    }
+
+    private static int indexOf(List<MidiDevice.Info> list, MidiDevice.Info info) {
+        for (int i = 0; i < list.size(); i++) if (sameDevice(list.get(i), info)) return i;
+        return -1;
+    }
+}
@@ -0,0 +1,245 @@
+package app.com;
+
+import app.log.Log;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+
+
+// Sends a stream of messages and checks, on the input side, that the device applied every one of
+// them. The stream is split into its messages (blocks), all of them are queued at once, and the
+// responses are matched to the blocks as they arrive, while the rest are still being sent. Blocks
+// without a response once everything has been sent and the timeout has passed are sent again, and
+// only those, up to a number of retries.
+//
+// What counts as a response is up to the Matcher, and there is none by default: the Tweaker does not
+// send anything back for the messages it applies, so a dump to the hardware can not be verified. It is
+// meant for targets that echo what they apply, like a VirtualTweaker with setEcho(true), with ECHO.
+//
+// verify() blocks until the verification is over, so it should not be called from the FX thread.
+public class DumpVerifier {
+
+    // Tells whether an input event confirms the block in stream[offset, offset + length)
+    public interface Matcher {
+        boolean matches(byte[] stream, int offset, int length, MidiInput.Cursor event);
+    }
+
+    // The device echoes every message it applies. Not the case of the Tweaker itself
+    public static final Matcher ECHO = (stream, offset, length, event) -> {
+        if (event.isSysEx()) {
+            if (stream[offset] != (byte) 0xF0 || event.getSysExLength() != length) return false;
+            for (int i = 0; i < length; i++) if (event.getSysExByte(i) != (stream[offset + i] & 0xFF)) return false;
+            return true;
+        }
+        return length <= 3 && event.getStatus() == (stream[offset] & 0xFF)
+                && event.getData1() == (stream[offset + 1] & 0xFF)
+                && (length < 3 || event.getData2() == (stream[offset + 2] & 0xFF));
+    };
+
+    // Outcome of a verification
+    public static final class Report {
+
+        private final int blocks;
+        private final int failed;
+        private final int retransmitted;
+        private final int rounds;
+        private final long elapsedNanos;
+
+        Report(int blocks, int failed, int retransmitted, int rounds, long elapsedNanos) {
+            this.blocks = blocks;
+            this.failed = failed;
+            this.retransmitted = retransmitted;
+            this.rounds = rounds;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        // Messages in the stream
+        public int getBlocks() {
+            return blocks;
+        }
+
+        // Messages the device did not confirm, even after the retries
+        public int getFailed() {
+            return failed;
+        }
+
+        // Messages sent more than once
+        public int getRetransmitted() {
+            return retransmitted;
+        }
+
+        // Times the stream (or what was left of it) was sent
+        public int getRounds() {
+            return rounds;
+        }
+
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        public boolean isVerified() {
+            return failed == 0;
+        }
+
+        @Override
+        public String toString() {
+            return (blocks - failed) + " of " + blocks + " messages confirmed, " + retransmitted
+                    + " sent again, " + rounds + " rounds, " + elapsedNanos / 1_000_000 + " ms";
+        }
+    }
+
+
+    private final TweakerHandler handler;
+    private volatile Matcher matcher;
+    private volatile long timeoutNanos;
+    private volatile int maxRetries;
+
+
+    public DumpVerifier(TweakerHandler handler) {
+        this.handler = handler;
+        matcher = null;
+        timeoutNanos = 500_000_000;
+        maxRetries = 2;
+    }
+
+
+    public void setMatcher(Matcher matcher) {
+        if (matcher == null) throw new IllegalArgumentException("matcher can not be null");
+        this.matcher = matcher;
+    }
+
+    // Null until one is set
+    public Matcher getMatcher() {
+        return matcher;
+    }
+
+    // A verifier with the same settings for another handler
+    public DumpVerifier withHandler(TweakerHandler other) {
+        DumpVerifier v = new DumpVerifier(other);
+        v.matcher = matcher;
+        v.timeoutNanos = timeoutNanos;
+        v.maxRetries = maxRetries;
+        return v;
+    }
+
+    // How long to wait for the responses after the last block has been sent
+    public void setTimeoutNanos(long timeoutNanos) {
+        if (timeoutNanos < 0) throw new IllegalArgumentException("timeout can not be negative");
+        this.timeoutNanos = timeoutNanos;
+    }
+
+    public long getTimeoutNanos() {
+        return timeoutNanos;
+    }
+
+    // Times the unconfirmed blocks are sent again
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) throw new IllegalArgumentException("maxRetries can not be negative");
+        this.maxRetries = maxRetries;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+
+    // Sends the stream and waits for every message to be confirmed (or for the retries to run out)
+    public Report verify(byte[] stream) throws Exception {
+        return verify(stream, null);
+    }
+
+    // Same, following the first round with the given progress (may be null). Cancelling it stops the
+    // verification with a CancellationException
+    public Report verify(byte[] stream, SendProgress progress) throws Exception {
+
+        Matcher m = matcher;
+        if (m == null) throw new Exception("No matcher is set: the device has to send back what it applies to be verified");
+        if (!handler.hasInput()) throw new Exception("The device has no MIDI input to verify with");
+
+        // Split the stream into blocks
+        int count = 0;
+        for (int i = 0; i < stream.length; i += length(stream, i)) count++;
+        int[] offsets = new int[count];
+        int[] lengths = new int[count];
+        for (int i = 0, b = 0; b < count; b++) {
+            offsets[b] = i;
+            lengths[b] = length(stream, i);
+            i += lengths[b];
+        }
+
+        long start = System.nanoTime();
+        boolean[] confirmed = new boolean[count];
+        int left = count;
+        int retransmitted = 0;
+        int rounds = 0;
+
+        // Listen before sending, so no response can be missed
+        MidiInput input = handler.getInput();
+        MidiInput.Cursor cursor = input.newCursor();
+        try {
+            byte[] sending = stream;
+            while (true) {
+                rounds++;
+                handler.sendStream(sending, rounds == 1 ? progress : null);
+                CompletableFuture<Void> sent = handler.flush();
+
+                // Match the responses while the blocks go out, then until the timeout
+                long deadline = 0;
+                boolean waiting = false;
+                while (left > 0) {
+                    if (progress != null && progress.isCancelled()) throw new CancellationException("Verification cancelled");
+                    if (!waiting && sent.isDone()) {
+                        deadline = System.nanoTime() + timeoutNanos;
+                        waiting = true;
+                    }
+                    long wait = waiting ? deadline - System.nanoTime() : 1_000_000;
+                    if (waiting && wait <= 0) break;
+                    if (!cursor.await(wait)) continue;
+
+                    // The oldest unconfirmed block it matches
+                    for (int b = 0; b < count; b++) {
+                        if (!confirmed[b] && m.matches(stream, offsets[b], lengths[b], cursor)) {
+                            confirmed[b] = true;
+                            left--;
+                            break;
+                        }
+                    }
+                }
+
+                if (left == 0 || rounds > maxRetries) break;
+
+                // Send again only what was not confirmed
+                Log.info("DumpVerifier: {} messages not confirmed, sending them again", left);
+                retransmitted += left;
+                sending = unconfirmed(stream, offsets, lengths, confirmed);
+            }
+        } finally {
+            input.removeCursor(cursor);
+        }
+
+        if (cursor.getLost() > 0) Log.warn("DumpVerifier: {} input events were lost", cursor.getLost());
+        Report report = new Report(count, left, retransmitted, rounds, System.nanoTime() - start);
+        Log.info("DumpVerifier: {}", report);
+        return report;
+    }
+
+    private static int length(byte[] stream, int offset) throws Exception {
+        int length = MidiSendQueue.messageLength(stream, offset);
+        if (length < 0) throw new Exception("Malformed message in stream at " + offset);
+        return length;
+    }
+
+    // The blocks not confirmed yet, as a new stream
+    private static byte[] unconfirmed(byte[] stream, int[] offsets, int[] lengths, boolean[] confirmed) {
+        int size = 0;
+        for (int b = 0; b < offsets.length; b++) if (!confirmed[b]) size += lengths[b];
+        byte[] result = new byte[size];
+        int pos = 0;
+        for (int b = 0; b < offsets.length; b++) {
+            if (confirmed[b]) continue;
+            System.arraycopy(stream, offsets[b], result, pos, lengths[b]);
+            pos += lengths[b];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+package app.com;
+
+import app.log.Log;
+
+import javax.sound.midi.MidiDevice;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+
+// Several Tweakers connected at the same time, one TweakerHandler each. Used to provision a batch of
+// devices with the same configuration: run() gives the same job to every handler, each one on its own
+// thread, so a slow or failing device does not hold up the others. Every handler already has its own
+// send queue and pacing, so the devices are also fed in parallel on the wire side.
+public class HandlerPool {
+
+    // Outcome of a job on one device
+    public static final class Result {
+
+        private final String device;
+        private final long elapsedNanos;
+        private final long messages;
+        private final Throwable error;
+
+        Result(String device, long elapsedNanos, long messages, Throwable error) {
+            this.device = device;
+            this.elapsedNanos = elapsedNanos;
+            this.messages = messages;
+            this.error = error;
+        }
+
+        public String getDevice() {
+            return device;
+        }
+
+        // From the start of the job until the last message queued by it was sent
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        // Messages that reached the device during the job
+        public long getMessages() {
+            return messages;
+        }
+
+        // Null if the job succeeded
+        public Throwable getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        @Override
+        public String toString() {
+            return device + ": " + (error == null ? "OK" : "FAILED (" + error.getMessage() + ")")
+                    + ", " + messages + " messages in " + elapsedNanos / 1_000_000 + " ms";
+        }
+    }
+
+
+    private final List<TweakerHandler> handlers;
+    // Handlers opened by the pool, closed by close(). The others belong to someone else
+    private final List<TweakerHandler> owned;
+    // Devices that were found but could not be opened
+    private final List<String> failedToOpen;
+    private final ExecutorService executor;
+
+
+    private HandlerPool(List<TweakerHandler> handlers, List<TweakerHandler> owned, List<String> failedToOpen) {
+        this.handlers = Collections.unmodifiableList(handlers);
+        this.owned = owned;
+        this.failedToOpen = Collections.unmodifiableList(failedToOpen);
+        // One thread per device. They only live while there is work to do
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "midi-pool");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+    // Opens a device for the pool, as a handler of its own
+    public interface Opener {
+        TweakerHandler open(MidiDevice.Info info) throws Exception;
+    }
+
+
+    // Opens every Tweaker currently listed by the registry. The devices that can not be opened are
+    // skipped and reported by getFailedToOpen(). If shared (may be null) is already connected to one of
+    // them, it is used for that device instead of opening it a second time, which some systems do not
+    // allow; the pool does not close it
+    public static HandlerPool openAll(DeviceRegistry registry, TweakerHandler shared) {
+        return openAll(registry.getTweakers(), shared, info -> {
+            TweakerHandler h = new TweakerHandler(registry);
+            try {
+                // Only sends, so it leaves the inputs alone (they may be the shared handler's)
+                h.open(info, false);
+                return h;
+            } catch (Exception e) {
+                h.close();
+                throw e;
+            }
+        });
+    }
+
+    // Same, over a list of devices, opening each one with the opener. Identical units (a row of
+    // Tweakers) are listed with the same name, description, vendor and version, so the shared handler
+    // is only used for the entry that is its own info object, or, if the provider lists the devices
+    // with new objects, for the only entry that looks like it. Never for more than one
+    public static HandlerPool openAll(List<MidiDevice.Info> devices, TweakerHandler shared, Opener opener) {
+        int sharedAt = -1;
+        MidiDevice.Info sharedInfo = shared != null && shared.isConnected() ? shared.getDeviceInfo() : null;
+        if (sharedInfo != null) {
+            sharedAt = devices.indexOf(sharedInfo);
+            if (sharedAt < 0) {
+                for (int i = 0; i < devices.size(); i++) {
+                    if (!DeviceRegistry.sameDevice(devices.get(i), sharedInfo)) continue;
+                    // A second look-alike: there is no telling which one it is
+                    if (sharedAt >= 0) {
+                        sharedAt = -1;
+                        break;
+                    }
+                    sharedAt = i;
+                }
+            }
+        }
+
+        List<TweakerHandler> handlers = new ArrayList<>();
+        List<TweakerHandler> owned = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (int i = 0; i < devices.size(); i++) {
+            MidiDevice.Info info = devices.get(i);
+            if (i == sharedAt) {
+                handlers.add(shared);
+                continue;
+            }
+            try {
+                TweakerHandler h = opener.open(info);
+                handlers.add(h);
+                owned.add(h);
+            } catch (Exception e) {
+                Log.warn("HandlerPool: Could not open {} ({})", info.getName(), e.getMessage());
+                failed.add(info.getName());
+            }
+        }
+        Log.info("HandlerPool: {} devices opened", handlers.size());
+        return new HandlerPool(handlers, owned, failed);
+    }
+
+    // A pool over handlers that are already open. close() does not close them
+    public static HandlerPool of(List<TweakerHandler> handlers) {
+        return new HandlerPool(new ArrayList<>(handlers), new ArrayList<>(), new ArrayList<>());
+    }
+
+
+    public List<TweakerHandler> getHandlers() {
+        return handlers;
+    }
+
+    public List<String> getFailedToOpen() {
+        return failedToOpen;
+    }
+
+    public int size() {
+        return handlers.size();
+    }
+
+
+    // Runs the job on every handler in parallel. The job only queues messages; the result of each
+    // device is known once the messages it queued have been sent. The returned future always
+    // completes normally, failures are reported in the results
+    public CompletableFuture<List<Result>> run(Consumer<TweakerHandler> job) {
+
+        List<CompletableFuture<Result>> futures = new ArrayList<>(handlers.size());
+        for (TweakerHandler h : handlers) futures.add(runOn(h, job));
+
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(v -> {
+            List<Result> results = new ArrayList<>(futures.size());
+            for (CompletableFuture<Result> f : futures) results.add(f.join());
+            for (Result r : results) Log.info("HandlerPool: {}", r);
+            return results;
+        });
+    }
+
+    private CompletableFuture<Result> runOn(TweakerHandler h, Consumer<TweakerHandler> job) {
+        String name = h.getDeviceName();
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            long sent = h.getSentMessages();
+            try {
+                if (!h.isConnected()) throw new IllegalStateException("The device is not connected");
+                job.accept(h);
+                h.flush().join();
+                return new Result(name, System.nanoTime() - start, h.getSentMessages() - sent, null);
+            } catch (Exception e) {
+                // join() wraps the failure of the flush
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                return new Result(name, System.nanoTime() - start, h.getSentMessages() - sent, cause);
+            }
+        }, executor);
+    }
+
+
+    // Closes the devices opened by the pool, stopping the dumps still running. What is queued on them
+    // and not sent yet is discarded first instead of being left to the sender once the device is gone.
+    // The shared handler is left as it is
+    public void close() {
+        executor.shutdownNow();
+        for (TweakerHandler h : owned) {
+            int dropped = h.discard();
+            if (dropped > 0) Log.info("HandlerPool: {} queued sends discarded", dropped);
+            h.close();
+        }
+    }
+}
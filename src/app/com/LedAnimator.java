@@ -0,0 +1,278 @@
+package app.com;
+
+import app.log.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+
+// Plays LED animations on a Tweaker. An animation (Pattern) is a list of frames, each one the full
+// state of the LEDs of one channel (LED id = note number, value = color/velocity, 0 is off), shown at
+// a fixed frame rate.
+//
+// One thread per animator plays the shows one at a time:
+//  - Frames are due at start + i * frame time, and the thread parks until then, so the timing does not
+//    drift. If the thread is late by more than a frame, the frames already missed are skipped and
+//    counted as dropped, and the latest due one is shown.
+//  - Only the LEDs that differ from the previous frame are sent.
+//  - Starting a show replaces the one playing; cancel() stops it. Either way the LEDs lit by a show
+//    are turned off when it ends, unless the next show uses the same channel and takes them over.
+public class LedAnimator {
+
+    // An immutable animation
+    public static final class Pattern {
+
+        private final int channel;
+        private final long frameNanos;
+        private final int[][] frames;
+
+        private Pattern(int channel, long frameNanos, int[][] frames) {
+            this.channel = channel;
+            this.frameNanos = frameNanos;
+            this.frames = frames;
+        }
+
+        public int getChannel() {
+            return channel;
+        }
+
+        public long getFrameNanos() {
+            return frameNanos;
+        }
+
+        public int getFrameCount() {
+            return frames.length;
+        }
+
+        // Color of an LED in a frame
+        public int getColor(int frame, int led) {
+            return frames[frame][led];
+        }
+
+        public static Builder builder(int channel, long frameMillis) {
+            return new Builder(channel, frameMillis);
+        }
+    }
+
+    public static final class Builder {
+
+        private final int channel;
+        private final long frameNanos;
+        private final List<int[]> frames = new ArrayList<>();
+
+        private Builder(int channel, long frameMillis) {
+            if (channel < 1 || channel > 16) throw new IllegalArgumentException("channel out of range (1 - 16)");
+            if (frameMillis < 1) throw new IllegalArgumentException("frameMillis must be positive");
+            this.channel = channel;
+            this.frameNanos = frameMillis * 1_000_000;
+        }
+
+        // Adds a frame from (LED, color) pairs. Every other LED is off in this frame. If an LED
+        // appears twice the last color wins
+        public Builder frame(int... ledsAndColors) {
+            if (ledsAndColors.length % 2 != 0) throw new IllegalArgumentException("LEDs and colors must come in pairs");
+            int[] f = new int[128];
+            for (int i = 0; i < ledsAndColors.length; i += 2) {
+                int led = ledsAndColors[i];
+                int color = ledsAndColors[i + 1];
+                if (led < 0 || led > 127) throw new IllegalArgumentException("LED out of range (0 - 127)");
+                if (color < 0 || color > 127) throw new IllegalArgumentException("color out of range (0 - 127)");
+                f[led] = color;
+            }
+            frames.add(f);
+            return this;
+        }
+
+        public Pattern build() {
+            if (frames.isEmpty()) throw new IllegalArgumentException("A pattern needs at least one frame");
+            return new Pattern(channel, frameNanos, frames.toArray(new int[0][]));
+        }
+    }
+
+    // A show waiting to be played
+    private record Show(Pattern pattern, CompletableFuture<Void> done) {
+    }
+
+    private final TweakerHandler handler;
+    private final Thread thread;
+    // Next show to play. Also set to STOP by cancel()
+    private final AtomicReference<Show> pending;
+    private static final Show STOP = new Show(null, null);
+    // What each LED was last set to by this animator, per channel
+    private final int[][] state;
+
+    // Statistics. Written only by the animator thread
+    private volatile long frames;
+    private volatile long droppedFrames;
+    private volatile long sentNotes;
+    private volatile long maxJitterNanos;
+    private volatile long totalJitterNanos;
+
+
+    public LedAnimator(TweakerHandler handler) {
+        this.handler = handler;
+        pending = new AtomicReference<>();
+        state = new int[16][128];
+        thread = new Thread(this::loop, "led-animator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    // Plays a show, replacing the one that is playing. The future completes when it has finished, or
+    // exceptionally if it gets replaced or cancelled. Cancelling the future also stops the show
+    public CompletableFuture<Void> play(Pattern pattern) {
+        if (pattern == null) throw new IllegalArgumentException("pattern can not be null");
+        Show show = new Show(pattern, new CompletableFuture<>());
+        Show old = pending.getAndSet(show);
+        if (old != null && old != STOP) old.done.cancel(false);
+        LockSupport.unpark(thread);
+        return show.done;
+    }
+
+    // Stops the show that is playing, if any
+    public void cancel() {
+        Show old = pending.getAndSet(STOP);
+        if (old != null && old != STOP) old.done.cancel(false);
+        LockSupport.unpark(thread);
+    }
+
+
+    // Animator thread
+    private void loop() {
+        Show show = null;
+        while (true) {
+            if (show == null) {
+                Show next = pending.getAndSet(null);
+                if (next == null || next == STOP) {
+                    LockSupport.park(this);
+                    continue;
+                }
+                show = next;
+            }
+            show = play(show);
+        }
+    }
+
+    // Plays a show until it ends or something else is asked for. Returns the show that replaced it,
+    // or null
+    private Show play(Show show) {
+        Pattern p = show.pattern;
+        int[] channelState = state[p.channel - 1];
+        long start = System.nanoTime();
+        int frame = 0;
+
+        while (frame < p.frames.length) {
+            long due = start + frame * p.frameNanos;
+            long now = System.nanoTime();
+            // parkNanos may return early, and returns at once when play() or cancel() unpark us
+            while (due - now > 0) {
+                if (pending.get() != null) break;
+                LockSupport.parkNanos(this, due - now);
+                now = System.nanoTime();
+            }
+
+            if (pending.get() != null) {
+                Show next = pending.getAndSet(null);
+                show.done.completeExceptionally(new CancellationException("Replaced"));
+                if (next == STOP || next.pattern.channel != p.channel) clear(p.channel);
+                return next == STOP ? null : next;
+            }
+            // The caller cancelled the future
+            if (show.done.isDone()) {
+                clear(p.channel);
+                return null;
+            }
+
+            // Skip the frames that are already over
+            int late = (int) ((now - due) / p.frameNanos);
+            if (late > 0) {
+                late = Math.min(late, p.frames.length - 1 - frame);
+                droppedFrames += late;
+                frame += late;
+                due += late * p.frameNanos;
+            }
+
+            long jitter = now - due;
+            totalJitterNanos += jitter;
+            if (jitter > maxJitterNanos) maxJitterNanos = jitter;
+
+            render(p.channel, channelState, p.frames[frame]);
+            frames++;
+            frame++;
+        }
+
+        // Keep the last frame on screen for its whole duration before clearing
+        long end = start + p.frames.length * p.frameNanos;
+        long now = System.nanoTime();
+        while (end - now > 0 && pending.get() == null) {
+            LockSupport.parkNanos(this, end - now);
+            now = System.nanoTime();
+        }
+        clear(p.channel);
+        show.done.complete(null);
+        return null;
+    }
+
+    // Sends the LEDs that differ from what is lit now
+    private void render(int channel, int[] current, int[] target) {
+        for (int led = 0; led < 128; led++) {
+            if (current[led] != target[led]) {
+                handler.sendNote(channel, led, target[led]);
+                current[led] = target[led];
+                sentNotes++;
+            }
+        }
+    }
+
+    // Turns off every LED of the channel that this animator lit
+    private void clear(int channel) {
+        int[] current = state[channel - 1];
+        for (int led = 0; led < 128; led++) {
+            if (current[led] != 0) {
+                handler.sendNote(channel, led, 0);
+                current[led] = 0;
+                sentNotes++;
+            }
+        }
+        Log.debug("LedAnimator: channel {} cleared", channel);
+    }
+
+
+    // -+- Statistics -+-
+
+    public long getFrames() {
+        return frames;
+    }
+
+    // Frames skipped because the animator was more than a frame late
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public long getSentNotes() {
+        return sentNotes;
+    }
+
+    // How late a frame was sent, at most and on average
+    public long getMaxJitterNanos() {
+        return maxJitterNanos;
+    }
+
+    public long getMeanJitterNanos() {
+        long n = frames;
+        return n == 0 ? 0 : totalJitterNanos / n;
+    }
+
+    public void resetStatistics() {
+        frames = 0;
+        droppedFrames = 0;
+        sentNotes = 0;
+        maxJitterNanos = 0;
+        totalJitterNanos = 0;
+    }
+}
@@ -0,0 +1,270 @@
+package app.com;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+// Captures what the Tweaker sends. It is registered as the Receiver of the device's Transmitter, and
+// copies every incoming message into a preallocated ring as packed primitives:
+//  - events: status | data1 << 8 | data2 << 16 (for SysEx only the status, 0xF0)
+//  - times: System.nanoTime() when the message arrived
+//  - stamps: the timestamp given by javax.sound (microseconds, -1 if the device has none)
+//  - sysEx: up to SYSEX_SLOT bytes of each SysEx message, longer ones are truncated
+//
+// There is one writer (the javax.sound callback thread) and any number of readers. Each reader has its
+// own Cursor, so readers never interfere with each other or with the writer: the writer does not
+// allocate, lock or wait, and if a reader falls more than a full ring behind it skips the events that
+// were overwritten and counts them as lost.
+public class MidiInput implements Receiver {
+
+    // Number of events in the ring, must be a power of two
+    public static final int CAPACITY = 4096;
+    // Maximum SysEx bytes kept per event. The largest Tweaker block is 107 bytes
+    public static final int SYSEX_SLOT = 128;
+    private static final int MASK = CAPACITY - 1;
+
+    private final int[] events = new int[CAPACITY];
+    private final long[] times = new long[CAPACITY];
+    private final long[] stamps = new long[CAPACITY];
+    private final short[] sysExLengths = new short[CAPACITY];
+    private final byte[] sysEx = new byte[CAPACITY * SYSEX_SLOT];
+    // Sequence of the event stored in each slot, or -1 while the slot is being written. Readers check it
+    // before and after copying a slot, so they can tell when the writer reused it under them
+    private final AtomicLongArray slotSequences = new AtomicLongArray(CAPACITY);
+
+    // Number of events written so far. Written only by the producer
+    private volatile long published;
+
+    // Readers that may be waiting for events. Replaced (never modified) when a cursor is added
+    private volatile Cursor[] cursors = new Cursor[0];
+
+
+    public MidiInput() {
+        for (int i = 0; i < CAPACITY; i++) slotSequences.set(i, -1);
+    }
+
+
+    // -+- Writer side (javax.sound callback thread) -+-
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        long seq = published;
+        int slot = (int) (seq & MASK);
+
+        // Mark the slot as being written before touching its data
+        slotSequences.set(slot, -1);
+        VarHandle.storeStoreFence();
+
+        if (message instanceof ShortMessage sm) {
+            events[slot] = sm.getStatus() | sm.getData1() << 8 | sm.getData2() << 16;
+            sysExLengths[slot] = 0;
+        } else {
+            // SysEx (or meta, which a device never sends). getMessage() returns a copy of the bytes;
+            // SysEx input is rare enough for that not to matter
+            byte[] data = message.getMessage();
+            int length = Math.min(data.length, SYSEX_SLOT);
+            events[slot] = message.getStatus();
+            System.arraycopy(data, 0, sysEx, slot * SYSEX_SLOT, length);
+            sysExLengths[slot] = (short) length;
+        }
+        times[slot] = System.nanoTime();
+        stamps[slot] = timeStamp;
+
+        // Publish and wake up the readers that are waiting
+        slotSequences.set(slot, seq);
+        published = seq + 1;
+        for (Cursor c : cursors) {
+            Thread waiter = c.waiter;
+            if (waiter != null) LockSupport.unpark(waiter);
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+
+
+    // -+- Reader side -+-
+
+    // Creates a reader that will see the events received from now on
+    public synchronized Cursor newCursor() {
+        Cursor c = new Cursor(published);
+        Cursor[] n = new Cursor[cursors.length + 1];
+        System.arraycopy(cursors, 0, n, 0, cursors.length);
+        n[cursors.length] = c;
+        cursors = n;
+        return c;
+    }
+
+    // Stops waking up a reader that is no longer used
+    public synchronized void removeCursor(Cursor c) {
+        int count = 0;
+        for (Cursor x : cursors) if (x != c) count++;
+        Cursor[] n = new Cursor[count];
+        int i = 0;
+        for (Cursor x : cursors) if (x != c) n[i++] = x;
+        cursors = n;
+    }
+
+    public long getPublished() {
+        return published;
+    }
+
+
+    // A reader of the ring. A cursor must only be used by one thread. After next() returns true, the
+    // getters describe the event that was just read
+    public final class Cursor {
+
+        private long sequence;
+        private long lost;
+        private volatile Thread waiter;
+
+        // Last event read
+        private int event;
+        private long time;
+        private long stamp;
+        private int sysExLength;
+        private final byte[] sysExData = new byte[SYSEX_SLOT];
+
+
+        private Cursor(long start) {
+            sequence = start;
+            lost = 0;
+        }
+
+        // Reads the next event. Returns false if there is none yet
+        public boolean next() {
+            while (true) {
+                long available = published;
+                if (sequence >= available) return false;
+
+                // The writer has lapped this reader: skip what was overwritten
+                if (available - sequence > CAPACITY) {
+                    lost += available - CAPACITY - sequence;
+                    sequence = available - CAPACITY;
+                }
+
+                int slot = (int) (sequence & MASK);
+                if (slotSequences.get(slot) != sequence) {
+                    // Already being overwritten
+                    lost++;
+                    sequence++;
+                    continue;
+                }
+                event = events[slot];
+                time = times[slot];
+                stamp = stamps[slot];
+                sysExLength = sysExLengths[slot];
+                if (sysExLength > 0) System.arraycopy(sysEx, slot * SYSEX_SLOT, sysExData, 0, sysExLength);
+
+                // If the writer reused the slot while it was being copied, the copy may be torn.
+                // Drop it and try again from the oldest event still in the ring
+                VarHandle.loadLoadFence();
+                if (slotSequences.get(slot) != sequence) {
+                    lost++;
+                    sequence++;
+                    continue;
+                }
+
+                sequence++;
+                return true;
+            }
+        }
+
+        // Like next(), but waits up to the given time for an event to arrive
+        public boolean await(long timeoutNanos) {
+            if (next()) return true;
+            long deadline = System.nanoTime() + timeoutNanos;
+            waiter = Thread.currentThread();
+            try {
+                while (true) {
+                    if (next()) return true;
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0 || Thread.currentThread().isInterrupted()) return false;
+                    LockSupport.parkNanos(this, left);
+                }
+            } finally {
+                waiter = null;
+            }
+        }
+
+        // Skips everything received so far
+        public void skipAll() {
+            sequence = published;
+        }
+
+        // Number of events this reader missed because it was too slow
+        public long getLost() {
+            return lost;
+        }
+
+        // Events waiting to be read
+        public long getBacklog() {
+            return Math.min(published - sequence, CAPACITY);
+        }
+
+
+        // -+- Last event -+-
+
+        public int getStatus() {
+            return event & 0xFF;
+        }
+
+        // Message type without the channel (e.g. ShortMessage.NOTE_ON)
+        public int getCommand() {
+            return event & 0xF0;
+        }
+
+        // Channel, from 1 to 16 like in the rest of the application
+        public int getChannel() {
+            return (event & 0x0F) + 1;
+        }
+
+        public int getData1() {
+            return (event >> 8) & 0xFF;
+        }
+
+        public int getData2() {
+            return (event >> 16) & 0xFF;
+        }
+
+        // The whole packed event, as stored in the ring
+        public int getPacked() {
+            return event;
+        }
+
+        public boolean isSysEx() {
+            return sysExLength > 0;
+        }
+
+        public long getTimeNanos() {
+            return time;
+        }
+
+        public long getTimeStamp() {
+            return stamp;
+        }
+
+        public int getSysExLength() {
+            return sysExLength;
+        }
+
+        // One byte of the SysEx of the last event
+        public int getSysExByte(int i) {
+            if (i < 0 || i >= sysExLength) throw new IndexOutOfBoundsException(i);
+            return sysExData[i] & 0xFF;
+        }
+
+        // Copies the SysEx bytes of the last event into dst and returns how many were copied
+        public int copySysEx(byte[] dst) {
+            int n = Math.min(dst.length, sysExLength);
+            System.arraycopy(sysExData, 0, dst, 0, n);
+            return n;
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package app.com;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+// What a handler sends, counted as it happens:
+//  - Messages and bytes by type (notes, CCs, SysEx, anything else)
+//  - Failed send attempts, messages given up after the retries, and reconnections
+//  - Depth of the send queue, now and at most
+//  - How long receiver.send() takes, in a log-linear histogram: every power of two of nanoseconds is
+//    split into 8 buckets, so any value is known within 12.5% from 1 ns to about 18 minutes, in a
+//    fixed array
+//
+// Nothing here takes a lock, and readers never stop the writers:
+//  - What is recorded per message (counts, bytes, latency) is only written by the sender thread, so
+//    it is kept in atomic arrays updated with a plain read and a release store: no CAS and no fence,
+//    which matters at a few hundred nanoseconds per message
+//  - What can come from any thread (failures, reconnections) is striped (LongAdder)
+//  - The queue depth is written under the queue lock
+// snapshot() copies everything into an immutable Snapshot that the UI (or anything else) can poll as
+// often as it likes; rates are computed between two snapshots.
+public class MidiMetrics {
+
+    // Message types
+    public static final int NOTE = 0;
+    public static final int CC = 1;
+    public static final int SYSEX = 2;
+    public static final int OTHER = 3;
+    private static final int TYPES = 4;
+    private static final String[] TYPE_NAMES = {"notes", "CCs", "SysEx", "other"};
+
+    // Histogram layout: values below 8 have a bucket each, then 8 buckets per power of two
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+
+    // Sender thread only: messages by type, then bytes by type, then the latency sum and maximum
+    private static final int BYTES = TYPES;
+    private static final int LATENCY_TOTAL = 2 * TYPES;
+    private static final int LATENCY_MAX = 2 * TYPES + 1;
+    private final AtomicLongArray counters = new AtomicLongArray(2 * TYPES + 2);
+    private final AtomicLongArray latency = new AtomicLongArray(BUCKETS);
+    // Any thread
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder reconnects = new LongAdder();
+    // Under the queue lock
+    private volatile int queueDepth;
+    private volatile int maxQueueDepth;
+
+
+    public MidiMetrics() {
+        queueDepth = 0;
+        maxQueueDepth = 0;
+    }
+
+
+    // -+- Recording -+-
+
+    // A message that went through, of the given type and length, and how long the receiver took.
+    // Only called by the sender thread
+    public void sent(int type, int length, long nanos) {
+        if (nanos < 0) nanos = 0;
+        add(counters, type, 1);
+        add(counters, BYTES + type, length);
+        add(latency, bucket(nanos), 1);
+        add(counters, LATENCY_TOTAL, nanos);
+        if (nanos > counters.get(LATENCY_MAX)) counters.lazySet(LATENCY_MAX, nanos);
+    }
+
+    // Single writer, so no read-modify-write is needed
+    private static void add(AtomicLongArray array, int i, long delta) {
+        array.lazySet(i, array.get(i) + delta);
+    }
+
+    // A send attempt that threw. It may still go through when retried
+    public void failure() {
+        failures.increment();
+    }
+
+    // A message given up after its retries
+    public void dropped() {
+        dropped.increment();
+    }
+
+    public void reconnect() {
+        reconnects.increment();
+    }
+
+    // Only called with the queue lock held
+    public void queueDepth(int depth) {
+        queueDepth = depth;
+        if (depth > maxQueueDepth) maxQueueDepth = depth;
+    }
+
+    // Type of a message from its status byte
+    public static int typeOf(int status) {
+        if (status == 0xF0) return SYSEX;
+        int command = status & 0xF0;
+        if (command == 0x90 || command == 0x80) return NOTE;
+        if (command == 0xB0) return CC;
+        return OTHER;
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = Math.min(63 - Long.numberOfLeadingZeros(value), MAX_EXPONENT);
+        int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        if (exponent == MAX_EXPONENT && value >>> (MAX_EXPONENT + 1) != 0) sub = SUB_BUCKETS - 1;
+        return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    // Smallest value that falls in a bucket
+    static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    // Forgets everything. Should only be called while nothing is being sent, or what is recorded
+    // meanwhile may be partly kept
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) counters.set(i, 0);
+        for (int i = 0; i < BUCKETS; i++) latency.set(i, 0);
+        failures.reset();
+        dropped.reset();
+        reconnects.reset();
+        maxQueueDepth = queueDepth;
+    }
+
+
+    // -+- Reading -+-
+
+    public Snapshot snapshot() {
+        long[] m = new long[TYPES];
+        long[] b = new long[TYPES];
+        for (int t = 0; t < TYPES; t++) {
+            m[t] = counters.get(t);
+            b[t] = counters.get(BYTES + t);
+        }
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) counts[i] = latency.get(i);
+        return new Snapshot(System.nanoTime(), m, b, failures.sum(), dropped.sum(), reconnects.sum(),
+                queueDepth, maxQueueDepth, counts, counters.get(LATENCY_TOTAL), counters.get(LATENCY_MAX));
+    }
+
+    // The metrics at one moment. The counters are read one after the other while the sender goes on,
+    // so they may be a few messages apart
+    public static final class Snapshot {
+
+        private final long timeNanos;
+        private final long[] messages;
+        private final long[] bytes;
+        private final long failures;
+        private final long dropped;
+        private final long reconnects;
+        private final int queueDepth;
+        private final int maxQueueDepth;
+        private final long[] latency;
+        private final long latencyCount;
+        private final long latencyTotal;
+        private final long latencyMax;
+
+        private Snapshot(long timeNanos, long[] messages, long[] bytes, long failures, long dropped, long reconnects,
+                         int queueDepth, int maxQueueDepth, long[] latency, long latencyTotal, long latencyMax) {
+            this.timeNanos = timeNanos;
+            this.messages = messages;
+            this.bytes = bytes;
+            this.failures = failures;
+            this.dropped = dropped;
+            this.reconnects = reconnects;
+            this.queueDepth = queueDepth;
+            this.maxQueueDepth = maxQueueDepth;
+            this.latency = latency;
+            long count = 0;
+            for (long c : latency) count += c;
+            this.latencyCount = count;
+            this.latencyTotal = latencyTotal;
+            this.latencyMax = latencyMax;
+        }
+
+        // When it was taken (System.nanoTime())
+        public long getTimeNanos() {
+            return timeNanos;
+        }
+
+        public long getMessages(int type) {
+            return messages[type];
+        }
+
+        public long getBytes(int type) {
+            return bytes[type];
+        }
+
+        public long getMessages() {
+            long sum = 0;
+            for (long m : messages) sum += m;
+            return sum;
+        }
+
+        public long getBytes() {
+            long sum = 0;
+            for (long b : bytes) sum += b;
+            return sum;
+        }
+
+        public long getFailures() {
+            return failures;
+        }
+
+        public long getDropped() {
+            return dropped;
+        }
+
+        public long getReconnects() {
+            return reconnects;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getMaxQueueDepth() {
+            return maxQueueDepth;
+        }
+
+        // -+- Latency of receiver.send() -+-
+
+        public long getLatencyCount() {
+            return latencyCount;
+        }
+
+        public long getMeanLatencyNanos() {
+            return latencyCount == 0 ? 0 : latencyTotal / latencyCount;
+        }
+
+        public long getMaxLatencyNanos() {
+            return latencyMax;
+        }
+
+        // Latency below which the given fraction (0 to 1) of the sends fall, as the upper bound of its
+        // bucket (at most 12.5% above the real value)
+        public long getLatencyPercentile(double fraction) {
+            if (fraction < 0 || fraction > 1) throw new IllegalArgumentException("fraction out of range (0 - 1)");
+            if (latencyCount == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(fraction * latencyCount));
+            long seen = 0;
+            for (int i = 0; i < latency.length; i++) {
+                seen += latency[i];
+                if (seen >= rank) {
+                    long upper = i + 1 < latency.length ? lowerBound(i + 1) - 1 : latencyMax;
+                    return Math.min(upper, latencyMax);
+                }
+            }
+            return latencyMax;
+        }
+
+        // -+- Rates since an earlier snapshot -+-
+
+        public double messagesPerSecond(Snapshot earlier) {
+            return perSecond(getMessages() - earlier.getMessages(), earlier);
+        }
+
+        public double bytesPerSecond(Snapshot earlier) {
+            return perSecond(getBytes() - earlier.getBytes(), earlier);
+        }
+
+        private double perSecond(long delta, Snapshot earlier) {
+            long elapsed = timeNanos - earlier.timeNanos;
+            return elapsed <= 0 ? 0 : delta * 1e9 / elapsed;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder();
+            for (int t = 0; t < TYPES; t++) {
+                s.append(TYPE_NAMES[t]).append(": ").append(messages[t]).append(" (").append(bytes[t]).append(" B), ");
+            }
+            s.append("failures: ").append(failures).append(", dropped: ").append(dropped)
+                    .append(", reconnects: ").append(reconnects)
+                    .append(", queue: ").append(queueDepth).append(" (max ").append(maxQueueDepth).append(")")
+                    .append(", send p50/p99/max: ").append(getLatencyPercentile(0.5)).append("/")
+                    .append(getLatencyPercentile(0.99)).append("/").append(latencyMax).append(" ns");
+            return s.toString();
+        }
+    }
+}
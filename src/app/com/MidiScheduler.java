@@ -0,0 +1,159 @@
+package app.com;
+
+import app.log.Log;
+
+import java.util.concurrent.locks.LockSupport;
+
+
+// Paces outgoing messages so the Tweaker's input buffer is never overrun. Every message takes the
+// time it would need on a real MIDI cable: the wire runs at 31250 baud and every byte is 10 bits long
+// (start + 8 data + stop), so 3125 bytes per second by default. The budget can be changed, e.g. for
+// faster USB links.
+//
+// On top of that, SysEx messages are followed by an extra gap that tunes itself: it doubles every time
+// a send fails and shrinks a little after a run of successful sends, so it settles just above the
+// point where the hardware starts dropping data.
+//
+// Only the sender thread calls await(), success() and failure(); the setters can be called from any
+// thread.
+public class MidiScheduler {
+
+    // MIDI 1.0 wire rate
+    public static final int WIRE_BYTES_PER_SECOND = 31250 / 10;
+
+    // Adaptive gap limits
+    private static final long MIN_GAP_STEP = 250_000;          // 0.25 ms
+    private static final long MAX_GAP = 200_000_000;           // 200 ms
+    private static final int SUCCESSES_TO_SHRINK = 8;
+
+    private volatile boolean enabled;
+    private volatile int bytesPerSecond;
+    private volatile boolean adaptive;
+    private volatile int maxRetries;
+
+    // Extra time after each SysEx message, in nanoseconds
+    private volatile long sysExGap;
+    // Time at which the wire is free again
+    private long nextFree;
+    private int successes;
+
+    // Statistics
+    private volatile long waitedNanos;
+    private volatile long failures;
+
+
+    public MidiScheduler() {
+        enabled = true;
+        bytesPerSecond = WIRE_BYTES_PER_SECOND;
+        adaptive = true;
+        maxRetries = 2;
+        sysExGap = 0;
+        nextFree = 0;
+        successes = 0;
+    }
+
+
+    // Waits until a message of the given length can be sent, and books the wire time it needs.
+    // Returns the time (System.nanoTime()) it was released at, so the caller can time the send
+    // without reading the clock again
+    public long await(int length, boolean sysEx) {
+        if (!enabled) return System.nanoTime();
+
+        long now = System.nanoTime();
+        if (nextFree - now > 0) {
+            long start = now;
+            // parkNanos may return early, so loop until the deadline has passed
+            while (nextFree - now > 0) {
+                LockSupport.parkNanos(nextFree - now);
+                now = System.nanoTime();
+            }
+            waitedNanos += now - start;
+        } else {
+            // The wire has been idle, do not carry old credit
+            nextFree = now;
+        }
+
+        nextFree += length * 1_000_000_000L / bytesPerSecond;
+        if (sysEx) nextFree += sysExGap;
+        return now;
+    }
+
+    // Called after a message was sent without errors
+    public void success() {
+        if (!adaptive || sysExGap == 0) return;
+        if (++successes >= SUCCESSES_TO_SHRINK) {
+            successes = 0;
+            long gap = sysExGap - Math.max(MIN_GAP_STEP, sysExGap / 8);
+            sysExGap = Math.max(0, gap);
+        }
+    }
+
+    // Called after a message failed. Widens the gap and pushes the next message back by it
+    public void failure() {
+        failures++;
+        successes = 0;
+        if (!adaptive) return;
+        long gap = Math.min(MAX_GAP, Math.max(MIN_GAP_STEP, sysExGap * 2));
+        sysExGap = gap;
+        nextFree = System.nanoTime() + gap;
+        Log.debug("MidiScheduler: failure, SysEx gap is now {} us", gap / 1000);
+    }
+
+
+    // -+- Configuration -+-
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public void setBytesPerSecond(int bytesPerSecond) throws IllegalArgumentException {
+        if (bytesPerSecond < 1) throw new IllegalArgumentException("bytesPerSecond must be positive");
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    // How many times a failed message is sent again before giving up
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public void setMaxRetries(int maxRetries) throws IllegalArgumentException {
+        if (maxRetries < 0) throw new IllegalArgumentException("maxRetries can not be negative");
+        this.maxRetries = maxRetries;
+    }
+
+    public long getSysExGapNanos() {
+        return sysExGap;
+    }
+
+    public void setSysExGapNanos(long gap) throws IllegalArgumentException {
+        if (gap < 0 || gap > MAX_GAP) throw new IllegalArgumentException("gap out of range");
+        sysExGap = gap;
+    }
+
+
+    // -+- Statistics -+-
+
+    public long getWaitedNanos() {
+        return waitedNanos;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+}
@@ -0,0 +1,461 @@
+package app.com;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+// Outbound MIDI pipeline. Messages are stored in a bounded ring and sent to the receiver, in the
+// same order they were queued, by a single sender thread. The sender takes everything that is
+// waiting in the ring in one go (a batch) and sends it without holding the lock, so the producers
+// (usually the JavaFX thread) only block when the ring is completely full.
+//
+// Note and CC messages can be queued as plain status/data bytes with putShort(). Those are packed in
+// an int slot and turned into a message by the sender thread, which reuses one ShortMessage for all
+// of them, so sending them does not allocate anything once the queue is running.
+//
+// A whole stream of messages (their bytes one after the other, as on the wire) can also be queued in
+// a single slot with putStream(). The sender splits it and sends every message in turn, reusing its
+// messages as well.
+class MidiSendQueue {
+
+    // Default number of messages that fit in the ring. A full dump is around 50 messages
+    public static final int DEFAULT_CAPACITY = 256;
+
+    // Ring storage. A slot with a null message holds a stream if there is one, else a packed short
+    // message (status in the lowest byte, then data1 and data2) or, if the packed value is 0, a flush
+    // marker that only completes its future
+    private final MidiMessage[] messages;
+    private final CompletableFuture<Void>[] futures;
+    private final int[] shorts;
+    private final byte[][] streams;
+    private final SendProgress[] progresses;
+    private int head;
+    private int tail;
+    private int count;
+
+    // The sender copies the batch here, so the ring slots can be reused while it is sending
+    private final MidiMessage[] batchMessages;
+    private final CompletableFuture<Void>[] batchFutures;
+    private final int[] batchShorts;
+    private final byte[][] batchStreams;
+    private final SendProgress[] batchProgresses;
+
+    // Reused for every packed short message. Only touched by the sender thread. The receivers of
+    // javax.sound send the message before returning, so nothing keeps a reference to it
+    private final ShortMessage shortMessage;
+    // Same for the SysEx messages of streams. The bytes are copied to sysExBuffer first, since
+    // SysexMessage can only take them from the start of an array
+    private final SysexMessage sysExMessage;
+    private byte[] sysExBuffer;
+
+    private final ReentrantLock lock;
+    private final Condition notEmpty;
+    private final Condition notFull;
+
+    private volatile Receiver receiver;
+    private final MidiScheduler scheduler;
+    private final MidiMetrics metrics;
+    private final Thread sender;
+    // Last failure since the previous flush marker. Only touched by the sender thread
+    private Exception lastFailure;
+    private volatile boolean closed;
+
+    // Statistics
+    private volatile int maxDepth;
+    private volatile long sentMessages;
+    private volatile long sentBatches;
+    private volatile long failedMessages;
+    private volatile long busyNanos;
+
+
+    public MidiSendQueue(int capacity, MidiScheduler scheduler) {
+        this(capacity, scheduler, new MidiMetrics());
+    }
+
+    // Generic arrays can only be created raw
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MidiSendQueue(int capacity, MidiScheduler scheduler, MidiMetrics metrics) {
+
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive");
+
+        messages = new MidiMessage[capacity];
+        futures = new CompletableFuture[capacity];
+        shorts = new int[capacity];
+        batchMessages = new MidiMessage[capacity];
+        batchFutures = new CompletableFuture[capacity];
+        batchShorts = new int[capacity];
+        streams = new byte[capacity][];
+        batchStreams = new byte[capacity][];
+        progresses = new SendProgress[capacity];
+        batchProgresses = new SendProgress[capacity];
+        shortMessage = new ShortMessage();
+        sysExMessage = new SysexMessage();
+        sysExBuffer = new byte[SysExCodec.MAX_LENGTH];
+        head = 0;
+        tail = 0;
+        count = 0;
+
+        lock = new ReentrantLock();
+        notEmpty = lock.newCondition();
+        notFull = lock.newCondition();
+
+        receiver = null;
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        closed = false;
+
+        sender = new Thread(this::drainLoop, "midi-sender");
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+
+    // Queue a message. The future may be null when the caller does not need to know when it is sent.
+    // Blocks while the ring is full
+    public void put(MidiMessage message, CompletableFuture<Void> future) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == messages.length) notFull.await();
+            messages[tail] = message;
+            futures[tail] = future;
+            shorts[tail] = 0;
+            streams[tail] = null;
+            tail = (tail + 1) % messages.length;
+            count++;
+            if (count > maxDepth) maxDepth = count;
+            metrics.queueDepth(count);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Queue a short message from its raw bytes. The values must already be valid (status with the
+    // channel included, data bytes from 0 to 127). Blocks while the ring is full, but does not allocate
+    public void putShort(int status, int data1, int data2) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == messages.length) notFull.await();
+            messages[tail] = null;
+            futures[tail] = null;
+            shorts[tail] = (status & 0xFF) | (data1 & 0xFF) << 8 | (data2 & 0xFF) << 16;
+            streams[tail] = null;
+            tail = (tail + 1) % messages.length;
+            count++;
+            if (count > maxDepth) maxDepth = count;
+            metrics.queueDepth(count);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Queue a stream of complete messages (channel messages and SysEx) in one slot. The array is not
+    // copied, so it must not be modified afterwards. The progress (may be null) is advanced after every
+    // message, and the rest of the stream is skipped once it is cancelled. Blocks while the ring is full
+    public void putStream(byte[] stream, SendProgress progress) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == messages.length) notFull.await();
+            messages[tail] = null;
+            futures[tail] = null;
+            shorts[tail] = 0;
+            streams[tail] = stream;
+            progresses[tail] = progress;
+            tail = (tail + 1) % messages.length;
+            count++;
+            if (count > maxDepth) maxDepth = count;
+            metrics.queueDepth(count);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Returns a future that completes once every message queued before this call has been sent. It
+    // completes exceptionally if any of those messages (since the previous flush) could not be sent
+    public CompletableFuture<Void> flush() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            put(null, future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+
+    // Empties the ring without sending what was in it. The futures waiting on it (flushes included)
+    // complete with a CancellationException and the streams are cancelled. What the sender has already
+    // taken is still sent. Returns how many slots were discarded
+    public int discard() {
+        lock.lock();
+        try {
+            int n = count;
+            for (int i = 0; i < n; i++) {
+                if (futures[head] != null) futures[head].completeExceptionally(new CancellationException("Discarded"));
+                if (progresses[head] != null) progresses[head].cancel();
+                messages[head] = null;
+                futures[head] = null;
+                streams[head] = null;
+                progresses[head] = null;
+                head = (head + 1) % messages.length;
+            }
+            count = 0;
+            metrics.queueDepth(0);
+            notFull.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Stops the sender thread once everything already queued has been sent
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+
+    // Sender thread
+    private void drainLoop() {
+
+        while (true) {
+
+            // Take the whole batch from the ring
+            int n;
+            lock.lock();
+            try {
+                while (count == 0) {
+                    if (closed) return;
+                    notEmpty.awaitUninterruptibly();
+                }
+                n = count;
+                for (int i = 0; i < n; i++) {
+                    batchMessages[i] = messages[head];
+                    batchFutures[i] = futures[head];
+                    batchShorts[i] = shorts[head];
+                    batchStreams[i] = streams[head];
+                    batchProgresses[i] = progresses[head];
+                    messages[head] = null;
+                    futures[head] = null;
+                    streams[head] = null;
+                    progresses[head] = null;
+                    head = (head + 1) % messages.length;
+                }
+                count = 0;
+                metrics.queueDepth(0);
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            // Send it in order
+            long start = System.nanoTime();
+            int sent = 0;
+            int failed = 0;
+            Receiver r = receiver;
+            for (int i = 0; i < n; i++) {
+                MidiMessage message = batchMessages[i];
+                CompletableFuture<Void> future = batchFutures[i];
+                int packed = batchShorts[i];
+                byte[] stream = batchStreams[i];
+                SendProgress progress = batchProgresses[i];
+                batchMessages[i] = null;
+                batchFutures[i] = null;
+                batchStreams[i] = null;
+                batchProgresses[i] = null;
+
+                if (stream != null) {
+                    int streamFailed = sendStream(r, stream, progress);
+                    failed += streamFailed;
+                    continue;
+                }
+
+                // Flush marker
+                if (message == null && packed == 0) {
+                    // Count what was sent so far, so whoever waits on the marker sees it
+                    sentMessages += sent;
+                    failedMessages += failed;
+                    sent = 0;
+                    failed = 0;
+                    if (future != null) {
+                        if (lastFailure == null) future.complete(null);
+                        else future.completeExceptionally(lastFailure);
+                    }
+                    lastFailure = null;
+                    continue;
+                }
+
+                try {
+                    if (r == null) throw new IllegalStateException("The device is not initialized");
+                    if (message == null) {
+                        shortMessage.setMessage(packed & 0xFF, (packed >> 8) & 0xFF, (packed >> 16) & 0xFF);
+                        message = shortMessage;
+                    }
+                    send(r, message);
+                    sent++;
+                    if (future != null) future.complete(null);
+                } catch (Exception e) {
+                    failed++;
+                    lastFailure = e;
+                    if (future != null) future.completeExceptionally(e);
+                }
+            }
+
+            busyNanos += System.nanoTime() - start;
+            sentMessages += sent;
+            failedMessages += failed;
+            sentBatches++;
+        }
+    }
+
+    // Splits a stream into its messages and sends them. Returns how many failed; the ones that were
+    // sent are counted here
+    private int sendStream(Receiver r, byte[] stream, SendProgress progress) {
+        int failed = 0;
+        int sent = 0;
+        int i = 0;
+        while (i < stream.length) {
+            if (progress != null && progress.isCancelled()) break;
+            int length = messageLength(stream, i);
+            MidiMessage message;
+            try {
+                // Can not tell where the next message starts, so drop the rest
+                if (length < 0) throw new InvalidMidiDataException("Malformed message in stream at " + i);
+                if (stream[i] == (byte) 0xF0) {
+                    if (sysExBuffer.length < length) sysExBuffer = new byte[length];
+                    System.arraycopy(stream, i, sysExBuffer, 0, length);
+                    sysExMessage.setMessage(sysExBuffer, length);
+                    message = sysExMessage;
+                } else {
+                    shortMessage.setMessage(stream[i] & 0xFF, stream[i + 1], length == 3 ? stream[i + 2] : 0);
+                    message = shortMessage;
+                }
+            } catch (InvalidMidiDataException e) {
+                lastFailure = e;
+                failed++;
+                break;
+            }
+
+            try {
+                if (r == null) throw new IllegalStateException("The device is not initialized");
+                send(r, message);
+                sent++;
+            } catch (Exception e) {
+                lastFailure = e;
+                failed++;
+            }
+            if (progress != null) progress.advance();
+            i += length;
+        }
+        sentMessages += sent;
+        return failed;
+    }
+
+    // Length of the message that starts at stream[offset]: a SysEx up to its 247, or a channel message
+    // (program change and channel pressure have one data byte, the rest two). -1 if it is not a
+    // complete message
+    static int messageLength(byte[] stream, int offset) {
+        int status = stream[offset] & 0xFF;
+        if (status == 0xF0) {
+            int end = offset + 1;
+            while (end < stream.length && stream[end] != (byte) 0xF7) end++;
+            return end == stream.length ? -1 : end + 1 - offset;
+        }
+        if (status < 0x80 || status >= 0xF0) return -1;
+        int command = status & 0xF0;
+        int length = (command == ShortMessage.PROGRAM_CHANGE || command == ShortMessage.CHANNEL_PRESSURE) ? 2 : 3;
+        return offset + length > stream.length ? -1 : length;
+    }
+
+    // Sends one message at the pace allowed by the scheduler. A failed message is sent again (after
+    // the scheduler has widened its gap) until it goes through or the retries run out
+    private void send(Receiver r, MidiMessage message) throws Exception {
+        boolean sysEx = message instanceof SysexMessage;
+        // With running status the message may take a byte less on the wire
+        int length = r instanceof RawMidiReceiver raw ? raw.wireLength(message) : message.getLength();
+        int attempts = 0;
+        while (true) {
+            long start = scheduler.await(length, sysEx);
+            try {
+                r.send(message, -1);
+                metrics.sent(MidiMetrics.typeOf(message.getStatus()), length, System.nanoTime() - start);
+                scheduler.success();
+                return;
+            } catch (Exception e) {
+                scheduler.failure();
+                metrics.failure();
+                if (attempts++ >= scheduler.getMaxRetries()) {
+                    metrics.dropped();
+                    throw e;
+                }
+            }
+        }
+    }
+
+
+    // -+- Statistics -+-
+
+    // Counters, rates and send latency (see MidiMetrics)
+    public MidiMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getDepth() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getCapacity() {
+        return messages.length;
+    }
+
+    public long getSentMessages() {
+        return sentMessages;
+    }
+
+    public long getFailedMessages() {
+        return failedMessages;
+    }
+
+    public long getSentBatches() {
+        return sentBatches;
+    }
+
+    // Messages per second while the sender was actually sending
+    public double getThroughput() {
+        long busy = busyNanos;
+        if (busy == 0) return 0;
+        return sentMessages * 1e9 / busy;
+    }
+}
@@ -0,0 +1,101 @@
+package app.com;
+
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+
+// Receiver that writes the messages as raw MIDI bytes to a stream (a serial port, a DIN interface
+// that takes a byte stream, a file...), with running status (see RunningStatusEncoder). The
+// javax.sound.midi devices take whole messages and serialise them themselves, so this is only for
+// outputs that take bytes.
+//
+// Used by TweakerHandler.attachRaw(). Only the sender thread of the handler writes to it.
+public class RawMidiReceiver implements Receiver {
+
+    private final OutputStream sink;
+    private final RunningStatusEncoder encoder;
+    // Grown when a longer SysEx comes
+    private byte[] buffer;
+    private boolean closed;
+
+
+    public RawMidiReceiver(OutputStream sink) {
+        if (sink == null) throw new IllegalArgumentException("sink can not be null");
+        this.sink = sink;
+        encoder = new RunningStatusEncoder();
+        buffer = new byte[256];
+        closed = false;
+    }
+
+
+    @Override
+    public void send(MidiMessage message, long timeStamp) {
+        if (closed) throw new IllegalStateException("The receiver is closed");
+        try {
+            // ShortMessage can be read without copying its bytes
+            if (message instanceof ShortMessage sm && sm.getStatus() < 0xF0) {
+                int n = encoder.encode(sm.getStatus(), sm.getData1(), sm.getData2(), sm.getLength(), buffer, 0);
+                try {
+                    sink.write(buffer, 0, n);
+                } catch (IOException e) {
+                    encoder.reset();
+                    throw e;
+                }
+            } else {
+                write(message.getMessage(), 0, message.getLength());
+            }
+            // Paced by the sender, so every message should leave now
+            sink.flush();
+        } catch (IOException e) {
+            // Whatever reached the device, the sender retries the message: it has to carry its status
+            encoder.reset();
+            throw new IllegalStateException("Could not write to the output (" + e.getMessage() + ")", e);
+        }
+    }
+
+    // Writes one complete message from src[offset, offset + length). If the write fails, the running
+    // status is dropped, so the message (if it is sent again) and the ones after it carry their status
+    public void write(byte[] src, int offset, int length) throws IOException {
+        if (buffer.length < length) buffer = new byte[length];
+        int n = encoder.encode(src, offset, length, buffer, 0);
+        try {
+            sink.write(buffer, 0, n);
+        } catch (IOException e) {
+            encoder.reset();
+            throw e;
+        }
+    }
+
+    // Bytes this message will take on the wire, to pace it. Does not change the running status
+    public int wireLength(MidiMessage message) {
+        int length = message.getLength();
+        if (message instanceof ShortMessage sm && sm.getStatus() < 0xF0 && encoder.dropsStatus(sm.getStatus())) {
+            return length - 1;
+        }
+        return length;
+    }
+
+    public void flush() throws IOException {
+        sink.flush();
+    }
+
+    @Override
+    public void close() {
+        if (closed) return;
+        closed = true;
+        try {
+            sink.close();
+        } catch (IOException e) {
+            // Nothing else can be done with it
+        }
+    }
+
+
+    // Running status settings and how many bytes it saved
+    public RunningStatusEncoder getEncoder() {
+        return encoder;
+    }
+}
@@ -0,0 +1,122 @@
+package app.com;
+
+
+// Serialises complete MIDI messages to raw bytes using running status: a channel message with the
+// same status byte as the previous one is written without it, so a run of notes (or CCs) on one
+// channel takes two bytes per message instead of three. Following the MIDI specification:
+//  - Channel messages (0x80 - 0xEF) set the running status
+//  - SysEx and system common messages (0xF0 - 0xF7) clear it, so the next channel message is
+//    written in full
+//  - Real time messages (0xF8 - 0xFF) are written as they are and leave it alone
+//
+// The encoder keeps the running status between calls, so the bytes it writes must reach the device in
+// that order. Call reset() whenever that is not true anymore (e.g. after reconnecting), and the next
+// channel message will carry its status again.
+public final class RunningStatusEncoder {
+
+    // Status of the last channel message written, or -1
+    private int runningStatus;
+
+    // Write the status again after this many messages without it, so a receiver that lost a byte (or
+    // joined late) can resynchronise. 0 never does
+    private int refreshInterval;
+    private int sinceRefresh;
+
+    // Bytes given and bytes written, to tell how much was saved
+    private long inputBytes;
+    private long outputBytes;
+
+
+    public RunningStatusEncoder() {
+        runningStatus = -1;
+        refreshInterval = 0;
+        sinceRefresh = 0;
+        inputBytes = 0;
+        outputBytes = 0;
+    }
+
+
+    public void reset() {
+        runningStatus = -1;
+        sinceRefresh = 0;
+    }
+
+    public void setRefreshInterval(int refreshInterval) {
+        if (refreshInterval < 0) throw new IllegalArgumentException("refreshInterval can not be negative");
+        this.refreshInterval = refreshInterval;
+    }
+
+    public int getRefreshInterval() {
+        return refreshInterval;
+    }
+
+
+    // Whether the status byte of a message with this status would be dropped, without writing anything
+    public boolean dropsStatus(int status) {
+        return status == runningStatus && (refreshInterval == 0 || sinceRefresh < refreshInterval);
+    }
+
+    // Writes the message in src[offset, offset + length) to dst[dstOffset] and returns how many bytes
+    // were written (length or length - 1). dst needs room for length bytes
+    public int encode(byte[] src, int offset, int length, byte[] dst, int dstOffset) {
+        int status = src[offset] & 0xFF;
+        inputBytes += length;
+
+        if (status >= 0xF8) {
+            dst[dstOffset] = src[offset];
+            outputBytes++;
+            return 1;
+        }
+        if (status >= 0xF0) {
+            runningStatus = -1;
+            System.arraycopy(src, offset, dst, dstOffset, length);
+            outputBytes += length;
+            return length;
+        }
+
+        if (dropsStatus(status)) {
+            System.arraycopy(src, offset + 1, dst, dstOffset, length - 1);
+            sinceRefresh++;
+            outputBytes += length - 1;
+            return length - 1;
+        }
+        runningStatus = status;
+        sinceRefresh = 0;
+        System.arraycopy(src, offset, dst, dstOffset, length);
+        outputBytes += length;
+        return length;
+    }
+
+    // Same for a channel message given by its bytes (data2 is ignored if length is 2). Returns the
+    // bytes written
+    public int encode(int status, int data1, int data2, int length, byte[] dst, int dstOffset) {
+        if (status < 0x80 || status >= 0xF0) throw new IllegalArgumentException("Not a channel message status: " + status);
+        inputBytes += length;
+        int at = dstOffset;
+        if (dropsStatus(status)) {
+            sinceRefresh++;
+        } else {
+            runningStatus = status;
+            sinceRefresh = 0;
+            dst[at++] = (byte) status;
+        }
+        dst[at++] = (byte) data1;
+        if (length == 3) dst[at++] = (byte) data2;
+        outputBytes += at - dstOffset;
+        return at - dstOffset;
+    }
+
+
+    public long getInputBytes() {
+        return inputBytes;
+    }
+
+    public long getOutputBytes() {
+        return outputBytes;
+    }
+
+    // Fraction of the bytes saved so far (0 to 1/3)
+    public double getSavings() {
+        return inputBytes == 0 ? 0 : 1 - (double) outputBytes / inputBytes;
+    }
+}
@@ -0,0 +1,65 @@
+package app.com;
+
+
+// Follows a stream of messages through the send queue: how many have been handled out of the total,
+// and whether the rest should be skipped. The sender thread advances it after every message (sent or
+// failed) and calls the listener, if any; cancel() can be called from any thread and stops the stream
+// before its next message.
+public class SendProgress {
+
+    private final int total;
+    private volatile int sent;
+    private volatile boolean cancelled;
+    private volatile Runnable listener;
+
+
+    public SendProgress(byte[] stream) {
+        int count = 0;
+        int i = 0;
+        while (i < stream.length) {
+            int length = MidiSendQueue.messageLength(stream, i);
+            if (length < 0) break;
+            i += length;
+            count++;
+        }
+        total = count;
+        sent = 0;
+        cancelled = false;
+        listener = null;
+    }
+
+
+    // Called on the sender thread after every message, so it must be quick
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    // Only called by the sender thread
+    void advance() {
+        sent++;
+        Runnable l = listener;
+        if (l != null) l.run();
+    }
+
+
+    public int getTotal() {
+        return total;
+    }
+
+    // Messages handled so far
+    public int getSent() {
+        return sent;
+    }
+
+    public boolean isDone() {
+        return sent >= total;
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+}
@@ -0,0 +1,113 @@
+package app.com;
+
+
+// Encodes and decodes the SysEx blocks that set the mappings of the Tweaker. Every block is
+//   240 0 1 106 1 <block>, then one (CNOT, mapping) pair per control, then 247
+// with these blocks:
+//  1 buttons (50 controls, 107 bytes), 2 potentiometers (5, 17 bytes), 3 encoders (7, 21 bytes) and
+//  4 pads (8 hits and then 8 retriggers, 39 bytes)
+//
+// The CNOT byte packs the channel and the output type:
+//   xx c3 c2 c1 c0 m2 m1 m0
+// With m2:m0 being the output type (0 = note, 1 = CC) and c3:c0 being the channel number (0 to 15).
+//
+// Everything works on byte arrays given by the caller, so a buffer can be reused for every block and
+// nothing is allocated.
+public final class SysExCodec {
+
+    // Block numbers
+    public static final int BUTTONS = 1;
+    public static final int POTENTIOMETERS = 2;
+    public static final int ENCODERS = 3;
+    public static final int PADS = 4;
+
+    public static final int HEADER_LENGTH = 6;
+    // Length of the largest block (buttons), enough for a buffer that holds any of them
+    public static final int MAX_LENGTH = HEADER_LENGTH + 50 * 2 + 1;
+
+    private static final byte[] HEADER = {(byte) 240, 0, 1, 106, 1};
+    private static final byte END = (byte) 247;
+
+    // Layouts, indexed by block number
+    private static final int[] ENTRIES = {0, 50, 5, 7, 16};
+    private static final int[] LENGTHS = new int[ENTRIES.length];
+
+    static {
+        for (int b = 1; b < ENTRIES.length; b++) LENGTHS[b] = HEADER_LENGTH + ENTRIES[b] * 2 + 1;
+    }
+
+
+    private SysExCodec() {
+    }
+
+
+    // Number of (CNOT, mapping) pairs of a block
+    public static int entries(int block) {
+        checkBlock(block);
+        return ENTRIES[block];
+    }
+
+    // Length of a block in bytes, header and end included
+    public static int length(int block) {
+        checkBlock(block);
+        return LENGTHS[block];
+    }
+
+    private static void checkBlock(int block) {
+        if (block < BUTTONS || block > PADS) throw new IllegalArgumentException("Unknown block " + block);
+    }
+
+
+    // -+- Encoding -+-
+
+    // Channel (1 - 16) and output type (true for notes) packed as described above
+    public static byte cnot(int channel, boolean outputType) {
+        if (channel < 1 || channel > 16) throw new IllegalArgumentException("channelNumber out of bounds");
+        return (byte) ((channel - 1) << 3 | (outputType ? 0 : 1));
+    }
+
+    // Writes the header and the end of a block at dst[offset]. The entries are then filled with
+    // put(). Returns the length of the block
+    public static int begin(int block, byte[] dst, int offset) {
+        int length = length(block);
+        System.arraycopy(HEADER, 0, dst, offset, HEADER.length);
+        dst[offset + HEADER.length] = (byte) block;
+        dst[offset + length - 1] = END;
+        return length;
+    }
+
+    // Writes one entry of the block that starts at dst[offset]
+    public static void put(byte[] dst, int offset, int entry, int channel, boolean outputType, int mapping) {
+        int at = offset + HEADER_LENGTH + entry * 2;
+        dst[at] = cnot(channel, outputType);
+        dst[at + 1] = (byte) (mapping & 0x7F);
+    }
+
+
+    // -+- Decoding -+-
+
+    // Block number of the message in src[offset, offset + length), or -1 if it is not a well formed
+    // mapping block
+    public static int blockOf(byte[] src, int offset, int length) {
+        if (length < HEADER_LENGTH + 1) return -1;
+        for (int i = 0; i < HEADER.length; i++) if (src[offset + i] != HEADER[i]) return -1;
+        int block = src[offset + HEADER.length];
+        if (block < BUTTONS || block > PADS) return -1;
+        if (length != LENGTHS[block] || src[offset + length - 1] != END) return -1;
+        return block;
+    }
+
+    // Channel (1 - 16) of an entry of the block that starts at src[offset]
+    public static int channel(byte[] src, int offset, int entry) {
+        return ((src[offset + HEADER_LENGTH + entry * 2] >> 3) & 0xF) + 1;
+    }
+
+    // Output type of an entry, true for notes
+    public static boolean outputType(byte[] src, int offset, int entry) {
+        return (src[offset + HEADER_LENGTH + entry * 2] & 7) == 0;
+    }
+
+    public static int mapping(byte[] src, int offset, int entry) {
+        return src[offset + HEADER_LENGTH + entry * 2 + 1] & 0x7F;
+    }
+}
@@ -1,8 +1,13 @@
 package app.com;
 
+import app.log.Log;
+
 import javax.sound.midi.*;
+import java.io.OutputStream;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
 
 public class TweakerHandler {
@@ -20,71 +25,295 @@ public class TweakerHandler {
 
 
 
-    private MidiDevice device;
-    private Receiver receiver;
+    private volatile MidiDevice device;
+    private volatile Receiver receiver;
+    // Last device opened
+    private volatile MidiDevice.Info deviceInfo;
+    private final DeviceRegistry registry;
+    private volatile boolean autoReconnect;
+    // Whether openDevice opens the input too. Off for handlers that only send (see HandlerPool)
+    private volatile boolean withInput;
+    private volatile long reconnects;
+    // Outbound messages go through this queue, so callers never wait for the hardware
+    private final MidiSendQueue queue;
+    // Paces the queue to what the hardware can take
+    private final MidiScheduler scheduler;
+    // What goes out, for the UI and the benchmarks
+    private final MidiMetrics metrics;
+    // Input side: the device (may be the same as the output one) and the transmitter feeding the ring
+    private MidiDevice inputDevice;
+    private volatile Transmitter transmitter;
+    private final MidiInput input;
+    private final DeviceRegistry.Listener listener;
+    private LedAnimator animator;
 
 
     public TweakerHandler() {
+        this(DeviceRegistry.getDefault());
+    }
+
+    public TweakerHandler(DeviceRegistry registry) {
         // Set some state variables
         device = null;
         receiver = null;
+        deviceInfo = null;
+        scheduler = new MidiScheduler();
+        metrics = new MidiMetrics();
+        queue = new MidiSendQueue(MidiSendQueue.DEFAULT_CAPACITY, scheduler, metrics);
+        inputDevice = null;
+        transmitter = null;
+        input = new MidiInput();
+        autoReconnect = true;
+        withInput = true;
+        reconnects = 0;
+
+        // Follow the device when it is unplugged and plugged again
+        this.registry = registry;
+        listener = new DeviceRegistry.Listener() {
+            @Override
+            public void attached(MidiDevice.Info info) {
+                if (autoReconnect && !isConnected() && DeviceRegistry.sameDevice(info, deviceInfo)) {
+                    try {
+                        // The provider lists the device again with a new info, which is the one that opens
+                        reconnect(info);
+                        Log.info("TweakerHandler: Reconnected to {}", info.getName());
+                    } catch (Exception e) {
+                        Log.warn("TweakerHandler: Could not reconnect ({})", e.getMessage());
+                    }
+                }
+            }
+
+            @Override
+            public void detached(MidiDevice.Info info) {
+                // Only for its own unit. Another one that looks the same may have gone instead (a row of
+                // Tweakers), which is only sure when the info is this very object or nothing like it is
+                // listed anymore
+                if (!isConnected()) return;
+                if (info == deviceInfo || DeviceRegistry.sameDevice(info, deviceInfo) && !registry.isPresent(deviceInfo)) {
+                    Log.warn("TweakerHandler: {} was unplugged", info.getName());
+                    closeDevice();
+                }
+            }
+        };
+        registry.addListener(listener);
     }
 
 
+    // Connected to a device, real or virtual
     public boolean isConnected() {
-        return (device != null);
+        return (receiver != null);
     }
 
-    // Opens the device given a specific info. Used in automaticOpen and manualOpen
-    private void openDevice(MidiDevice.Info info) throws Exception {
+    // Opens the device given a specific info. Used in automaticOpen, manualOpen and reconnect
+    private synchronized void openDevice(MidiDevice.Info info) throws Exception {
 
         // If the device is already open, try to close it beforehand
         if (device != null && device.isOpen()) device.close();
         // Get the MIDIDevice and open it
-        device = MidiSystem.getMidiDevice(info);
-        device.open();
+        MidiDevice d = MidiSystem.getMidiDevice(info);
+        d.open();
 
         // If there is already a receiver around, close it
         if (receiver != null) receiver.close();
         // Open the receiver of the device
-        receiver = device.getReceiver();
+        receiver = d.getReceiver();
+        queue.setReceiver(receiver);
+        device = d;
+        // Remember it, so it can be reopened without looking for it again
+        deviceInfo = info;
+
+        // The input is optional: without it dumping still works, only the features that listen to
+        // the controller do not
+        if (!withInput) return;
+        try {
+            openInput(info);
+        } catch (Exception e) {
+            Log.warn("openDevice: Could not open the MIDI input ({})", e.getMessage());
+        }
     }
 
+    // Closes everything after the device went away. The last device info is kept for reconnect()
+    private synchronized void closeDevice() {
+        queue.setReceiver(null);
+        if (transmitter != null) transmitter.close();
+        if (inputDevice != null && inputDevice != device && inputDevice.isOpen()) inputDevice.close();
+        if (receiver != null) receiver.close();
+        if (device != null && device.isOpen()) device.close();
+        transmitter = null;
+        inputDevice = null;
+        receiver = null;
+        device = null;
+    }
 
-    // Finds a Tweaker MIDI device and opens it. Returns true if successful operation
-    public void automaticOpen() throws Exception {
+    // Connects the handler to something that is not a MidiDevice, e.g. a VirtualTweaker. The input
+    // (may be null) feeds the same ring as a real device would
+    public synchronized void attach(Receiver out, Transmitter in) {
+        attach(out, in, null);
+    }
 
-        System.out.println("automaticOpen: Trying to autoconnect");
-        // Get the list of MIDI devices
-        MidiDevice.Info[] midiDeviceInfo = MidiSystem.getMidiDeviceInfo();
-        // The device ID will be stored here
-        MidiDevice.Info deviceInfo = null;
+    // Same, standing for a listed device (may be null), which getDeviceInfo() returns afterwards. Lets
+    // a VirtualTweaker take the place of a device in the registry, e.g. in a HandlerPool
+    public synchronized void attach(Receiver out, Transmitter in, MidiDevice.Info info) {
+        if (out == null) throw new IllegalArgumentException("out can not be null");
+        closeDevice();
+        deviceInfo = info;
+        receiver = out;
+        queue.setReceiver(out);
+        if (in != null) {
+            transmitter = in;
+            in.setReceiver(input);
+        }
+        Log.info("attach: Connected to {}", out.getClass().getSimpleName());
+    }
 
-        // Try to find the device automatically
-        for (MidiDevice.Info i : midiDeviceInfo) {
-            System.out.println("name=" + i.getName() + " desc=" + i.getDescription());
-
-            // Windows
-            if (i.getName().equals("Tweaker") && i.getDescription().equals("External MIDI Port")) {
-                // Set the deviceInfo to the one we found
-                deviceInfo = i;
-                break;
-            }
+    // Raw byte output: the messages are written to the stream with running status (see
+    // RawMidiReceiver), for outputs that take bytes instead of javax.sound.midi messages. in may be
+    // null if there is no way to read from the device
+    public void attachRaw(OutputStream out, Transmitter in) {
+        if (out == null) throw new IllegalArgumentException("out can not be null");
+        attach(new RawMidiReceiver(out), in);
+    }
+
+    // Closes the device and stops the sender thread. The handler can not be used afterwards
+    public void close() {
+        registry.removeListener(listener);
+        autoReconnect = false;
+        queue.close();
+        closeDevice();
+    }
+
+    // Last device opened, or null
+    public MidiDevice.Info getDeviceInfo() {
+        return deviceInfo;
+    }
+
+    public String getDeviceName() {
+        MidiDevice.Info info = deviceInfo;
+        return info == null ? null : info.getName();
+    }
+
+    // Attaches the input ring to the transmitter of the device. Some systems (e.g. Windows) list the
+    // input and the output of the same hardware as two devices with the same name, so if the output
+    // device has no transmitter, look for its input twin
+    private void openInput(MidiDevice.Info outputInfo) throws Exception {
 
-            // macOS
-            if (i.getDescription().contains("Tweaker")) {
-                deviceInfo = i;
-                break;
+        if (transmitter != null) transmitter.close();
+        transmitter = null;
+        if (inputDevice != null && inputDevice != device && inputDevice.isOpen()) inputDevice.close();
+        inputDevice = null;
+
+        MidiDevice in = null;
+        if (device.getMaxTransmitters() != 0) {
+            in = device;
+        } else {
+            for (MidiDevice.Info i : registry.getDevices()) {
+                if (i == outputInfo || !i.getName().equals(outputInfo.getName())) continue;
+                MidiDevice candidate = MidiSystem.getMidiDevice(i);
+                if (candidate.getMaxTransmitters() != 0) {
+                    in = candidate;
+                    break;
+                }
             }
         }
+        if (in == null) throw new Exception("The device has no MIDI input");
+
+        if (!in.isOpen()) in.open();
+        inputDevice = in;
+        transmitter = in.getTransmitter();
+        transmitter.setReceiver(input);
+        Log.info("openInput: Listening to {}", in.getDeviceInfo().getName());
+    }
+
+
+    // Whether what the device sends is being captured
+    public boolean hasInput() {
+        return transmitter != null;
+    }
+
+    // Everything the device sends ends up in this ring. Each reader takes its own cursor from it
+    public MidiInput getInput() {
+        return input;
+    }
+
 
-        if (deviceInfo == null) {
-            System.out.println("automaticOpen: Tweaker MIDI hardware not found");
+    // Finds a Tweaker MIDI device and opens it. Uses the device list cached by the registry, so it only
+    // waits for an enumeration if the first one has not finished yet
+    public void automaticOpen() throws Exception {
+
+        Log.info("automaticOpen: Trying to autoconnect");
+        // Try to find the device automatically
+        MidiDevice.Info info = registry.findTweaker();
+
+        if (info == null) {
+            // Stand in for the hardware if asked to
+            if (Boolean.getBoolean("tweaker.virtual")) {
+                VirtualTweaker v = new VirtualTweaker();
+                attach(v, v);
+                return;
+            }
+            Log.warn("automaticOpen: Tweaker MIDI hardware not found");
             throw new Exception("Tweaker hardware not found");
         }
 
-        openDevice(deviceInfo);
-        System.out.println("automaticOpen: Connected successfully");
+        openDevice(info);
+        Log.info("automaticOpen: Connected successfully");
+    }
+
+    // Same as automaticOpen, on a background thread
+    public CompletableFuture<Void> automaticOpenAsync() {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                automaticOpen();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        });
+    }
+
+
+    // Opens the given device, e.g. one of the Tweakers listed by the registry
+    public void open(MidiDevice.Info info) throws Exception {
+        open(info, true);
+    }
+
+    // Same, with or without the input. A handler that only sends must not open it: where the input is
+    // listed apart from the output, it is only found by name, so with several identical devices it may
+    // be the input of another handler, which would be closed with this one. Kept for the reconnections
+    public void open(MidiDevice.Info info, boolean withInput) throws Exception {
+        if (info == null) throw new IllegalArgumentException("info can not be null");
+        this.withInput = withInput;
+        openDevice(info);
+        Log.info("open: Connected to {}{}", info.getName(), withInput ? "" : " (output only)");
+    }
+
+
+    // Opens again the last device that was opened. MidiSystem only opens the info objects it lists
+    // now, and a device that was unplugged and plugged again is listed with a new one, so the current
+    // info of the same device is looked for in the registry (the old one is tried if it is not there)
+    public void reconnect() throws Exception {
+        MidiDevice.Info last = deviceInfo;
+        if (last == null) throw new Exception("No device has been opened yet");
+        // Waits for the first enumeration
+        registry.getDevices();
+        MidiDevice.Info current = registry.find(last);
+        reconnect(current != null ? current : last);
+    }
+
+    // Opens the last device again through the info it is listed with now, which becomes deviceInfo
+    public void reconnect(MidiDevice.Info info) throws Exception {
+        if (info == null) throw new IllegalArgumentException("info can not be null");
+        openDevice(info);
+        reconnects++;
+        metrics.reconnect();
+    }
+
+    // Whether the handler reopens its device by itself when it is plugged again
+    public void setAutoReconnect(boolean autoReconnect) {
+        this.autoReconnect = autoReconnect;
+    }
+
+    public long getReconnects() {
+        return reconnects;
     }
 
 
@@ -93,163 +322,233 @@ public class TweakerHandler {
     public void manualOpen(int id) throws Exception {
 
         // Get the list of MIDI devices
-        MidiDevice.Info[] midiDeviceInfo = MidiSystem.getMidiDeviceInfo();
+        List<MidiDevice.Info> midiDeviceInfo = registry.getDevices();
 
         // Check whether the argument makes sense
-        if (id < 0 || id > (midiDeviceInfo.length - 1)) {
-            System.out.println("manualOpen: Argument id is invalid -- negative or too high");
+        if (id < 0 || id > (midiDeviceInfo.size() - 1)) {
+            Log.warn("manualOpen: Argument id is invalid -- negative or too high");
         } else {
             // Store the device info
-            MidiDevice.Info deviceInfo = midiDeviceInfo[id];
-            openDevice(deviceInfo);
+            openDevice(midiDeviceInfo.get(id));
         }
     }
 
 
     // Send note message to device
     public void sendNote(int channel, int note, int velocity) {
-        System.out.println("sendNote: ch: " + channel + ", cc: " + note + ", bb: " + velocity);
-
-        // Internally the channel number has a range of 0 to 15 instead of the human readable 1 to 16
-        channel--;
         // Check for arguments correctness. Our operational range for the byte data type is 0 to 127
-        if (channel < 0 || channel > 15) {
-            System.out.println("sendNote: channel argument is out of operational range (0 - 15)");
+        if (channel < 1 || channel > 16) {
+            Log.warn("sendNote: channel argument is out of operational range (1 - 16)");
             return;
         }
-        if (note < 0) {
-            System.out.println("sendNote: note argument is out of operational range (0 - 127)");
+        if (note < 0 || note > 127) {
+            Log.warn("sendNote: note argument is out of operational range (0 - 127)");
             return;
         }
-        if (velocity < 0) {
-            System.out.println("sendNote: velocity argument is out of operational range (0 - 127)");
+        if (velocity < 0 || velocity > 127) {
+            Log.warn("sendNote: velocity argument is out of operational range (0 - 127)");
             return;
         }
 
         // Check the status of the device and receiver objects
-        if (device == null || receiver == null) {
-            System.out.println("sendNote: The device is not initialized -- calling automaticOpen should solve this");
+        if (receiver == null) {
+            Log.warn("sendNote: The device is not initialized -- calling automaticOpen should solve this");
             return;
         }
 
-        ShortMessage message = new ShortMessage();
         // IMPORTANT STUFF
         // - The channel goes from 0 to 15 instead of 1 to 16
-        // - In the case of ShortMessage.CONTROL_CHANGEs, data1 is CC number and data2 is velocity
-        try {
-            message.setMessage(ShortMessage.NOTE_ON, channel, note, velocity);
-        } catch (Exception e) {
-            System.out.println("sendNote: Could not set CC message data");
-            e.printStackTrace();
-            return;
-        }
-
-        receiver.send(message, -1);
+        // - In the case of ShortMessage.NOTE_ONs, data1 is note number and data2 is velocity
+        enqueueShort(ShortMessage.NOTE_ON | (channel - 1), note, velocity);
     }
 
 
     // Send CC message to device
     public void sendCC(int channel, int cc, int velocity) {
-        System.out.println("sendCC: ch: " + channel + ", cc: " + cc + ", bb: " + velocity);
-
-        // Internally the channel number has a range of 0 to 15 instead of the human readable 1 to 16
-        channel--;
         // Check for arguments correctness. Our operational range for the byte data type is 0 to 127
-        if (channel < 0 || channel > 15) {
-            System.out.println("sendCC: channel argument is out of operational range (0 - 15)");
+        if (channel < 1 || channel > 16) {
+            Log.warn("sendCC: channel argument is out of operational range (1 - 16)");
             return;
         }
         if (cc < 0 || cc > 127) {
-            System.out.println("sendCC: note argument is out of operational range (0 - 127)");
+            Log.warn("sendCC: note argument is out of operational range (0 - 127)");
             return;
         }
         if (velocity < 0 || velocity > 127) {
-            System.out.println("sendCC: velocity argument is out of operational range (0 - 127)");
+            Log.warn("sendCC: velocity argument is out of operational range (0 - 127)");
             return;
         }
 
         // Check the status of the device and receiver objects
-        if (device == null || receiver == null) {
-            System.out.println("sendCC: The device is not initialized -- calling automaticOpen should solve this");
+        if (receiver == null) {
+            Log.warn("sendCC: The device is not initialized -- calling automaticOpen should solve this");
             return;
         }
 
-        ShortMessage message = new ShortMessage();
         // IMPORTANT STUFF
         // - The channel goes from 0 to 15 instead of 1 to 16
         // - In the case of ShortMessage.CONTROL_CHANGEs, data1 is CC number and data2 is velocity
-        try {
-            message.setMessage(ShortMessage.CONTROL_CHANGE, channel, cc, velocity);
-        } catch (Exception e) {
-            System.out.println("sendCC: Could not set CC message data");
-            e.printStackTrace();
-            return;
-        }
+        enqueueShort(ShortMessage.CONTROL_CHANGE | (channel - 1), cc, velocity);
+    }
 
-        receiver.send(message, -1);
 
+    // Send SysEx message to device. The returned future completes when the message has been handed
+    // to the receiver, or exceptionally if the receiver rejected it
+    public CompletableFuture<Void> sendSysEx(byte[] message) throws Exception {
+        return sendSysEx(message, message.length);
     }
 
-
-    // Send SysEx message to device
-    public void sendSysEx(byte[] message) throws Exception {
+    // Same, with the message in the first length bytes of the array. The bytes are copied, so the
+    // array can be reused as soon as this returns
+    public CompletableFuture<Void> sendSysEx(byte[] message, int length) throws Exception {
 
         // Check the status of the device and receiver objects
-        if (device == null || receiver == null) {
-            System.out.println("sendCC: The device is not initialized -- calling automaticOpen should solve this");
+        if (receiver == null) {
+            Log.warn("sendSysEx: The device is not initialized -- calling automaticOpen should solve this");
             throw new Exception("sendSysEx: Device not initialized");
         }
 
         // Create the message object from the array
         SysexMessage sysexMessage = new SysexMessage();
-        sysexMessage.setMessage(message, message.length);
+        sysexMessage.setMessage(message, length);
 
-        receiver.send(sysexMessage, -1);
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        enqueue(sysexMessage, future);
+        return future;
     }
 
 
-    // Light show
-    public void lightShow() {
+    // Send a stream of complete messages, one after the other as on the wire (e.g. a compiled dump).
+    // It takes a single slot of the send queue. The array is not copied and must not change afterwards.
+    // Failures are reported by the next flush()
+    public void sendStream(byte[] stream) throws Exception {
+        sendStream(stream, null);
+    }
 
-        new Thread(() -> {
+    // Same, following the messages with the given progress (may be null), which can also cancel the
+    // rest of the stream
+    public void sendStream(byte[] stream, SendProgress progress) throws Exception {
 
-            final int ms = 50;
-            final int a2 = YELLOW;
-            final int b2 = BLUE;
+        // Check the status of the device and receiver objects
+        if (receiver == null) {
+            Log.warn("sendStream: The device is not initialized -- calling automaticOpen should solve this");
+            throw new Exception("sendStream: Device not initialized");
+        }
 
-            int[] pos1 = {1, 10, 19, 28, 21, 14, 7, 16, 23, 30, 21, 12, 3, 10, 17};
-            int[] pos2 = {32, 23, 14, 5, 12, 19, 26, 17, 10, 3, 12, 21, 30, 23, 16};
+        try {
+            queue.putStream(stream, progress);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.warn("sendStream: Interrupted while waiting for space in the send queue");
+            throw e;
+        }
+    }
 
-            for (int i = 0; i < pos1.length; i++) {
 
-                sendNote(1, pos1[i], RED);
-                if (i > 0) sendNote(1, pos1[i - 1], a2);
-                if (i > 1) sendNote(1, pos1[i - 2], OFF);
+    // Returns a future that completes when everything sent before this call has reached the receiver
+    public CompletableFuture<Void> flush() {
+        return queue.flush();
+    }
 
-                sendNote(1, pos2[i], MAGENTA);
-                if (i > 0) sendNote(1, pos2[i - 1], b2);
-                if (i > 1) sendNote(1, pos2[i - 2], OFF);
+    // Drops what is queued and not sent yet (see MidiSendQueue.discard()). Returns how many slots
+    public int discard() {
+        return queue.discard();
+    }
 
-                try {
-                    Thread.sleep(ms);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    return;
-                }
-            }
 
-            sendNote(1, pos1[pos1.length - 2], OFF);
-            sendNote(1, pos2[pos2.length - 2], OFF);
-            sendNote(1, pos1[pos1.length - 1], a2);
-            sendNote(1, pos2[pos2.length - 1], b2);
-            try {
-                Thread.sleep(ms);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-                return;
-            }
-            sendNote(1, pos1[pos1.length - 1], OFF);
-            sendNote(1, pos2[pos2.length - 1], OFF);
-        }).start();
+    // Hands a message to the sender thread
+    private void enqueue(MidiMessage message, CompletableFuture<Void> future) {
+        try {
+            queue.put(message, future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.warn("enqueue: Interrupted while waiting for space in the send queue");
+            if (future != null) future.completeExceptionally(e);
+        }
+    }
+
+
+    // Hands the raw bytes of a short message to the sender thread. Nothing is allocated here, which
+    // keeps the LED feedback path free of garbage
+    private void enqueueShort(int status, int data1, int data2) {
+        try {
+            queue.putShort(status, data1, data2);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            Log.warn("enqueueShort: Interrupted while waiting for space in the send queue");
+        }
+    }
+
+
+    // Messages and bytes by type, failures, reconnections, queue depth and send latency. Cheap to
+    // poll: metrics.snapshot() never stops the sender
+    public MidiMetrics getMetrics() {
+        return metrics;
+    }
+
+    // Pacing settings (bytes per second, adaptive SysEx gap, retries)
+    public MidiScheduler getScheduler() {
+        return scheduler;
+    }
+
+
+    // Send queue statistics
+    public int getQueueDepth() {
+        return queue.getDepth();
+    }
+
+    public int getQueueMaxDepth() {
+        return queue.getMaxDepth();
+    }
+
+    // Messages that fit in the queue before the callers have to wait
+    public int getQueueCapacity() {
+        return queue.getCapacity();
+    }
+
+    public long getSentMessages() {
+        return queue.getSentMessages();
+    }
+
+    public long getFailedMessages() {
+        return queue.getFailedMessages();
+    }
+
+    public long getSentBatches() {
+        return queue.getSentBatches();
+    }
+
+    // Messages per second drained by the sender thread
+    public double getThroughput() {
+        return queue.getThroughput();
+    }
+
+
+    // Plays LED animations on this device. Created with the first show
+    public synchronized LedAnimator getAnimator() {
+        if (animator == null) animator = new LedAnimator(this);
+        return animator;
+    }
+
+
+    // Light show: two trails crossing the button grid
+    private static final LedAnimator.Pattern LIGHT_SHOW = buildLightShow();
+
+    private static LedAnimator.Pattern buildLightShow() {
+        int[] pos1 = {1, 10, 19, 28, 21, 14, 7, 16, 23, 30, 21, 12, 3, 10, 17};
+        int[] pos2 = {32, 23, 14, 5, 12, 19, 26, 17, 10, 3, 12, 21, 30, 23, 16};
+
+        // Every trail is a head and the position it just left, in a dimmer color
+        LedAnimator.Builder b = LedAnimator.Pattern.builder(1, 50);
+        for (int i = 0; i < pos1.length; i++) {
+            if (i == 0) b.frame(pos1[0], RED, pos2[0], MAGENTA);
+            else b.frame(pos1[i - 1], YELLOW, pos1[i], RED, pos2[i - 1], BLUE, pos2[i], MAGENTA);
+        }
+        b.frame(pos1[pos1.length - 1], YELLOW, pos2[pos2.length - 1], BLUE);
+        return b.build();
+    }
+
+    public CompletableFuture<Void> lightShow() {
+        return getAnimator().play(LIGHT_SHOW);
     }
 }
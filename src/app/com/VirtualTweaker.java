@@ -0,0 +1,347 @@
+package app.com;
+
+import javax.sound.midi.InvalidMidiDataException;
+import javax.sound.midi.MidiMessage;
+import javax.sound.midi.Receiver;
+import javax.sound.midi.ShortMessage;
+import javax.sound.midi.SysexMessage;
+import javax.sound.midi.Transmitter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+
+// An emulated Tweaker that lives inside the application, for working without the hardware (e.g. on a
+// headless machine). As a Receiver it decodes what the editor sends and keeps the state the real
+// device would have:
+//  - Notes: the LED velocity (color) of every channel/note
+//  - CCs: the last value of every channel/CC. On channel 16 those are the encoder settings, see
+//    getRingMode(), getSpeed() and isRelative()
+//  - SysEx: the mapping blocks (header 240 0 1 106 1 <block>, then CNOT/mapping pairs, then 247)
+// It also counts messages and bytes. As a Transmitter it plays the controller side: the emit*()
+// methods send messages to the receiver attached to it, as if a control had been touched, and with
+// setEcho() every message applied is sent back, so dumps can be verified. failNext() and loseNext()
+// imitate a device that rejects or misses messages. rawInput() takes the same messages as raw bytes.
+//
+// Can be attached to a handler with TweakerHandler.attach(), or used with -Dtweaker.virtual=true to
+// be picked by automaticOpen() when no hardware is found.
+public class VirtualTweaker implements Receiver, Transmitter {
+
+    // Number of mapping blocks (1 buttons, 2 potentiometers, 3 encoders, 4 pads)
+    public static final int BLOCKS = SysExCodec.PADS;
+
+    // State
+    private final int[] notes = new int[16 * 128];
+    private final int[] ccs = new int[16 * 128];
+    // Payload (CNOT/mapping pairs) of the last SysEx received for each block, null until then
+    private final byte[][] blocks = new byte[BLOCKS + 1][];
+
+    // Counters
+    private long messages;
+    private long bytes;
+    private long noteMessages;
+    private long ccMessages;
+    private long sysExMessages;
+    // Messages this emulator does not understand
+    private long unknownMessages;
+    private long lastMessageNanos;
+
+    // Failure injection: the next failures sends throw, to exercise retries, and the next losses
+    // messages are silently ignored, like a device that missed them
+    private int failures;
+    private int losses;
+    private long lostMessages;
+    // Whether every message applied is sent back on the transmitter side
+    private boolean echo;
+    private boolean closed;
+
+    private volatile Receiver receiver;
+
+
+    public VirtualTweaker() {
+        reset();
+    }
+
+
+    // -+- Receiver (editor to device) -+-
+
+    @Override
+    public synchronized void send(MidiMessage message, long timeStamp) {
+        if (closed) throw new IllegalStateException("The virtual Tweaker is closed");
+        if (failures > 0) {
+            failures--;
+            throw new IllegalStateException("Injected failure");
+        }
+
+        if (losses > 0) {
+            losses--;
+            lostMessages++;
+            return;
+        }
+
+        messages++;
+        bytes += message.getLength();
+        lastMessageNanos = System.nanoTime();
+
+        if (message instanceof ShortMessage sm) {
+            int index = sm.getChannel() * 128 + sm.getData1();
+            switch (sm.getCommand()) {
+                case ShortMessage.NOTE_ON -> {
+                    notes[index] = sm.getData2();
+                    noteMessages++;
+                }
+                case ShortMessage.NOTE_OFF -> {
+                    notes[index] = 0;
+                    noteMessages++;
+                }
+                case ShortMessage.CONTROL_CHANGE -> {
+                    ccs[index] = sm.getData2();
+                    ccMessages++;
+                }
+                default -> unknownMessages++;
+            }
+        } else {
+            decodeSysEx(message.getMessage(), message.getLength());
+        }
+
+        if (echo) {
+            Receiver r = receiver;
+            if (r != null) r.send(message, -1);
+        }
+    }
+
+    // Keeps the payload of a mapping block
+    private void decodeSysEx(byte[] data, int length) {
+        int block = SysExCodec.blockOf(data, 0, length);
+        if (block < 0) {
+            unknownMessages++;
+            return;
+        }
+        byte[] payload = new byte[SysExCodec.entries(block) * 2];
+        System.arraycopy(data, SysExCodec.HEADER_LENGTH, payload, 0, payload.length);
+        blocks[block] = payload;
+        sysExMessages++;
+    }
+
+    // The device end of a raw byte link (see TweakerHandler.attachRaw()): the bytes written to it are
+    // parsed as a MIDI byte stream, running status included, and every complete message is applied as
+    // if it had been sent to this receiver
+    public OutputStream rawInput() {
+        return new RawInput();
+    }
+
+    private class RawInput extends OutputStream {
+
+        private int status = -1;
+        private final byte[] message = new byte[3];
+        private int length;
+        private byte[] sysEx = new byte[SysExCodec.MAX_LENGTH];
+        private int sysExLength = -1;
+
+        @Override
+        public void write(int b) throws IOException {
+            b &= 0xFF;
+            try {
+                if (b >= 0xF8) {
+                    // Real time: does not interrupt anything
+                    return;
+                }
+                if (b == 0xF0) {
+                    status = -1;
+                    sysExLength = 0;
+                    appendSysEx(b);
+                    return;
+                }
+                if (sysExLength >= 0) {
+                    appendSysEx(b);
+                    if (b == 0xF7) {
+                        byte[] data = Arrays.copyOf(sysEx, sysExLength);
+                        sysExLength = -1;
+                        send(new SysexMessage(data, data.length), -1);
+                    }
+                    return;
+                }
+                if (b >= 0x80) {
+                    // A new status; system common clears the running status
+                    status = b < 0xF0 ? b : -1;
+                    length = 0;
+                    return;
+                }
+                // Data byte: under the running status, or dropped if there is none
+                if (status < 0) return;
+                message[length++] = (byte) b;
+                int command = status & 0xF0;
+                int needed = command == ShortMessage.PROGRAM_CHANGE || command == ShortMessage.CHANNEL_PRESSURE ? 1 : 2;
+                if (length == needed) {
+                    send(new ShortMessage(status, message[0], needed == 2 ? message[1] : 0), -1);
+                    length = 0;
+                }
+            } catch (InvalidMidiDataException | IllegalStateException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+
+        private void appendSysEx(int b) {
+            if (sysExLength == sysEx.length) sysEx = Arrays.copyOf(sysEx, sysEx.length * 2);
+            sysEx[sysExLength++] = (byte) b;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+
+
+    // -+- Transmitter (device to editor) -+-
+
+    @Override
+    public void setReceiver(Receiver receiver) {
+        this.receiver = receiver;
+    }
+
+    @Override
+    public Receiver getReceiver() {
+        return receiver;
+    }
+
+    // A control sending a note, e.g. a button being pressed. Channel from 1 to 16
+    public void emitNote(int channel, int note, int velocity) throws Exception {
+        emit(ShortMessage.NOTE_ON, channel, note, velocity);
+    }
+
+    // A control sending a CC, e.g. a potentiometer being moved. Channel from 1 to 16
+    public void emitCC(int channel, int cc, int value) throws Exception {
+        emit(ShortMessage.CONTROL_CHANGE, channel, cc, value);
+    }
+
+    private void emit(int command, int channel, int data1, int data2) throws Exception {
+        if (channel < 1 || channel > 16) throw new IllegalArgumentException("channel out of range (1 - 16)");
+        Receiver r = receiver;
+        if (r == null) return;
+        r.send(new ShortMessage(command, channel - 1, data1, data2), -1);
+    }
+
+
+    // -+- State -+-
+
+    // Velocity last sent to the LED of this channel (1 - 16) and note, 0 if off
+    public synchronized int getNote(int channel, int note) {
+        return notes[(channel - 1) * 128 + note];
+    }
+
+    // Last value of this channel (1 - 16) and CC
+    public synchronized int getCC(int channel, int cc) {
+        return ccs[(channel - 1) * 128 + cc];
+    }
+
+    // Encoder settings are sent on channel 16 as 64 + speed * 8 + (absolute ? 4 : 0) + ring mode
+    // (Tweaker manual, page 25). Returns 'f', 'w', 'e' or 's'
+    public synchronized char getRingMode(int cc) {
+        return switch (ccs[15 * 128 + cc] & 3) {
+            case 1 -> 'w';
+            case 2 -> 'e';
+            case 3 -> 's';
+            default -> 'f';
+        };
+    }
+
+    public synchronized boolean isRelative(int cc) {
+        return (ccs[15 * 128 + cc] & 4) == 0;
+    }
+
+    public synchronized int getSpeed(int cc) {
+        return (ccs[15 * 128 + cc] >> 3) & 7;
+    }
+
+    // Whether the mapping block (1 - 4) has been received
+    public synchronized boolean hasBlock(int block) {
+        return blocks[block] != null;
+    }
+
+    // Channel/output type byte of entry i of a mapping block
+    public synchronized int getCnot(int block, int i) {
+        return blocks[block][i * 2] & 0xFF;
+    }
+
+    // Mapping of entry i of a mapping block
+    public synchronized int getMapping(int block, int i) {
+        return blocks[block][i * 2 + 1] & 0xFF;
+    }
+
+    // Number of entries of a mapping block, 0 if it has not been received
+    public synchronized int getBlockSize(int block) {
+        return blocks[block] == null ? 0 : blocks[block].length / 2;
+    }
+
+    // Forgets the state and the counters, like a device that was just powered on
+    public synchronized void reset() {
+        Arrays.fill(notes, 0);
+        Arrays.fill(ccs, 0);
+        for (int i = 0; i < blocks.length; i++) blocks[i] = null;
+        messages = 0;
+        bytes = 0;
+        noteMessages = 0;
+        ccMessages = 0;
+        sysExMessages = 0;
+        unknownMessages = 0;
+        lastMessageNanos = 0;
+        failures = 0;
+        losses = 0;
+        lostMessages = 0;
+        closed = false;
+    }
+
+    // Sends back every message it applies, which lets the editor verify a dump
+    public synchronized void setEcho(boolean echo) {
+        this.echo = echo;
+    }
+
+    // Makes the next count messages get lost: not applied, not echoed, and no error
+    public synchronized void loseNext(int count) {
+        if (count < 0) throw new IllegalArgumentException("count can not be negative");
+        losses = count;
+    }
+
+    public synchronized long getLostMessages() {
+        return lostMessages;
+    }
+
+    // Makes the next count sends fail
+    public synchronized void failNext(int count) {
+        if (count < 0) throw new IllegalArgumentException("count can not be negative");
+        failures = count;
+    }
+
+
+    // -+- Counters -+-
+
+    public synchronized long getMessages() {
+        return messages;
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    public synchronized long getNoteMessages() {
+        return noteMessages;
+    }
+
+    public synchronized long getCCMessages() {
+        return ccMessages;
+    }
+
+    public synchronized long getSysExMessages() {
+        return sysExMessages;
+    }
+
+    public synchronized long getUnknownMessages() {
+        return unknownMessages;
+    }
+
+    // System.nanoTime() of the last message received, 0 if none
+    public synchronized long getLastMessageNanos() {
+        return lastMessageNanos;
+    }
+}
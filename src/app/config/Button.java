@@ -1,72 +1,104 @@
 package app.config;
 
+import com.google.gson.JsonObject;
+
+// View over the fields of one button in a PackedConfig
 class Button {
+    // Field offsets and size in the packed configuration
     // 0 to 127
-    private byte mapping;
+    private static final int MAPPING = 0;
     // 1 to 16
-    private byte channel;
+    private static final int CHANNEL = 1;
     // false = CC, true = Note;
-    private boolean outputType;
+    private static final int OUTPUT_TYPE = 2;
     // false = disabled, true = enabled
-    private boolean speedControl;
+    private static final int SPEED_CONTROL = 3;
     // false = disabled, true = enabled
-    private boolean localControl;
+    private static final int LOCAL_CONTROL = 4;
+    static final int SIZE = 5;
+
+    private final PackedConfig store;
+    private final int base;
 
 
-    public Button() {
-        mapping = 0;
-        channel = 1;
-        outputType = true;
-        speedControl = false;
-        localControl = false;
+    public Button(PackedConfig store, int index) {
+        this.store = store;
+        base = PackedConfig.BUTTONS + index * SIZE;
+    }
+
+    // Default values
+    void reset() {
+        store.set(base + MAPPING, (byte) 0);
+        store.set(base + CHANNEL, (byte) 1);
+        store.setBoolean(base + OUTPUT_TYPE, true);
+        store.setBoolean(base + SPEED_CONTROL, false);
+        store.setBoolean(base + LOCAL_CONTROL, false);
     }
 
 
     public byte getMapping() {
-        return mapping;
+        return store.get(base + MAPPING);
     }
 
     public void setMapping(byte mapping) throws IllegalArgumentException {
         if (mapping < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.mapping = mapping;
+            store.set(base + MAPPING, mapping);
         }
     }
 
     public byte getChannel() {
-        return channel;
+        return store.get(base + CHANNEL);
     }
 
     public void setChannel(byte channel) throws IllegalArgumentException {
         if (channel < 1 || channel > 16) {
             throw new IllegalArgumentException();
         } else {
-            this.channel = channel;
+            store.set(base + CHANNEL, channel);
         }
     }
 
     public boolean getOutputType() {
-        return outputType;
+        return store.getBoolean(base + OUTPUT_TYPE);
     }
 
     public void setOutputType(boolean outputType) {
-        this.outputType = outputType;
+        store.setBoolean(base + OUTPUT_TYPE, outputType);
     }
 
     public boolean getSpeedControl() {
-        return speedControl;
+        return store.getBoolean(base + SPEED_CONTROL);
     }
 
     public void setSpeedControl(boolean speedControl) {
-        this.speedControl = speedControl;
+        store.setBoolean(base + SPEED_CONTROL, speedControl);
     }
 
     public boolean getLocalControl() {
-        return localControl;
+        return store.getBoolean(base + LOCAL_CONTROL);
     }
 
     public void setLocalControl(boolean localControl) {
-        this.localControl = localControl;
+        store.setBoolean(base + LOCAL_CONTROL, localControl);
+    }
+
+    // Whether the stored values are ones the setters would accept
+    boolean isValid() {
+        return getMapping() >= 0 && getChannel() >= 1 && getChannel() <= 16
+                && store.isBoolean(base + OUTPUT_TYPE) && store.isBoolean(base + SPEED_CONTROL)
+                && store.isBoolean(base + LOCAL_CONTROL);
+    }
+
+    // The fields as they are saved to a file
+    JsonObject toJson() {
+        JsonObject o = new JsonObject();
+        o.addProperty("mapping", getMapping());
+        o.addProperty("channel", getChannel());
+        o.addProperty("outputType", getOutputType());
+        o.addProperty("speedControl", getSpeedControl());
+        o.addProperty("localControl", getLocalControl());
+        return o;
     }
 }
@@ -0,0 +1,83 @@
+package app.config;
+
+
+// What changed in a TweakerConfig since the previous change was delivered to its listeners (see
+// TweakerConfig.addChangeListener). For every group of controls:
+//  - The controls whose values are different (bit i is control i of the group, numbered like the ids
+//    of the TweakerConfig getters and setters)
+//  - The fields that are different in any of them (bit f is the field at offset f of the control, in
+//    the order of PackedConfig)
+// Values that were changed and set back before the delivery are not in it.
+public final class ConfigChange {
+
+    // Groups, with the same numbers TweakerConfig uses
+    public static final int ENCODERS = 0;
+    public static final int POTENTIOMETERS = 1;
+    public static final int BUTTONS = 2;
+    public static final int PADS = 3;
+    public static final int BUT_LEDS = 4;
+    public static final int NAV_LEDS = 5;
+    static final int GROUPS = 6;
+
+    // Fields of each group that decide which MIDI messages its controls send or react to: mappings,
+    // channels and the note/CC output type
+    private static final int[] MAPPING_FIELDS = {0b11110000, 0b11, 0b111, 0b1111, 0b110, 0b110};
+
+    private final long[] controls;
+    private final int[] fields;
+
+
+    ConfigChange(long[] controls, int[] fields) {
+        this.controls = controls;
+        this.fields = fields;
+    }
+
+
+    public long getControls(int group) {
+        return controls[group];
+    }
+
+    public int getFields(int group) {
+        return fields[group];
+    }
+
+    public boolean isChanged(int group) {
+        return controls[group] != 0;
+    }
+
+    public boolean isChanged(int group, int id) {
+        return id >= 0 && id < 64 && (controls[group] & 1L << id) != 0;
+    }
+
+    // Whether a mapping, channel or output type changed in the group, or in any group
+    public boolean isMappingChanged(int group) {
+        return (fields[group] & MAPPING_FIELDS[group]) != 0;
+    }
+
+    public boolean isMappingChanged() {
+        for (int g = 0; g < GROUPS; g++) if (isMappingChanged(g)) return true;
+        return false;
+    }
+
+    // Controls changed, in all the groups
+    public int size() {
+        int n = 0;
+        for (long c : controls) n += Long.bitCount(c);
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        String[] names = {"encoders", "potentiometers", "buttons", "pads", "butLeds", "navLeds"};
+        StringBuilder s = new StringBuilder("ConfigChange[");
+        boolean first = true;
+        for (int g = 0; g < GROUPS; g++) {
+            if (controls[g] == 0) continue;
+            if (!first) s.append(", ");
+            first = false;
+            s.append(names[g]).append(": ").append(Long.bitCount(controls[g]))
+                    .append(" (fields ").append(Integer.toBinaryString(fields[g])).append(")");
+        }
+        return s.append("]").toString();
+    }
+}
@@ -0,0 +1,133 @@
+package app.config;
+
+import java.util.ArrayList;
+
+
+// Undo and redo over a TweakerConfig, as a list of snapshots (see ConfigSnapshot) and a cursor on
+// the one the configuration is at:
+//  - checkpoint() adds the current configuration as a new step after the cursor, dropping the steps
+//    that could have been redone. Nothing is added if nothing changed
+//  - undo(), redo() and jumpTo() move the cursor and restore its snapshot, which only touches the
+//    groups that differ, whatever the distance
+//
+// Steps share the groups they did not change, so each one costs about the size of the groups edited
+// in it (a few hundred bytes at most). When the steps take more than the budget, the oldest ones are
+// forgotten. Not thread safe: use it from the thread that edits the configuration.
+public class ConfigHistory {
+
+    // Thousands of steps, even if every one of them changes the buttons
+    public static final long DEFAULT_BUDGET = 1 << 20;
+
+    private final TweakerConfig config;
+    private final long budgetBytes;
+    private final ArrayList<ConfigSnapshot> steps;
+    private int cursor;
+    private long memoryBytes;
+
+
+    public ConfigHistory(TweakerConfig config) {
+        this(config, DEFAULT_BUDGET);
+    }
+
+    public ConfigHistory(TweakerConfig config, long budgetBytes) {
+        if (config == null) throw new IllegalArgumentException("config can not be null");
+        if (budgetBytes <= 0) throw new IllegalArgumentException("budgetBytes must be positive");
+        this.config = config;
+        this.budgetBytes = budgetBytes;
+        steps = new ArrayList<>();
+        // The configuration as it is now is the first step
+        ConfigSnapshot first = config.snapshot();
+        steps.add(first);
+        cursor = 0;
+        memoryBytes = first.sizeOver(null);
+    }
+
+
+    // Adds the current configuration as a step, if it changed since the step at the cursor. Returns
+    // whether a step was added (the redo steps are gone then)
+    public boolean checkpoint() {
+        ConfigSnapshot s = config.snapshot();
+        if (s == steps.get(cursor) || s.sameValues(steps.get(cursor))) return false;
+
+        // Anything after the cursor can not be redone anymore
+        for (int i = steps.size() - 1; i > cursor; i--) {
+            memoryBytes -= cost(i);
+            steps.remove(i);
+        }
+        steps.add(s);
+        cursor++;
+        memoryBytes += cost(cursor);
+
+        // Forget the oldest steps, but never the current one. The new first step keeps alive what it
+        // shared with the one dropped
+        while (memoryBytes > budgetBytes && cursor > 0) {
+            memoryBytes -= cost(0) + cost(1);
+            steps.remove(0);
+            cursor--;
+            memoryBytes += cost(0);
+        }
+        return true;
+    }
+
+    // Goes back one step. The edits since the last checkpoint are kept as a step first, so they can be
+    // redone. Returns false if there is nothing to undo
+    public boolean undo() {
+        checkpoint();
+        if (cursor == 0) return false;
+        config.restore(steps.get(--cursor));
+        return true;
+    }
+
+    // Goes forward one step. Returns false if there is nothing to redo, which is also the case after
+    // an edit that was not undone
+    public boolean redo() {
+        if (checkpoint() || cursor == steps.size() - 1) return false;
+        config.restore(steps.get(++cursor));
+        return true;
+    }
+
+    // Goes to any step, 0 being the oldest that is kept. The edits since the last checkpoint are kept
+    // as a step first, like in undo(), so the steps are numbered after that
+    public void jumpTo(int step) {
+        checkpoint();
+        if (step < 0 || step >= steps.size()) throw new IllegalArgumentException("step out of range (0 - " + (steps.size() - 1) + ")");
+        cursor = step;
+        config.restore(steps.get(cursor));
+    }
+
+    // Bytes kept by a step on top of the one before it
+    private long cost(int step) {
+        return steps.get(step).sizeOver(step == 0 ? null : steps.get(step - 1));
+    }
+
+
+    public boolean canUndo() {
+        return cursor > 0 || !config.snapshot().sameValues(steps.get(cursor));
+    }
+
+    public boolean canRedo() {
+        return cursor < steps.size() - 1 && config.snapshot().sameValues(steps.get(cursor));
+    }
+
+    // Steps kept, including the current one
+    public int size() {
+        return steps.size();
+    }
+
+    public int getCursor() {
+        return cursor;
+    }
+
+    public ConfigSnapshot get(int step) {
+        return steps.get(step);
+    }
+
+    // Bytes taken by the steps, counting the shared groups once
+    public long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public long getBudgetBytes() {
+        return budgetBytes;
+    }
+}
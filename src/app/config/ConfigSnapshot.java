@@ -0,0 +1,68 @@
+package app.config;
+
+import java.util.Arrays;
+
+
+// The whole configuration at one moment, taken with TweakerConfig.snapshot() and put back with
+// TweakerConfig.restore(). Snapshots never change: each one keeps the bytes of every control group
+// (see PackedConfig) in its own array, and a group that did not change since the previous snapshot
+// is the same array as in that one. So a snapshot after an edit to one button only costs the 250
+// bytes of the buttons, and telling which groups two snapshots differ in is comparing six references.
+public final class ConfigSnapshot {
+
+    // One array per group, indexed like TweakerConfig's groups. Never written after construction
+    private final byte[][] groups;
+    private final long timeMillis;
+
+
+    ConfigSnapshot(byte[][] groups) {
+        this.groups = groups;
+        timeMillis = System.currentTimeMillis();
+    }
+
+
+    byte[] group(int group) {
+        return groups[group];
+    }
+
+    // When it was taken (System.currentTimeMillis())
+    public long getTimeMillis() {
+        return timeMillis;
+    }
+
+    // Whether a group is shared with another snapshot, i.e. it is known to be the same without
+    // looking at it. Groups with the same values can still be in different arrays
+    public boolean sharesGroup(ConfigSnapshot other, int group) {
+        return other != null && groups[group] == other.groups[group];
+    }
+
+    // Whether both have the same values, shared or not
+    public boolean sameValues(ConfigSnapshot other) {
+        if (other == null) return false;
+        for (int g = 0; g < groups.length; g++) {
+            if (!sharesGroup(other, g) && !Arrays.equals(groups[g], other.groups[g])) return false;
+        }
+        return true;
+    }
+
+    // Bytes that this snapshot keeps alive on top of the ones it shares with another (or all of
+    // them, if other is null), counting the arrays and the snapshot itself
+    public long sizeOver(ConfigSnapshot other) {
+        long size = 16 + 16 + 8L * groups.length;
+        for (int g = 0; g < groups.length; g++) {
+            if (!sharesGroup(other, g)) size += 16 + groups[g].length;
+        }
+        return size;
+    }
+
+    // Same bytes as TweakerConfig.toPackedBytes() gave when it was taken
+    public byte[] toPackedBytes() {
+        byte[] bytes = new byte[PackedConfig.LENGTH];
+        int at = 0;
+        for (byte[] group : groups) {
+            System.arraycopy(group, 0, bytes, at, group.length);
+            at += group.length;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,85 @@
+package app.config;
+
+
+// Everything a dump sends, already turned into the bytes that go on the wire. It is made of one
+// section per control group, each one laid out as
+//   [common part][control 0][control 1]...
+// where the common part is what is sent whenever any control of the group is (e.g. the SysEx mapping
+// block) and every control has its own slice (e.g. its LED note). ends[g][0] is where the common part
+// of group g ends, and ends[g][i + 1] where the slice of control i ends.
+//
+// A plan never changes once built; TweakerConfig builds a new one, reusing the sections of the groups
+// that did not change.
+final class DumpPlan {
+
+    private final byte[][] sections;
+    private final int[][] ends;
+    // Groups in the order they are sent
+    private final int[] order;
+    // The whole plan in one array
+    private final byte[] all;
+
+
+    DumpPlan(byte[][] sections, int[][] ends, int[] order) {
+        this.sections = sections;
+        this.ends = ends;
+        this.order = order;
+
+        int length = 0;
+        for (int g : order) length += sections[g].length;
+        all = new byte[length];
+        int pos = 0;
+        for (int g : order) {
+            System.arraycopy(sections[g], 0, all, pos, sections[g].length);
+            pos += sections[g].length;
+        }
+    }
+
+
+    // Every message of the plan
+    byte[] all() {
+        return all;
+    }
+
+    int length() {
+        return all.length;
+    }
+
+    // The messages of the controls selected in masks (one per group, bit i for control i). Returns the
+    // whole plan without copying when everything is selected
+    byte[] select(long[] masks) {
+
+        boolean everything = true;
+        int length = 0;
+        for (int g : order) {
+            long mask = masks[g];
+            if (mask == 0) {
+                everything = false;
+                continue;
+            }
+            int[] e = ends[g];
+            int controls = e.length - 1;
+            if (controls < 64 && mask != (1L << controls) - 1) everything = false;
+            length += e[0];
+            for (int i = 0; i < controls; i++) if ((mask & (1L << i)) != 0) length += e[i + 1] - e[i];
+        }
+        if (everything) return all;
+
+        byte[] selected = new byte[length];
+        int pos = 0;
+        for (int g : order) {
+            long mask = masks[g];
+            if (mask == 0) continue;
+            byte[] section = sections[g];
+            int[] e = ends[g];
+            System.arraycopy(section, 0, selected, pos, e[0]);
+            pos += e[0];
+            for (int i = 0; i < e.length - 1; i++) {
+                if ((mask & (1L << i)) == 0) continue;
+                System.arraycopy(section, e[i], selected, pos, e[i + 1] - e[i]);
+                pos += e[i + 1] - e[i];
+            }
+        }
+        return selected;
+    }
+}
@@ -0,0 +1,54 @@
+package app.config;
+
+import app.com.DumpVerifier;
+
+
+// Outcome of a dump that completed (see TweakerConfig.dumpAsync). Cancelled and failed dumps complete
+// their future exceptionally instead
+public final class DumpReport {
+
+    private final boolean onlyChanges;
+    private final int messages;
+    private final int bytes;
+    private final long elapsedNanos;
+    private final DumpVerifier.Report verification;
+
+
+    DumpReport(boolean onlyChanges, int messages, int bytes, long elapsedNanos, DumpVerifier.Report verification) {
+        this.onlyChanges = onlyChanges;
+        this.messages = messages;
+        this.bytes = bytes;
+        this.elapsedNanos = elapsedNanos;
+        this.verification = verification;
+    }
+
+
+    // Whether only the controls that had changed were sent
+    public boolean isOnlyChanges() {
+        return onlyChanges;
+    }
+
+    // Messages sent (0 if there was nothing to send)
+    public int getMessages() {
+        return messages;
+    }
+
+    public int getBytes() {
+        return bytes;
+    }
+
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    // What the device confirmed, or null if the dump was not verified
+    public DumpVerifier.Report getVerification() {
+        return verification;
+    }
+
+    @Override
+    public String toString() {
+        String s = messages + " messages (" + bytes + " bytes) in " + elapsedNanos / 1_000_000 + " ms";
+        return verification == null ? s : s + ", " + verification;
+    }
+}
@@ -1,122 +1,158 @@
 package app.config;
 
+import com.google.gson.JsonObject;
+
 import java.util.Arrays;
 
+// View over the fields of one encoder in a PackedConfig
 class Encoder {
+    // Field offsets and size in the packed configuration
     // (f)ill, (w)alk, (e)q, (s)pread
-    private char ringMode;
+    private static final int RING_MODE = 0;
     // false = absolute, true = relative
-    private boolean relativeMode;
+    private static final int RELATIVE_MODE = 1;
     // 1 to 7
-    private byte speed;
+    private static final int SPEED = 2;
     // False = disabled, True = enabled
-    private boolean localControl;
+    private static final int LOCAL_CONTROL = 3;
     // 0 to 127
-    private byte mapping;
+    private static final int MAPPING = 4;
     // 1 to 16
-    private byte channel;
+    private static final int CHANNEL = 5;
     // 0 to 127
-    private byte ledMapping;
+    private static final int LED_MAPPING = 6;
     // 1 to 16
-    private byte ledChannel;
+    private static final int LED_CHANNEL = 7;
+    static final int SIZE = 8;
+
+    private final PackedConfig store;
+    private final int base;
 
 
-    public Encoder() {
-        ringMode = 'e';
-        relativeMode = false;
-        speed = 5;
-        localControl = true;
-        mapping = 0;
-        channel = 1;
-        ledMapping = 0;
-        ledChannel = 1;
+    public Encoder(PackedConfig store, int index) {
+        this.store = store;
+        base = PackedConfig.ENCODERS + index * SIZE;
+    }
+
+    // Default values
+    void reset() {
+        store.setChar(base + RING_MODE, 'e');
+        store.setBoolean(base + RELATIVE_MODE, false);
+        store.set(base + SPEED, (byte) 5);
+        store.setBoolean(base + LOCAL_CONTROL, true);
+        store.set(base + MAPPING, (byte) 0);
+        store.set(base + CHANNEL, (byte) 1);
+        store.set(base + LED_MAPPING, (byte) 0);
+        store.set(base + LED_CHANNEL, (byte) 1);
     }
 
     public char getRingMode() {
-        return ringMode;
+        return store.getChar(base + RING_MODE);
     }
 
     public void setRingMode(char ringMode) throws IllegalArgumentException {
         if (Arrays.asList('f', 'w', 'e', 's').contains(ringMode)) {
-            this.ringMode = ringMode;
+            store.setChar(base + RING_MODE, ringMode);
         } else {
             throw new IllegalArgumentException();
         }
     }
 
     public boolean getRelativeMode() {
-        return relativeMode;
+        return store.getBoolean(base + RELATIVE_MODE);
     }
 
     public void setRelativeMode(boolean relativeMode) {
-        this.relativeMode = relativeMode;
+        store.setBoolean(base + RELATIVE_MODE, relativeMode);
     }
 
     public byte getSpeed() {
-        return speed;
+        return store.get(base + SPEED);
     }
 
     public void setSpeed(byte speed) throws IllegalArgumentException {
         if (speed < 1 || speed > 7) {
             throw new IllegalArgumentException();
         } else {
-            this.speed = speed;
+            store.set(base + SPEED, speed);
         }
     }
 
     public boolean getLocalControl() {
-        return localControl;
+        return store.getBoolean(base + LOCAL_CONTROL);
     }
 
     public void setLocalControl(boolean localControl) {
-        this.localControl = localControl;
+        store.setBoolean(base + LOCAL_CONTROL, localControl);
     }
 
     public byte getMapping() {
-        return mapping;
+        return store.get(base + MAPPING);
     }
 
     public void setMapping(byte mapping) throws IllegalArgumentException {
         if (mapping < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.mapping = mapping;
+            store.set(base + MAPPING, mapping);
         }
     }
 
     public byte getChannel() {
-        return channel;
+        return store.get(base + CHANNEL);
     }
 
     public void setChannel(byte channel) throws IllegalArgumentException {
         if (channel < 1 || channel > 16) {
             throw new IllegalArgumentException();
         } else {
-            this.channel = channel;
+            store.set(base + CHANNEL, channel);
         }
     }
 
-    /*public byte getLedMapping() {
-        return ledMapping;
-    }*/
+    public byte getLedMapping() {
+        return store.get(base + LED_MAPPING);
+    }
 
     public void setLedMapping(byte ledMapping) throws IllegalArgumentException {
         if (ledMapping < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.ledMapping = ledMapping;
+            store.set(base + LED_MAPPING, ledMapping);
         }
     }
 
     public byte getLedChannel() {
-        return ledChannel;
+        return store.get(base + LED_CHANNEL);
     }
 
     public void setLedChannel(byte ledChannel) throws IllegalArgumentException {
         if (ledChannel < 1 || ledChannel > 16) {
             throw new IllegalArgumentException();
         } else {
-            this.ledChannel = ledChannel;
+            store.set(base + LED_CHANNEL, ledChannel);
         }
     }
+
+    // Whether the stored values are ones the setters would accept
+    boolean isValid() {
+        return Arrays.asList('f', 'w', 'e', 's').contains(getRingMode()) && getSpeed() >= 1 && getSpeed() <= 7
+                && getMapping() >= 0 && getChannel() >= 1 && getChannel() <= 16
+                && getLedMapping() >= 0 && getLedChannel() >= 1 && getLedChannel() <= 16
+                && store.isBoolean(base + RELATIVE_MODE) && store.isBoolean(base + LOCAL_CONTROL);
+    }
+
+    // The fields as they are saved to a file
+    JsonObject toJson() {
+        JsonObject o = new JsonObject();
+        o.addProperty("ringMode", getRingMode());
+        o.addProperty("relativeMode", getRelativeMode());
+        o.addProperty("speed", getSpeed());
+        o.addProperty("localControl", getLocalControl());
+        o.addProperty("mapping", getMapping());
+        o.addProperty("channel", getChannel());
+        o.addProperty("ledMapping", getLedMapping());
+        o.addProperty("ledChannel", getLedChannel());
+        return o;
+    }
 }
@@ -0,0 +1,219 @@
+package app.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+// Which controls send each MIDI message, kept up to date by TweakerConfig as the mappings change. For
+// notes and for CCs there is a 16 x 128 table (channel, number) with the set of controls that send it,
+// as a bitmask over the owners below, so adding, moving or looking up a control is constant time.
+// A slot with more than one owner is a conflict: the device would send the same message for two
+// controls. The number of such slots is kept as they appear and go.
+//
+// Only what the controls send is indexed, with the output types the dump gives them (see
+// TweakerConfig.compileSection): buttons as set, potentiometers and pads as notes, encoders as CCs.
+// The LEDs are not: they receive, and sharing the mapping of their button is what they are for.
+//
+// Not thread safe: it is written by the thread that edits the configuration (the FX thread), so read
+// it from there too.
+public final class MappingIndex {
+
+    // Message types
+    public static final int NOTE = 0;
+    public static final int CC = 1;
+
+    // Owners, numbered one kind after the other
+    public static final int ENCODER = 0;
+    public static final int POTENTIOMETER = ENCODER + PackedConfig.ENCODER_COUNT;
+    public static final int BUTTON = POTENTIOMETER + PackedConfig.POTENTIOMETER_COUNT;
+    public static final int PAD_HIT = BUTTON + PackedConfig.BUTTON_COUNT;
+    public static final int PAD_RETRIGGER = PAD_HIT + PackedConfig.PAD_COUNT;
+    public static final int OWNERS = PAD_RETRIGGER + PackedConfig.PAD_COUNT;
+    private static final int WORDS = (OWNERS + 63) / 64;
+    private static final int[] KINDS = {ENCODER, POTENTIOMETER, BUTTON, PAD_HIT, PAD_RETRIGGER, OWNERS};
+
+    private static final int SLOTS = 2 * 16 * 128;
+
+    // Owners of every slot, WORDS longs per slot
+    private final long[] owners = new long[SLOTS * WORDS];
+    // Owners of every slot, counted, and the slot of every owner (-1 if it has none)
+    private final byte[] counts = new byte[SLOTS];
+    private final int[] slots = new int[OWNERS];
+    private int conflicts;
+
+
+    MappingIndex() {
+        Arrays.fill(slots, -1);
+        conflicts = 0;
+    }
+
+
+    private static int slot(int type, int channel, int number) {
+        if (type != NOTE && type != CC) throw new IllegalArgumentException("Invalid message type: " + type);
+        if (channel < 1 || channel > 16) throw new IllegalArgumentException("Invalid channel: " + channel);
+        if (number < 0 || number > 127) throw new IllegalArgumentException("Invalid number: " + number);
+        return (type * 16 + channel - 1) * 128 + number;
+    }
+
+    // Sets what an owner sends, moving it from what it sent before
+    void put(int owner, int type, int channel, int number) {
+        int slot = slot(type, channel, number);
+        int previous = slots[owner];
+        if (previous == slot) return;
+        if (previous >= 0) {
+            owners[previous * WORDS + owner / 64] &= ~(1L << owner);
+            if (--counts[previous] == 1) conflicts--;
+        }
+        owners[slot * WORDS + owner / 64] |= 1L << owner;
+        if (++counts[slot] == 2) conflicts++;
+        slots[owner] = slot;
+    }
+
+
+    // -+- Lookup -+-
+
+    // Controls that send a message
+    public int ownerCount(int type, int channel, int number) {
+        return counts[slot(type, channel, number)];
+    }
+
+    // The lowest owner of a message, or -1 if no control sends it
+    public int firstOwner(int type, int channel, int number) {
+        int slot = slot(type, channel, number);
+        for (int w = 0; w < WORDS; w++) {
+            long bits = owners[slot * WORDS + w];
+            if (bits != 0) return w * 64 + Long.numberOfTrailingZeros(bits);
+        }
+        return -1;
+    }
+
+    // Control that sent an incoming message, from its status byte and first data byte, or -1 if it is
+    // not a note on or a CC, or no control sends it. Notes off (and notes on with velocity 0) are
+    // notes like the others: pass data1 of any of them
+    public int ownerOf(int status, int data1) {
+        int command = status & 0xF0;
+        int type;
+        if (command == 0x90 || command == 0x80) type = NOTE;
+        else if (command == 0xB0) type = CC;
+        else return -1;
+        if (data1 < 0 || data1 > 127) return -1;
+        return firstOwner(type, (status & 0x0F) + 1, data1);
+    }
+
+    // Writes the owners of a message to dst, which needs room for them (ownerCount), and returns how
+    // many there are
+    public int owners(int type, int channel, int number, int[] dst) {
+        int slot = slot(type, channel, number);
+        int n = 0;
+        for (int w = 0; w < WORDS; w++) {
+            for (long bits = owners[slot * WORDS + w]; bits != 0; bits &= bits - 1) {
+                dst[n++] = w * 64 + Long.numberOfTrailingZeros(bits);
+            }
+        }
+        return n;
+    }
+
+    // Whether another control sends the same message as this one
+    public boolean isConflicting(int owner) {
+        return slots[owner] >= 0 && counts[slots[owner]] > 1;
+    }
+
+    // Messages sent by more than one control
+    public int getConflictCount() {
+        return conflicts;
+    }
+
+    // Every conflict, in one pass over the tables
+    public List<Conflict> conflicts() {
+        List<Conflict> list = new ArrayList<>(conflicts);
+        if (conflicts == 0) return list;
+        for (int slot = 0; slot < SLOTS; slot++) {
+            if (counts[slot] < 2) continue;
+            int[] ids = new int[counts[slot]];
+            int n = 0;
+            for (int w = 0; w < WORDS; w++) {
+                for (long bits = owners[slot * WORDS + w]; bits != 0; bits &= bits - 1) {
+                    ids[n++] = w * 64 + Long.numberOfTrailingZeros(bits);
+                }
+            }
+            list.add(new Conflict(slot / (16 * 128), slot / 128 % 16 + 1, slot % 128, ids));
+        }
+        return list;
+    }
+
+
+    // -+- Owners -+-
+
+    // Kind of an owner (ENCODER, POTENTIOMETER, BUTTON, PAD_HIT or PAD_RETRIGGER)
+    public static int kindOf(int owner) {
+        if (owner < 0 || owner >= OWNERS) throw new IllegalArgumentException("Invalid owner: " + owner);
+        int k = 0;
+        while (owner >= KINDS[k + 1]) k++;
+        return KINDS[k];
+    }
+
+    // Id of an owner among the controls of its kind, as used by the TweakerConfig getters and setters
+    public static int idOf(int owner) {
+        return owner - kindOf(owner);
+    }
+
+    // Name of an owner as the editor shows it
+    public static String nameOf(int owner) {
+        int kind = kindOf(owner);
+        int id = owner - kind;
+        if (kind == ENCODER) return id == 0 ? "Big encoder" : "Encoder " + id;
+        if (kind == POTENTIOMETER) return id == 4 ? "Crossfader" : id > 1 ? "Fader " + (id - 1) : "Knob " + (id + 1);
+        if (kind == BUTTON) {
+            if (id >= 43) return "Extra button " + (id - 42);
+            if (id >= 38) return "Navigation button " + (id - 37);
+            if (id >= 32) return "Button " + (id - 31);
+            return "Grid button " + (id + 1);
+        }
+        return "Pad " + (id + 1) + (kind == PAD_HIT ? " hit" : " retrigger");
+    }
+
+
+    // Several controls sending the same message
+    public static final class Conflict {
+
+        private final int type;
+        private final int channel;
+        private final int number;
+        private final int[] owners;
+
+        private Conflict(int type, int channel, int number, int[] owners) {
+            this.type = type;
+            this.channel = channel;
+            this.number = number;
+            this.owners = owners;
+        }
+
+        public int getType() {
+            return type;
+        }
+
+        public int getChannel() {
+            return channel;
+        }
+
+        public int getNumber() {
+            return number;
+        }
+
+        public int[] getOwners() {
+            return owners.clone();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder s = new StringBuilder(type == NOTE ? "Note " : "CC ").append(number)
+                    .append(" on channel ").append(channel).append(": ");
+            for (int i = 0; i < owners.length; i++) {
+                if (i > 0) s.append(", ");
+                s.append(nameOf(owners[i]));
+            }
+            return s.toString();
+        }
+    }
+}
@@ -1,40 +1,70 @@
 package app.config;
 
+import com.google.gson.JsonObject;
+
+// View over the fields of one single color LED in a PackedConfig
 public class MonoLed {
+    // Field offsets and size in the packed configuration
     // true = On, false = Off
-    private boolean status;
+    private static final int STATUS = 0;
     // Mapping
-    private byte mapping;
+    private static final int MAPPING = 1;
     // Channel
-    private byte channel;
+    private static final int CHANNEL = 2;
+    static final int SIZE = 3;
+
+    private final PackedConfig store;
+    private final int base;
+
+    public MonoLed(PackedConfig store, int index) {
+        this.store = store;
+        base = PackedConfig.NAV_LEDS + index * SIZE;
+    }
 
-    public MonoLed() {
-        status = false;
-        mapping = 0;
-        channel = 1;
+    // Default values
+    void reset() {
+        store.setBoolean(base + STATUS, false);
+        store.set(base + MAPPING, (byte) 0);
+        store.set(base + CHANNEL, (byte) 1);
     }
 
     public boolean getStatus() {
-        return status;
+        return store.getBoolean(base + STATUS);
     }
 
     public void setStatus(boolean status) {
-        this.status = status;
+        store.setBoolean(base + STATUS, status);
     }
 
     public byte getMapping() {
-        return mapping;
+        return store.get(base + MAPPING);
     }
 
     public void setMapping(byte mapping) {
-        this.mapping = mapping;
+        store.set(base + MAPPING, mapping);
     }
 
     public byte getChannel() {
-        return channel;
+        return store.get(base + CHANNEL);
     }
 
     public void setChannel(byte channel) {
-        this.channel = channel;
+        store.set(base + CHANNEL, channel);
+    }
+
+    // Whether the stored values can be dumped: the status as stored by setStatus, and a mapping and
+    // channel a note can have
+    boolean isValid() {
+        byte status = store.get(base + STATUS);
+        return (status == 0 || status == 1) && getMapping() >= 0 && getChannel() >= 1 && getChannel() <= 16;
+    }
+
+    // The fields as they are saved to a file
+    JsonObject toJson() {
+        JsonObject o = new JsonObject();
+        o.addProperty("status", getStatus());
+        o.addProperty("mapping", getMapping());
+        o.addProperty("channel", getChannel());
+        return o;
     }
 }
@@ -0,0 +1,244 @@
+package app.config;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+
+// The whole configuration packed in one byte array, one byte per field, at fixed offsets:
+//
+//   encoders      7 x 8 bytes   (ring mode, relative, speed, local control, mapping, channel,
+//                                LED mapping, LED channel)
+//   potentiometers 5 x 2 bytes  (mapping, channel)
+//   buttons      50 x 5 bytes   (mapping, channel, output type, speed control, local control)
+//   pads          8 x 12 bytes  (hit mapping, hit channel, retrigger mapping, retrigger channel,
+//                                CC retrigger 17, CC retrigger 8, on/off thresholds low/high,
+//                                resend rate, sensitivity)
+//   button LEDs  38 x 3 bytes   (color, mapping, channel)
+//   nav LEDs      5 x 3 bytes   (status, mapping, channel)
+//
+// Characters (ring mode, color) are stored as their ASCII code and booleans as 0 or 1. The control
+// classes (Encoder, Button...) are views over a range of the array and know the offsets of their own
+// fields, so copying, comparing or hashing a configuration is a single operation over a few hundred
+// bytes.
+//
+// Writes go through a StampedLock, one writer at a time. An edit that writes several fields (a
+// propagation, a restore...) holds it from beginWrite() to endWrite(), and the single writes inside
+// join it, so nobody sees half an edit. Whole copies (copy, toByteArray, hashCode) can be taken from
+// any thread: they are optimistic reads, which never block the writer and are tried again if a write
+// got in the middle; only after a few failed tries do they wait for the read lock. The other reads
+// are for the thread that writes.
+final class PackedConfig {
+
+    static final int ENCODER_COUNT = 7;
+    static final int POTENTIOMETER_COUNT = 5;
+    static final int BUTTON_COUNT = 50;
+    static final int PAD_COUNT = 8;
+    static final int BUT_LED_COUNT = 38;
+    static final int NAV_LED_COUNT = 5;
+
+    // Where each group starts
+    static final int ENCODERS = 0;
+    static final int POTENTIOMETERS = ENCODERS + ENCODER_COUNT * Encoder.SIZE;
+    static final int BUTTONS = POTENTIOMETERS + POTENTIOMETER_COUNT * Potentiometer.SIZE;
+    static final int PADS = BUTTONS + BUTTON_COUNT * Button.SIZE;
+    static final int BUT_LEDS = PADS + PAD_COUNT * Pad.SIZE;
+    static final int NAV_LEDS = BUT_LEDS + BUT_LED_COUNT * RgbLed.SIZE;
+    static final int LENGTH = NAV_LEDS + NAV_LED_COUNT * MonoLed.SIZE;
+
+    // Optimistic tries of a whole copy before waiting for the read lock
+    private static final int OPTIMISTIC_TRIES = 4;
+
+    private final byte[] data;
+
+    private final StampedLock lock = new StampedLock();
+    // Thread holding the write lock, and how many beginWrite() it is inside. Only set while the lock is
+    // held, so another thread never finds itself here
+    private Thread writer;
+    private int writeDepth;
+    private long writeStamp;
+
+
+    PackedConfig() {
+        data = new byte[LENGTH];
+    }
+
+    private PackedConfig(byte[] data) {
+        this.data = data;
+    }
+
+
+    // -+- Writing -+-
+
+    // Starts an edit, waiting for the one of another thread to finish. Can be nested
+    void beginWrite() {
+        if (writer == Thread.currentThread()) {
+            writeDepth++;
+            return;
+        }
+        long stamp = lock.writeLock();
+        writer = Thread.currentThread();
+        writeStamp = stamp;
+        writeDepth = 1;
+    }
+
+    void endWrite() {
+        if (writer != Thread.currentThread()) throw new IllegalStateException("endWrite() without beginWrite()");
+        if (--writeDepth > 0) return;
+        writer = null;
+        lock.unlockWrite(writeStamp);
+    }
+
+    private boolean isWriting() {
+        return writer == Thread.currentThread();
+    }
+
+
+    byte get(int offset) {
+        return data[offset];
+    }
+
+    void set(int offset, byte value) {
+        beginWrite();
+        try {
+            data[offset] = value;
+        } finally {
+            endWrite();
+        }
+    }
+
+    boolean getBoolean(int offset) {
+        return data[offset] != 0;
+    }
+
+    void setBoolean(int offset, boolean value) {
+        set(offset, (byte) (value ? 1 : 0));
+    }
+
+    // Whether the byte is one setBoolean writes
+    boolean isBoolean(int offset) {
+        byte b = data[offset];
+        return b == 0 || b == 1;
+    }
+
+    char getChar(int offset) {
+        return (char) data[offset];
+    }
+
+    void setChar(int offset, char value) {
+        set(offset, (byte) value);
+    }
+
+
+    // -+- Whole configuration -+-
+
+    PackedConfig copy() {
+        return new PackedConfig(toByteArray());
+    }
+
+    void copyFrom(PackedConfig other) {
+        beginWrite();
+        try {
+            System.arraycopy(other.data, 0, data, 0, LENGTH);
+        } finally {
+            endWrite();
+        }
+    }
+
+    // Whether the bytes in [from, to) are the same in both
+    boolean rangeEquals(PackedConfig other, int from, int to) {
+        return Arrays.equals(data, from, to, other.data, from, to);
+    }
+
+    // -+- Ranges -+-
+
+    byte[] copyRange(int from, int to) {
+        return Arrays.copyOfRange(data, from, to);
+    }
+
+    // Writes all of src at offset
+    void setRange(int offset, byte[] src) {
+        beginWrite();
+        try {
+            System.arraycopy(src, 0, data, offset, src.length);
+        } finally {
+            endWrite();
+        }
+    }
+
+    // Whether the length bytes at offset are the same as src[srcFrom, srcFrom + length)
+    boolean rangeEquals(int offset, byte[] src, int srcFrom, int length) {
+        return Arrays.equals(data, offset, offset + length, src, srcFrom, srcFrom + length);
+    }
+
+    // Copies some fields (bit f is offset f) of the control at from to the control at to. Runs of
+    // consecutive fields are copied at once
+    void copyFields(int from, int to, int fields) {
+        beginWrite();
+        try {
+            while (fields != 0) {
+                int f = Integer.numberOfTrailingZeros(fields);
+                int run = Integer.numberOfTrailingZeros(~(fields >>> f));
+                System.arraycopy(data, from + f, data, to + f, run);
+                fields &= ~(((1 << run) - 1) << f);
+            }
+        } finally {
+            endWrite();
+        }
+    }
+
+    // Whether some fields are the same in the controls at a and b
+    boolean fieldsEqual(int a, int b, int fields) {
+        for (; fields != 0; fields &= fields - 1) {
+            int f = Integer.numberOfTrailingZeros(fields);
+            if (data[a + f] != data[b + f]) return false;
+        }
+        return true;
+    }
+
+    // A copy of all the bytes as they were between two edits. Any thread
+    byte[] toByteArray() {
+        if (isWriting()) return data.clone();
+        for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            long stamp = lock.tryOptimisticRead();
+            byte[] copy = data.clone();
+            if (lock.validate(stamp)) return copy;
+            Thread.onSpinWait();
+        }
+        long stamp = lock.readLock();
+        try {
+            return data.clone();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    // The bytes must come from toByteArray(); the values are checked by the caller
+    static PackedConfig fromByteArray(byte[] bytes) {
+        if (bytes == null || bytes.length != LENGTH)
+            throw new IllegalArgumentException("A packed configuration has " + LENGTH + " bytes");
+        return new PackedConfig(bytes.clone());
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PackedConfig p && Arrays.equals(toByteArray(), p.toByteArray());
+    }
+
+    // Any thread, like toByteArray(), but without the copy
+    @Override
+    public int hashCode() {
+        if (isWriting()) return Arrays.hashCode(data);
+        for (int i = 0; i < OPTIMISTIC_TRIES; i++) {
+            long stamp = lock.tryOptimisticRead();
+            int hash = Arrays.hashCode(data);
+            if (lock.validate(stamp)) return hash;
+            Thread.onSpinWait();
+        }
+        long stamp = lock.readLock();
+        try {
+            return Arrays.hashCode(data);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+}
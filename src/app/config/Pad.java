@@ -1,162 +1,175 @@
 package app.config;
 
+import com.google.gson.JsonObject;
+
+// View over the fields of one pad in a PackedConfig
 class Pad {
+    // Field offsets and size in the packed configuration
     // 0 to 127
-    private byte hitMapping;
+    private static final int HIT_MAPPING = 0;
     // 1 to 16
-    private byte hitChannel;
+    private static final int HIT_CHANNEL = 1;
     // 0 to 127
-    private byte retriggerMapping;
+    private static final int RETRIGGER_MAPPING = 2;
     // 1 to 16
-    private byte retriggerChannel;
+    private static final int RETRIGGER_CHANNEL = 3;
     // False = disabled, True = enabled
-    private boolean ccRetrigger17;
+    private static final int CC_RETRIGGER_17 = 4;
     // False = disabled, True = enabled
-    private boolean ccRetrigger8;
+    private static final int CC_RETRIGGER_8 = 5;
     // 0 to 127?
-    private byte onThresholdLow;
+    private static final int ON_THRESHOLD_LOW = 6;
     // 0 to 127?
-    private byte onThresholdHigh;
+    private static final int ON_THRESHOLD_HIGH = 7;
     // 0 to 127?
-    private byte offThresholdLow;
+    private static final int OFF_THRESHOLD_LOW = 8;
     // 0 to 127?
-    private byte offThresholdHigh;
+    private static final int OFF_THRESHOLD_HIGH = 9;
     // 1 to ??
-    private byte resendRate;
+    private static final int RESEND_RATE = 10;
     // 0 to 5
-    private byte sensitivity;
+    private static final int SENSITIVITY = 11;
+    static final int SIZE = 12;
+
+    private final PackedConfig store;
+    private final int base;
 
 
-    public Pad() {
-        hitMapping = 0;
-        hitChannel = 1;
-        retriggerMapping = 1;
-        retriggerChannel = 1;
-        ccRetrigger17 = true;
-        ccRetrigger8 = true;
-        onThresholdLow = 15;
-        onThresholdHigh = 0;
-        offThresholdLow = 7;
-        offThresholdHigh = 0;
-        resendRate = 9;
-        sensitivity = 5;
+    public Pad(PackedConfig store, int index) {
+        this.store = store;
+        base = PackedConfig.PADS + index * SIZE;
     }
 
+    // Default values
+    void reset() {
+        store.set(base + HIT_MAPPING, (byte) 0);
+        store.set(base + HIT_CHANNEL, (byte) 1);
+        store.set(base + RETRIGGER_MAPPING, (byte) 1);
+        store.set(base + RETRIGGER_CHANNEL, (byte) 1);
+        store.setBoolean(base + CC_RETRIGGER_17, true);
+        store.setBoolean(base + CC_RETRIGGER_8, true);
+        store.set(base + ON_THRESHOLD_LOW, (byte) 15);
+        store.set(base + ON_THRESHOLD_HIGH, (byte) 0);
+        store.set(base + OFF_THRESHOLD_LOW, (byte) 7);
+        store.set(base + OFF_THRESHOLD_HIGH, (byte) 0);
+        store.set(base + RESEND_RATE, (byte) 9);
+        store.set(base + SENSITIVITY, (byte) 5);
+    }
 
     public byte getHitMapping() {
-        return hitMapping;
+        return store.get(base + HIT_MAPPING);
     }
 
     public void setHitMapping(byte hitMapping) throws IllegalArgumentException {
         if (hitMapping < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.hitMapping = hitMapping;
+            store.set(base + HIT_MAPPING, hitMapping);
         }
     }
 
     public byte getHitChannel() {
-        return hitChannel;
+        return store.get(base + HIT_CHANNEL);
     }
 
     public void setHitChannel(byte hitChannel) throws IllegalArgumentException {
         if (hitChannel < 1 || hitChannel > 16) {
             throw new IllegalArgumentException();
         } else {
-            this.hitChannel = hitChannel;
+            store.set(base + HIT_CHANNEL, hitChannel);
         }
     }
 
     public byte getRetriggerMapping() {
-        return retriggerMapping;
+        return store.get(base + RETRIGGER_MAPPING);
     }
 
     public void setRetriggerMapping(byte retriggerMapping) throws IllegalArgumentException {
         if (retriggerMapping < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.retriggerMapping = retriggerMapping;
+            store.set(base + RETRIGGER_MAPPING, retriggerMapping);
         }
     }
 
     public byte getRetriggerChannel() {
-        return retriggerChannel;
+        return store.get(base + RETRIGGER_CHANNEL);
     }
 
     public void setRetriggerChannel(byte retriggerChannel) throws IllegalArgumentException {
         if (retriggerChannel < 1 || retriggerChannel > 16) {
             throw new IllegalArgumentException();
         } else {
-            this.retriggerChannel = retriggerChannel;
+            store.set(base + RETRIGGER_CHANNEL, retriggerChannel);
         }
     }
 
     public boolean getCcRetrigger17() {
-        return ccRetrigger17;
+        return store.getBoolean(base + CC_RETRIGGER_17);
     }
 
     public void setCcRetrigger17(boolean ccRetrigger17) {
-        this.ccRetrigger17 = ccRetrigger17;
+        store.setBoolean(base + CC_RETRIGGER_17, ccRetrigger17);
     }
 
     public boolean getCcRetrigger8() {
-        return ccRetrigger8;
+        return store.getBoolean(base + CC_RETRIGGER_8);
     }
 
     public void setCcRetrigger8(boolean ccRetrigger8) {
-        this.ccRetrigger8 = ccRetrigger8;
+        store.setBoolean(base + CC_RETRIGGER_8, ccRetrigger8);
     }
 
     public byte getOnThresholdLow() {
-        return onThresholdLow;
+        return store.get(base + ON_THRESHOLD_LOW);
     }
 
     public void setOnThresholdLow(byte onThresholdLow) throws IllegalArgumentException {
         if (onThresholdLow < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.onThresholdLow = onThresholdLow;
+            store.set(base + ON_THRESHOLD_LOW, onThresholdLow);
         }
     }
 
     public byte getOnThresholdHigh() {
-        return onThresholdHigh;
+        return store.get(base + ON_THRESHOLD_HIGH);
     }
 
     public void setOnThresholdHigh(byte onThresholdHigh) throws IllegalArgumentException {
         if (onThresholdHigh < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.onThresholdHigh = onThresholdHigh;
+            store.set(base + ON_THRESHOLD_HIGH, onThresholdHigh);
         }
     }
 
     public byte getOffThresholdLow() {
-        return offThresholdLow;
+        return store.get(base + OFF_THRESHOLD_LOW);
     }
 
     public void setOffThresholdLow(byte offThresholdLow) throws IllegalArgumentException {
         if (offThresholdLow < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.offThresholdLow = offThresholdLow;
+            store.set(base + OFF_THRESHOLD_LOW, offThresholdLow);
         }
     }
 
     public byte getOffThresholdHigh() {
-        return offThresholdHigh;
+        return store.get(base + OFF_THRESHOLD_HIGH);
     }
 
     public void setOffThresholdHigh(byte offThresholdHigh) throws IllegalArgumentException {
         if (offThresholdHigh < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.offThresholdHigh = offThresholdHigh;
+            store.set(base + OFF_THRESHOLD_HIGH, offThresholdHigh);
         }
     }
 
     public byte getResendRate() {
-        return resendRate;
+        return store.get(base + RESEND_RATE);
     }
 
     public void setResendRate(byte resendRate) throws IllegalArgumentException {
@@ -164,19 +177,48 @@ class Pad {
         if (resendRate < 1 || resendRate > 15) {
             throw new IllegalArgumentException();
         } else {
-            this.resendRate = resendRate;
+            store.set(base + RESEND_RATE, resendRate);
         }
     }
 
     public byte getSensitivity() {
-        return sensitivity;
+        return store.get(base + SENSITIVITY);
     }
 
     public void setSensitivity(byte sensitivity) throws IllegalArgumentException {
         if (sensitivity < 0 || sensitivity > 5) {
             throw new IllegalArgumentException();
         } else {
-            this.sensitivity = sensitivity;
+            store.set(base + SENSITIVITY, sensitivity);
         }
     }
+
+    // Whether the stored values are ones the setters would accept
+    boolean isValid() {
+        return getHitMapping() >= 0 && getHitChannel() >= 1 && getHitChannel() <= 16
+                && getRetriggerMapping() >= 0 && getRetriggerChannel() >= 1 && getRetriggerChannel() <= 16
+                && getOnThresholdLow() >= 0 && getOnThresholdHigh() >= 0
+                && getOffThresholdLow() >= 0 && getOffThresholdHigh() >= 0
+                && getResendRate() >= 1 && getResendRate() <= 15
+                && getSensitivity() >= 0 && getSensitivity() <= 5
+                && store.isBoolean(base + CC_RETRIGGER_17) && store.isBoolean(base + CC_RETRIGGER_8);
+    }
+
+    // The fields as they are saved to a file
+    JsonObject toJson() {
+        JsonObject o = new JsonObject();
+        o.addProperty("hitMapping", getHitMapping());
+        o.addProperty("hitChannel", getHitChannel());
+        o.addProperty("retriggerMapping", getRetriggerMapping());
+        o.addProperty("retriggerChannel", getRetriggerChannel());
+        o.addProperty("ccRetrigger17", getCcRetrigger17());
+        o.addProperty("ccRetrigger8", getCcRetrigger8());
+        o.addProperty("onThresholdLow", getOnThresholdLow());
+        o.addProperty("onThresholdHigh", getOnThresholdHigh());
+        o.addProperty("offThresholdLow", getOffThresholdLow());
+        o.addProperty("offThresholdHigh", getOffThresholdHigh());
+        o.addProperty("resendRate", getResendRate());
+        o.addProperty("sensitivity", getSensitivity());
+        return o;
+    }
 }
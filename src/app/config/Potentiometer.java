@@ -1,39 +1,66 @@
 package app.config;
 
+import com.google.gson.JsonObject;
+
+// View over the fields of one potentiometer in a PackedConfig
 class Potentiometer {
+    // Field offsets and size in the packed configuration
     // 0 to 127
-    private byte mapping;
+    private static final int MAPPING = 0;
     // 1 to 16
-    private byte channel;
+    private static final int CHANNEL = 1;
+    static final int SIZE = 2;
+
+    private final PackedConfig store;
+    private final int base;
 
 
-    public Potentiometer() {
-        mapping = 0;
-        channel = 1;
+    public Potentiometer(PackedConfig store, int index) {
+        this.store = store;
+        base = PackedConfig.POTENTIOMETERS + index * SIZE;
+    }
+
+    // Default values
+    void reset() {
+        store.set(base + MAPPING, (byte) 0);
+        store.set(base + CHANNEL, (byte) 1);
     }
 
 
     public byte getMapping() {
-        return mapping;
+        return store.get(base + MAPPING);
     }
 
     public void setMapping(byte mapping) throws IllegalArgumentException {
         if (mapping < 0) {
             throw new IllegalArgumentException();
         } else {
-            this.mapping = mapping;
+            store.set(base + MAPPING, mapping);
         }
     }
 
     public byte getChannel() {
-        return channel;
+        return store.get(base + CHANNEL);
     }
 
     public void setChannel(byte channel) throws IllegalArgumentException {
         if (channel < 1 || channel > 16) {
             throw new IllegalArgumentException();
         } else {
-            this.channel = channel;
+            store.set(base + CHANNEL, channel);
         }
     }
+
+    // Whether the stored values are ones the setters would accept
+    boolean isValid() {
+        return getMapping() >= 0 && getChannel() >= 1 && getChannel() <= 16;
+    }
+
+    // The fields as they are saved to a file
+    JsonObject toJson() {
+        JsonObject o = new JsonObject();
+        o.addProperty("mapping", getMapping());
+        o.addProperty("channel", getChannel());
+        return o;
+    }
 }
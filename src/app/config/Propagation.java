@@ -0,0 +1,116 @@
+package app.config;
+
+
+// What the propagators of TweakerConfig copy, and where to. Every target set is worked out once, here,
+// as a mask over the controls of the group (bit i is control i) for every source control; a source
+// with nothing to propagate to has an empty mask. The fields are masks over the offsets of a control
+// (bit f is the field at offset f), split into the settings, which are always copied, and the
+// mappings, which are only copied when the user does not keep them.
+//
+// Layout of the controls, from the model (check controls.svg):
+//  - Encoders: 0 is the big one, 1 to 3 and 4 to 6 are two rows, so i and i + 3 share a column
+//  - Potentiometers: 0 and 1 are knobs, 2 and 3 faders, 4 the crossfader
+//  - Buttons: 0 to 31 the grid (4 rows of 8), 32 to 34 and 35 to 37 the two columns of control
+//    buttons, 38 to 42 the navigation buttons (38 to 40 are a column, and 39, 41 and 42 a row)
+//  - Pads: two rows of 4
+final class Propagation {
+
+    // Target sets
+    static final int ALL = 0;
+    static final int GRID = 1;
+    static final int CONTROL = 2;
+    static final int COLUMN = 3;
+    static final int ROW = 4;
+    static final int FADERS = 5;
+    private static final int SETS = 6;
+
+    // [group][set][source]
+    private static final long[][][] TARGETS = new long[ConfigChange.GROUPS][SETS][];
+
+    // Fields, by group: settings and mappings. The encoder LED mapping is not propagated
+    private static final int[] SETTINGS = {0b1111, 0, 0b11100, 0b111111110000, 0b1, 0b1};
+    private static final int[] MAPPINGS = {0b110000, 0b11, 0b11, 0b1111, 0b110, 0b110};
+
+    static {
+        int encoders = PackedConfig.ENCODER_COUNT;
+        int pots = PackedConfig.POTENTIOMETER_COUNT;
+        int buttons = PackedConfig.BUTTON_COUNT;
+        int pads = PackedConfig.PAD_COUNT;
+
+        long[][] enc = TARGETS[ConfigChange.ENCODERS];
+        enc[ALL] = new long[encoders];
+        enc[ROW] = new long[encoders];
+        enc[COLUMN] = new long[encoders];
+        for (int id = 0; id < encoders; id++) {
+            enc[ALL][id] = range(0, encoders);
+            if (id == 0) continue;
+            // Each encoder only has the one above or below it
+            enc[ROW][id] = 1L << (id > 3 ? id - 3 : id + 3);
+            enc[COLUMN][id] = id < 4 ? range(1, 4) : range(4, 7);
+        }
+
+        long[][] pot = TARGETS[ConfigChange.POTENTIOMETERS];
+        pot[ALL] = new long[pots];
+        pot[FADERS] = new long[pots];
+        for (int id = 0; id < pots; id++) {
+            // "Faders and crossfader" and "Faders only" in the editor
+            pot[ALL][id] = range(2, 5);
+            pot[FADERS][id] = range(2, 4);
+        }
+
+        long[][] but = TARGETS[ConfigChange.BUTTONS];
+        for (int set = ALL; set <= ROW; set++) but[set] = new long[buttons];
+        for (int id = 0; id < buttons; id++) {
+            but[ALL][id] = range(0, buttons);
+            but[GRID][id] = range(0, 32);
+            but[CONTROL][id] = range(32, 38);
+            if (id < 32) {
+                long column = 0;
+                for (int i = id % 8; i < 32; i += 8) column |= 1L << i;
+                but[COLUMN][id] = column;
+                but[ROW][id] = range(id / 8 * 8, id / 8 * 8 + 8);
+            } else if (id < 38) {
+                but[COLUMN][id] = id < 35 ? range(32, 35) : range(35, 38);
+                but[ROW][id] = 1L << (id < 35 ? id + 3 : id - 3);
+            } else {
+                long column = 1L << 38 | 1L << 39 | 1L << 40;
+                long row = 1L << 39 | 1L << 41 | 1L << 42;
+                if ((column & 1L << id) != 0) but[COLUMN][id] = column;
+                if ((row & 1L << id) != 0) but[ROW][id] = row;
+            }
+        }
+
+        long[][] pad = TARGETS[ConfigChange.PADS];
+        pad[ALL] = new long[pads];
+        pad[ROW] = new long[pads];
+        pad[COLUMN] = new long[pads];
+        for (int id = 0; id < pads; id++) {
+            pad[ALL][id] = range(0, pads);
+            pad[ROW][id] = range(id / 4 * 4, id / 4 * 4 + 4);
+            pad[COLUMN][id] = 1L << (id % 4) | 1L << (id % 4 + 4);
+        }
+    }
+
+    private Propagation() {
+    }
+
+
+    // Bits [from, to)
+    private static long range(int from, int to) {
+        return (to == 64 ? -1L : (1L << to) - 1) & -(1L << from);
+    }
+
+    // Controls a set reaches from a source. Throws IllegalArgumentException if the group has no such
+    // set or the source is not a control of the group
+    static long targets(int group, int set, int source) {
+        long[] sources = TARGETS[group][set];
+        if (sources == null) throw new IllegalArgumentException("Group " + group + " has no target set " + set);
+        if (source < 0 || source >= sources.length) throw new IllegalArgumentException("Invalid control id: " + source);
+        return sources[source];
+    }
+
+    // Fields to copy from the source to the targets
+    static int fields(int group, boolean keepMappings) {
+        return keepMappings ? SETTINGS[group] : SETTINGS[group] | MAPPINGS[group];
+    }
+}
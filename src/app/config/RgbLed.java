@@ -1,49 +1,78 @@
 package app.config;
 
+import com.google.gson.JsonObject;
+
 import java.util.Arrays;
 
+// View over the fields of one RGB LED in a PackedConfig.
 // Lights are linked to their corresponding control (encoder,
 // button, pad) according to page 13 in the Tweaker User Manual
 class RgbLed {
+    // Field offsets and size in the packed configuration
     // (o)ff, (g)reen, (r)ed, (y)ellow, (b)lue, (c)yan, (m)agenta, (w)hite
-    private char color;
+    private static final int COLOR = 0;
     // Mapping
-    private byte mapping;
+    private static final int MAPPING = 1;
     // Channel
-    private byte channel;
+    private static final int CHANNEL = 2;
+    static final int SIZE = 3;
+
+    private final PackedConfig store;
+    private final int base;
+
+    public RgbLed(PackedConfig store, int index) {
+        this.store = store;
+        base = PackedConfig.BUT_LEDS + index * SIZE;
+    }
 
-    public RgbLed() {
-        color = 'o';
-        mapping = 0;
-        channel = 1;
+    // Default values
+    void reset() {
+        store.setChar(base + COLOR, 'o');
+        store.set(base + MAPPING, (byte) 0);
+        store.set(base + CHANNEL, (byte) 1);
     }
 
 
     public char getColor() {
-        return color;
+        return store.getChar(base + COLOR);
     }
 
     public void setColor(char color) throws IllegalArgumentException {
         if (Arrays.asList('o', 'g', 'r', 'y', 'b', 'c', 'm', 'w').contains(color)) {
-            this.color = color;
+            store.setChar(base + COLOR, color);
         } else {
             throw new IllegalArgumentException();
         }
     }
 
     public byte getMapping() {
-        return mapping;
+        return store.get(base + MAPPING);
     }
 
     public void setMapping(byte mapping) {
-        this.mapping = mapping;
+        store.set(base + MAPPING, mapping);
     }
 
     public byte getChannel() {
-        return channel;
+        return store.get(base + CHANNEL);
     }
 
     public void setChannel(byte channel) {
-        this.channel = channel;
+        store.set(base + CHANNEL, channel);
+    }
+
+    // Whether the stored values are ones the setters would accept
+    boolean isValid() {
+        return Arrays.asList('o', 'g', 'r', 'y', 'b', 'c', 'm', 'w').contains(getColor())
+                && getMapping() >= 0 && getChannel() >= 1 && getChannel() <= 16;
+    }
+
+    // The fields as they are saved to a file
+    JsonObject toJson() {
+        JsonObject o = new JsonObject();
+        o.addProperty("color", getColor());
+        o.addProperty("mapping", getMapping());
+        o.addProperty("channel", getChannel());
+        return o;
     }
 }
@@ -1,20 +1,42 @@
 package app.config;
 
+import app.com.DeviceRegistry;
+import app.com.DumpVerifier;
+import app.com.HandlerPool;
+import app.com.SendProgress;
+import app.com.SysExCodec;
 import app.com.TweakerHandler;
+import app.log.Log;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.internal.LinkedTreeMap;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyStringProperty;
+import javafx.beans.property.ReadOnlyStringWrapper;
 import javafx.scene.control.Alert;
 import javafx.scene.effect.ImageInput;
 import javafx.scene.layout.Region;
 import javafx.scene.text.Text;
 
+import javax.sound.midi.ShortMessage;
 import java.io.*;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 
 
 public class TweakerConfig {
@@ -23,109 +45,167 @@ public class TweakerConfig {
     private boolean synced;
     private Text changesText;
     private final TweakerHandler handler;
+    private boolean verifyDumps;
+    private DumpVerifier verifier;
+
+    // Dump in progress (see dumpAsync), and what the UI follows of it. Only used from the FX thread
+    private SendProgress currentDump;
+    private final ReadOnlyDoubleWrapper dumpProgress = new ReadOnlyDoubleWrapper(this, "dumpProgress", 0);
+    private final ReadOnlyStringWrapper dumpStatus = new ReadOnlyStringWrapper(this, "dumpStatus", "");
+    private final AtomicBoolean progressPosted = new AtomicBoolean();
+    // Dumps are sent one after the other, off the FX thread
+    private static final ExecutorService DUMP_EXECUTOR = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "config-dump");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // Every value of the configuration, in one array (see PackedConfig). The controls below are
+    // views over it.
+    // It is edited by one thread at a time, the one the UI runs on, and everything else in this class
+    // (dirty controls, dump plan, snapshots, mapping index, listeners) belongs to that thread. Other
+    // threads (dumps, autosave, MIDI input...) only read whole copies: toPackedBytes(), packedHashCode()
+    // and saveToFile() take them without blocking the editing thread, and every edit that touches
+    // several fields (propagations, loads, restores) is seen whole or not at all
+    private final PackedConfig packed = new PackedConfig();
 
     // Controls (check controls.svg)
     // Encoders (in blue)
-    private Encoder[] encoders = new Encoder[7];
+    private final Encoder[] encoders = new Encoder[PackedConfig.ENCODER_COUNT];
     // Potentiometers (in green)
-    private final Potentiometer[] potentiometers =  new Potentiometer[5];
+    private final Potentiometer[] potentiometers =  new Potentiometer[PackedConfig.POTENTIOMETER_COUNT];
     // Buttons (in yellow)
-    private final Button[] buttons = new Button[50];
+    private final Button[] buttons = new Button[PackedConfig.BUTTON_COUNT];
     // Pads (in red)
-    private final Pad[] pads = new Pad[8];
+    private final Pad[] pads = new Pad[PackedConfig.PAD_COUNT];
 
     // Lights
-    private final RgbLed[] butLeds = new RgbLed[38];
+    private final RgbLed[] butLeds = new RgbLed[PackedConfig.BUT_LED_COUNT];
     //private final MonoLed[] padLeds = new MonoLed[8]; TODO
-    private final MonoLed[] navLeds = new MonoLed[5];
+    private final MonoLed[] navLeds = new MonoLed[PackedConfig.NAV_LED_COUNT];
     //private final MonoLed[] encLeds = new MonoLed[6]; TODO
 
+    // Control groups, used to index the per-control state below
+    private static final int ENCODERS = ConfigChange.ENCODERS;
+    private static final int POTENTIOMETERS = ConfigChange.POTENTIOMETERS;
+    private static final int BUTTONS = ConfigChange.BUTTONS;
+    private static final int PADS = ConfigChange.PADS;
+    private static final int BUT_LEDS = ConfigChange.BUT_LEDS;
+    private static final int NAV_LEDS = ConfigChange.NAV_LEDS;
+    private static final int GROUPS = ConfigChange.GROUPS;
+    // Where each group starts in the packed configuration, and the bytes each of its controls takes
+    private static final int[] GROUP_OFFSETS = {PackedConfig.ENCODERS, PackedConfig.POTENTIOMETERS,
+            PackedConfig.BUTTONS, PackedConfig.PADS, PackedConfig.BUT_LEDS, PackedConfig.NAV_LEDS};
+    private static final int[] GROUP_STRIDES = {Encoder.SIZE, Potentiometer.SIZE, Button.SIZE, Pad.SIZE,
+            RgbLed.SIZE, MonoLed.SIZE};
+
+    // Dirty tracking: one bit per control (bit i is control i of the group) that is set when the
+    // control changes and cleared when it has been dumped successfully. No group has more than 64
+    // controls, so a long is enough for each one
+    private final long[] dirty = new long[GROUPS];
+
+    // Compiled dump (see DumpPlan): the messages of every group, kept until a control of the group
+    // changes, and the plan built from them. Only used from the thread that changes the controls
+    private final byte[][] planSections = new byte[GROUPS][];
+    private final int[][] planEnds = new int[GROUPS][];
+    private DumpPlan plan;
+    // Order of the groups in a dump: the mapping blocks first, then the settings and lights
+    private static final int[] SEND_ORDER = {BUTTONS, POTENTIOMETERS, ENCODERS, PADS, BUT_LEDS, NAV_LEDS};
+
+    // Last snapshot taken or restored (see snapshot()), and the groups changed since then (bit g is
+    // group g). The groups that did not change are shared with the next snapshot
+    private ConfigSnapshot snapshot;
+    private int changedSinceSnapshot;
+
+    // Controls by the message they send, to find conflicts (see MappingIndex)
+    private final MappingIndex mappingIndex = new MappingIndex();
+
+    // Change notifications (see addChangeListener): the controls changed since the last delivery, and
+    // the values they had then, to tell which fields really changed
+    public interface ChangeListener {
+        void changed(ConfigChange change);
+    }
+    private final CopyOnWriteArrayList<ChangeListener> changeListeners = new CopyOnWriteArrayList<>();
+    private final long[] pendingChanges = new long[GROUPS];
+    private PackedConfig published;
+    private boolean flushPosted;
+
 
 
     // Auxiliary functions
-    private void printByteArray(byte[] array) {
+    private void printByteArray(byte[] array, int length) {
+        if (!Log.isDebugEnabled()) return;
         StringBuilder s = new StringBuilder("[");
-        for (int i = 0; i < array.length; i++) {
-            if (i == array.length - 1) s.append(array[i] & 0xFF).append("]");
+        for (int i = 0; i < length; i++) {
+            if (i == length - 1) s.append(array[i] & 0xFF).append("]");
             else s.append(array[i] & 0xFF).append(", ");
         }
-        System.out.println(s);
+        Log.debug("{}", s);
     }
 
-    // Returns a byte of the form:
-    //   xx c3 c2 c1 c0 m2 m1 m0
-    // With m2:m0 being the output type (0 = note, 1 = CC) and
-    // c3:c0 being the channel number (0 to 15)
-    private byte getCNOT(int channelNumber, boolean outputType) {
-
-        if (channelNumber < 1 || channelNumber > 16) {
-            throw new IllegalArgumentException("channelNumber out of bounds");
-        }
-
-        BitSet bitSet = new BitSet(8);
 
-        // Set the output type
-        if (!outputType) bitSet.set(0);
 
-        // Set the channel number
-        channelNumber--;
-        String s = Integer.toBinaryString(channelNumber);
-        // Crop string
-        if (s.length() > 4) s = s.substring(s.length() - 4);
-        // Or fill it
-        else if (s.length() < 4) for (int i = 4 - s.length(); i > 0; i--) s = "0" + s;
-        // Set the bytes
-        byte[] chars = s.getBytes();
-        if (chars[0] == '1') bitSet.set(6);
-        if (chars[1] == '1') bitSet.set(5);
-        if (chars[2] == '1') bitSet.set(4);
-        if (chars[3] == '1') bitSet.set(3);
+    // Initialize handler and control configurations, and look for the hardware
+    public TweakerConfig() {
 
-        // Print representation
-        //System.out.println("x" + s + "00" + (outputType ? "1" : "0"));
-        //System.out.println(bitSet.toString());
+        this(new TweakerHandler());
 
-        return 0;
-        //return bitSet.toByteArray()[0]; TODO
+        // Try to connect to the hardware. Looking for it can be slow, so it is done in the background
+        // and the warning is shown on the FX thread if it is not found
+        handler.automaticOpenAsync().exceptionally(e -> {
+            Platform.runLater(() -> {
+                Alert a = new Alert(Alert.AlertType.WARNING, "The Electrix Tweaker is not connected. " +
+                        "Dumping will not work until it is.");
+                a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
+                a.showAndWait();
+            });
+            return null;
+        });
     }
 
-
-
-    // Initialize handler and control configurations
-    public TweakerConfig() {
+    // Configuration over a handler that is managed by the caller (e.g. attached to a VirtualTweaker).
+    // Does not try to connect, and does not need the UI
+    public TweakerConfig(TweakerHandler handler) {
 
         // This will only be true immediately after dumping the config to the hardware,
         // and will become false when a change is made to the config
         synced = false;
-        handler = new TweakerHandler();
+        this.handler = handler;
+        verifyDumps = false;
+        verifier = null;
 
         // Set values for all the controls
         // - Encoders
         for (int i = 0; i < encoders.length; i++) {
-            encoders[i] = new Encoder();
+            encoders[i] = new Encoder(packed, i);
+            encoders[i].reset();
             // Change the mapping and LED mapping
             encoders[i].setMapping((byte) (56 + i));
             encoders[i].setLedMapping((byte) (79 + i));
         }
         // - Potentiometers
         for (int i = 0; i < potentiometers.length; i++) {
-            potentiometers[i] = new Potentiometer();
+            potentiometers[i] = new Potentiometer(packed, i);
+            potentiometers[i].reset();
             potentiometers[i].setMapping((byte) (51 + i));
         }
         // - Buttons
         for (int i = 0; i < buttons.length; i++) {
-            buttons[i] = new Button();
+            buttons[i] = new Button(packed, i);
+            buttons[i].reset();
             buttons[i].setMapping((byte) (1 + i));
         }
         // - Pads
         for (int i = 0; i < pads.length; i++) {
-            pads[i] = new Pad();
+            pads[i] = new Pad(packed, i);
+            pads[i].reset();
             pads[i].setHitMapping((byte) (63 + i));
             pads[i].setRetriggerMapping((byte) (71 + i));
         }
         // - Button RGB Lights
         for (int i = 0; i < butLeds.length; i++) {
-            butLeds[i] = new RgbLed();
+            butLeds[i] = new RgbLed(packed, i);
+            butLeds[i].reset();
             butLeds[i].setMapping((byte) (i + 1));
         }
         // - Pad lights
@@ -135,7 +215,8 @@ public class TweakerConfig {
         }*/
         // - Navigation lights
         for (int i = 0; i < navLeds.length; i++) {
-            navLeds[i] = new MonoLed();
+            navLeds[i] = new MonoLed(packed, i);
+            navLeds[i].reset();
             navLeds[i].setMapping((byte) (i + 39));
         }
         // - Encoder lights
@@ -144,226 +225,429 @@ public class TweakerConfig {
             encLeds[i].setMapping((byte) (i + 44));
         }*/
 
-        // Try to connect to the hardware
+        // Nothing has been dumped yet, so the hardware may differ in every control
+        markAllDirty();
+        snapshot = null;
+        changedSinceSnapshot = 0;
+        published = packed.copy();
+        flushPosted = false;
+        for (int g = 0; g < GROUPS; g++) reindex(g, allMask(g));
+    }
+
+
+    // Handler the configuration is dumped to. Its input (getInput()) is what the device sends
+    public TweakerHandler getHandler() {
+        return handler;
+    }
+
+
+    // Dump the whole configuration to the hardware. Errors are shown in a (non modal) alert
+    public void dump() {
+        alertOnFailure(dumpAsync(false));
+    }
+
+    // Dump only the controls that changed since the last successful dump
+    public void dumpChanges() {
+        alertOnFailure(dumpAsync(true));
+    }
+
+    private void alertOnFailure(CompletableFuture<DumpReport> dump) {
+        dump.whenComplete((r, e) -> {
+            Throwable cause = causeOf(e);
+            if (cause == null || cause instanceof CancellationException) return;
+            Platform.runLater(() -> {
+                Alert al = new Alert(Alert.AlertType.ERROR, "The configuration could not be dumped " +
+                        "(" + cause.getMessage() + ").");
+                al.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
+                al.show();
+            });
+        });
+    }
+
+    // Unwraps the exception a future completed with
+    public static Throwable causeOf(Throwable e) {
+        while (e instanceof CompletionException && e.getCause() != null) e = e.getCause();
+        return e;
+    }
+
+
+    // Dump the whole configuration (or only the controls that changed) without blocking the caller,
+    // which must be the thread that changes the controls (the FX thread). Everything else happens in
+    // the background:
+    //  - If the hardware is not connected, it is looked for once, and the dump fails if it is not found
+    //  - The messages are sent (and checked, if dumps are verified), while dumpProgressProperty() and
+    //    dumpStatusProperty() follow them
+    //  - The config is marked as synced if everything went through. Otherwise the controls that were
+    //    being sent are marked as changed again
+    // The future completes with a report, or exceptionally. Cancelling it (or cancelDump()) stops the
+    // dump before its next message
+    public CompletableFuture<DumpReport> dumpAsync(boolean onlyChanges) {
+
+        // Take the controls to send. They are marked as clean now, and restored if the dump fails, so
+        // any change made while the dump is in flight is kept
+        final long[] sending = new long[GROUPS];
+        for (int g = 0; g < GROUPS; g++) {
+            sending[g] = onlyChanges ? dirty[g] : allMask(g);
+            dirty[g] = 0;
+        }
+        final byte[] stream = plan().select(sending);
+        final DumpVerifier v = verifyDumps ? getVerifier() : null;
+        final SendProgress progress = new SendProgress(stream);
+        Log.debug("dumpAsync: {} messages, {} bytes", progress.getTotal(), stream.length);
+
+        // The properties follow the latest dump
+        currentDump = progress;
+        progress.setListener(() -> publishProgress(progress));
+        publishProgress(progress);
+
+        final long start = System.nanoTime();
+        CompletableFuture<DumpReport> result = CompletableFuture.supplyAsync(() -> {
+            try {
+                if (!handler.isConnected()) handler.automaticOpen();
+                DumpVerifier.Report verification = null;
+                if (stream.length > 0) {
+                    if (v != null) {
+                        verification = v.verify(stream, progress);
+                    } else {
+                        handler.sendStream(stream, progress);
+                        handler.flush().join();
+                    }
+                }
+                if (progress.isCancelled()) throw new CancellationException("Dump cancelled");
+                if (verification != null && !verification.isVerified())
+                    throw new Exception("The device did not confirm the configuration (" + verification + ")");
+                return new DumpReport(onlyChanges, progress.getTotal(), stream.length,
+                        System.nanoTime() - start, verification);
+            } catch (CompletionException | CancellationException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, DUMP_EXECUTOR);
+
+        // Cancelling the returned future stops the sending too. The UI is only touched from the FX thread
+        result.whenComplete((r, e) -> {
+            if (e != null) progress.cancel();
+            runOnFx(() -> {
+                if (currentDump == progress) {
+                    currentDump = null;
+                    dumpProgress.set(e == null ? 1 : 0);
+                    dumpStatus.set("");
+                }
+                if (e != null) for (int g = 0; g < GROUPS; g++) dirty[g] |= sending[g];
+                if (e == null && !hasChanges()) sync();
+                else unsync();
+            });
+        });
+        return result;
+    }
+
+    // Stops the dump in progress, if any. Its future completes with a CancellationException
+    public void cancelDump() {
+        if (currentDump != null) currentDump.cancel();
+    }
+
+    public boolean isDumping() {
+        return currentDump != null;
+    }
+
+    // Fraction of the messages of the current dump already sent (0 to 1)
+    public ReadOnlyDoubleProperty dumpProgressProperty() {
+        return dumpProgress.getReadOnlyProperty();
+    }
+
+    // "Dumping... sent / total" while a dump is in progress, empty otherwise
+    public ReadOnlyStringProperty dumpStatusProperty() {
+        return dumpStatus.getReadOnlyProperty();
+    }
+
+    // Called on the sender thread after every message. The properties are updated on the FX thread,
+    // at most once per pulse however fast the messages go
+    private void publishProgress(SendProgress progress) {
+        if (!progressPosted.compareAndSet(false, true)) return;
+        runOnFx(() -> {
+            progressPosted.set(false);
+            if (currentDump != progress) return;
+            int sent = progress.getSent();
+            int total = progress.getTotal();
+            dumpProgress.set(total == 0 ? 1 : (double) sent / total);
+            dumpStatus.set("Dumping... " + sent + " / " + total);
+        });
+    }
+
+    // Without the FX toolkit (e.g. a headless config) there is no FX thread, so run it right away
+    private static void runOnFx(Runnable r) {
+        try {
+            Platform.runLater(r);
+        } catch (IllegalStateException e) {
+            r.run();
+        }
+    }
+
+    // Sends the whole configuration to the given handler and waits for the device to confirm it.
+    // Does not touch the sync status. Blocks, so it must not be called from the FX thread
+    public DumpVerifier.Report dumpVerified(TweakerHandler handler) throws Exception {
+        DumpVerifier v = handler == this.handler ? getVerifier() : getVerifier().withHandler(handler);
+        return v.verify(plan().all());
+    }
+
+    // Whether dump() and dumpChanges() check that the device applied what was sent, using what it
+    // sends back. Only for devices that echo, like a VirtualTweaker with setEcho(true): the Tweaker
+    // sends nothing back, so every dump to it would fail. Needs a matcher first (getVerifier(), e.g.
+    // DumpVerifier.ECHO); there is no default
+    public void setVerifyDumps(boolean verifyDumps) {
+        if (verifyDumps && getVerifier().getMatcher() == null)
+            throw new IllegalStateException("Dumps can only be verified on a device that sends them back; set a matcher first");
+        this.verifyDumps = verifyDumps;
+    }
+
+    public boolean getVerifyDumps() {
+        return verifyDumps;
+    }
+
+    // Settings of the verification (matcher, timeout, retries)
+    public DumpVerifier getVerifier() {
+        if (verifier == null) verifier = new DumpVerifier(handler);
+        return verifier;
+    }
+
+
+    // Queue the whole configuration on the given handler, without touching the sync status. The future
+    // completes when everything has been sent
+    public CompletableFuture<Void> dumpTo(TweakerHandler handler) {
         try {
-            handler.automaticOpen();
+            handler.sendStream(plan().all());
         } catch (Exception e) {
-            Alert a = new Alert(Alert.AlertType.WARNING, "The Electrix Tweaker is not connected. " +
-                    "Dumping will not work until it is.");
-            a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
-            a.showAndWait();
+            return CompletableFuture.failedFuture(e);
         }
+        return handler.flush();
     }
 
 
-    // Dump the configuration to the hardware
-    public void dump() {
+    // Push the whole configuration to every Tweaker that is plugged in, e.g. to set up several
+    // devices for a show. The devices are opened for this and closed afterwards (except the one this
+    // editor is already connected to). Completes on a background thread
+    public CompletableFuture<List<HandlerPool.Result>> dumpToAll() {
+        final DumpPlan p = plan();
+        return CompletableFuture
+                .supplyAsync(() -> HandlerPool.openAll(DeviceRegistry.getDefault(), handler))
+                .thenCompose(pool -> dumpToAll(pool, p).whenComplete((r, e) -> pool.close()));
+    }
 
-        // Check if the hardware is connected, otherwise do not dump
-        if (!handler.isConnected()) {
-            Alert a = new Alert(Alert.AlertType.ERROR, "The Electrix Tweaker is not connected. " +
-                    "Please connect the hardware and press OK to try again.");
-            a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
-            a.showAndWait();
+    // Push the whole configuration to every device of the pool at the same time. Each device gets
+    // its own thread, and the returned future has one result (time, messages, error) per device.
+    // Dirty tracking only follows the main handler, so this does not change the sync status
+    public CompletableFuture<List<HandlerPool.Result>> dumpToAll(HandlerPool pool) {
+        return dumpToAll(pool, plan());
+    }
+
+    // The plan is taken on the calling thread, so the pool threads never read the controls
+    private CompletableFuture<List<HandlerPool.Result>> dumpToAll(HandlerPool pool, DumpPlan p) {
+        return pool.run(h -> {
             try {
-                handler.automaticOpen();
+                h.sendStream(p.all());
             } catch (Exception e) {
-                a = new Alert(Alert.AlertType.ERROR, "The connection could not be established " +
-                        "(" + e.getMessage() + "). Nothing will be dumped.");
-                a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
-                a.showAndWait();
-                return;
+                throw new CompletionException(e);
             }
+        });
+    }
+
+
+    // -+- Dump plan -+-
+
+    // The compiled plan. Built again from the cached sections when any of them has been invalidated
+    private DumpPlan plan() {
+        DumpPlan p = plan;
+        if (p != null) return p;
+        for (int g = 0; g < GROUPS; g++) {
+            if (planSections[g] == null) compileSection(g);
         }
+        p = new DumpPlan(planSections.clone(), planEnds.clone(), SEND_ORDER);
+        plan = p;
+        return p;
+    }
 
-        // Compose the SysEx byte arrays
-        byte[] a;
+    // Forgets the compiled messages of a group. Called by every change
+    private void invalidatePlan(int group) {
+        planSections[group] = null;
+        plan = null;
+    }
 
+    private void invalidatePlan() {
+        for (int g = 0; g < GROUPS; g++) planSections[g] = null;
+        plan = null;
+    }
 
-        // -------------
-        // B U T T O N S
-        // -------------
+    // Turns the controls of a group into the messages that configure them, see DumpPlan for the layout
+    private void compileSection(int group) {
 
-        /*// -+- Button mappings -+-
-        a = new byte[107];
-        // Headers
-        a[0] = (byte) 240;
-        a[1] = (byte) 0;
-        a[2] = (byte) 1;
-        a[3] = (byte) 106;
-        a[4] = (byte) 1;
-        a[5] = (byte) 1;
-        a[106]=(byte) 247;
-        // Data
-        for (int i = 0; i < buttons.length; i++) {
-            // Channel number / output type
-            a[6 + i * 2] = getCNOT(buttons[i].getChannel(), buttons[i].getOutputType());
-            // Mapping
-            a[6 + i * 2 + 1] = buttons[i].getMapping();
-        }
-        // Send
-        try {handler.sendSysEx(a.clone());}
-        catch (Exception e) {
-            Alert al = new Alert(Alert.AlertType.ERROR, "Could not send button mappings SysEx " +
-                    "(" + e.getMessage() + "). Nothing else will be dumped.");
-            al.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
-            al.showAndWait();
-            return;
-        }*/
-        // -+- Button local control -+-
+        byte[] section;
+        int[] ends;
+        int pos;
 
+        switch (group) {
 
+            // -------------
+            // B U T T O N S
+            // -------------
 
-        // ---------------------------
-        // P O T E N T I O M E T E R S
-        // ---------------------------
+            // -+- Button mappings -+-
+            // A single block for all of them, so the controls have no messages of their own
+            case BUTTONS -> {
+                section = new byte[SysExCodec.length(SysExCodec.BUTTONS)];
+                pos = SysExCodec.begin(SysExCodec.BUTTONS, section, 0);
+                for (int i = 0; i < buttons.length; i++) {
+                    SysExCodec.put(section, 0, i, buttons[i].getChannel(), buttons[i].getOutputType(), buttons[i].getMapping());
+                }
+                ends = sharedEnds(pos, buttons.length);
+            }
 
-        /*// -+- Potentiometer mappings -+-
-        a = new byte[17];
-        // Headers
-        a[0] = (byte) 240;
-        a[1] = (byte) 0;
-        a[2] = (byte) 1;
-        a[3] = (byte) 106;
-        a[4] = (byte) 1;
-        a[5] = (byte) 2;
-        a[16]= (byte) 247;
-        // Data
-        for (int i = 0; i < potentiometers.length; i++) {
-            // Channel number / output type
-            a[6 + i * 2] = getCNOT(potentiometers[i].getChannel(), true);
-            // Mapping
-            a[6 + i * 2 + 1] = potentiometers[i].getMapping();
-        }
-        // Send
-        try {handler.sendSysEx(a.clone());}
-        catch (Exception e) {
-            Alert al = new Alert(Alert.AlertType.ERROR, "Could not send potentiometer mappings SysEx " +
-                    "(" + e.getMessage() + "). Nothing else will be dumped.");
-            al.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
-            al.showAndWait();
-            return;
-        }*/
 
+            // -----------------------------
+            // P O T E N T I O M E T E R S
+            // -----------------------------
+
+            // -+- Potentiometer mappings -+-
+            case POTENTIOMETERS -> {
+                section = new byte[SysExCodec.length(SysExCodec.POTENTIOMETERS)];
+                pos = SysExCodec.begin(SysExCodec.POTENTIOMETERS, section, 0);
+                for (int i = 0; i < potentiometers.length; i++) {
+                    SysExCodec.put(section, 0, i, potentiometers[i].getChannel(), true, potentiometers[i].getMapping());
+                }
+                ends = sharedEnds(pos, potentiometers.length);
+            }
 
-        // ---------------
-        // E N C O D E R S
-        // ---------------
-
-        /*// -+- Encoder mappings -+-
-        a = new byte[21];
-        // Headers
-        a[0] = (byte) 240;
-        a[1] = (byte) 0;
-        a[2] = (byte) 1;
-        a[3] = (byte) 106;
-        a[4] = (byte) 1;
-        a[5] = (byte) 3;
-        a[20]= (byte) 247;
-        // Data
-        for (int i = 0; i < encoders.length; i++) {
-            // Channel number / output type
-            a[6 + i * 2] = getCNOT(encoders[i].getChannel(), false);
-            // Mapping
-            a[6 + i * 2 + 1] =  encoders[i].getMapping();
-        }
-        // Send
-        try {handler.sendSysEx(a.clone());}
-        catch (Exception e) {
-            Alert al = new Alert(Alert.AlertType.ERROR, "Could not send encoder mappings SysEx " +
-                    "(" + e.getMessage() + "). Nothing else will be dumped.");
-            al.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
-            al.showAndWait();
-            return;
-        }*/
 
+            // ---------------
+            // E N C O D E R S
+            // ---------------
 
-        // -+- Ring mode, Output mode and Speed combined -+-
-        // (Check Tweaker manual, page 25)
-        byte b;
-        for (Encoder encoder : encoders) {
-            b = 64;
-            // Offset with speed value
-            b += encoder.getSpeed() * 8;
-            // Offset with output mode
-            if (!encoder.getRelativeMode()) b += 4;
-            // Offset with ring mode
-            switch (encoder.getRingMode()) {
-                // Ignore f because it has no offset
-                case 'w' -> b += 1;
-                case 'e' -> b += 2;
-                case 's' -> b += 3;
+            // -+- Encoder mappings -+-
+            // Then the ring mode, output mode and speed of every encoder
+            case ENCODERS -> {
+                int block = SysExCodec.length(SysExCodec.ENCODERS);
+                section = new byte[block + encoders.length * 3];
+                pos = SysExCodec.begin(SysExCodec.ENCODERS, section, 0);
+                for (int i = 0; i < encoders.length; i++) {
+                    SysExCodec.put(section, 0, i, encoders[i].getChannel(), false, encoders[i].getMapping());
+                }
+                ends = new int[encoders.length + 1];
+                ends[0] = pos;
+                for (int i = 0; i < encoders.length; i++) {
+                    pos = putShort(section, pos, ShortMessage.CONTROL_CHANGE, 16, encoders[i].getMapping(), encoderSettings(encoders[i]));
+                    ends[i + 1] = pos;
+                }
+            }
+
+
+            // -------
+            // P A D S
+            // -------
+
+            // -+- Pad mappings -+-
+            // The hits come first, then the retriggers
+            case PADS -> {
+                section = new byte[SysExCodec.length(SysExCodec.PADS)];
+                pos = SysExCodec.begin(SysExCodec.PADS, section, 0);
+                for (int i = 0; i < pads.length; i++) {
+                    SysExCodec.put(section, 0, i, pads[i].getHitChannel(), true, pads[i].getHitMapping());
+                    SysExCodec.put(section, 0, pads.length + i, pads[i].getRetriggerChannel(), true,
+                            pads[i].getRetriggerMapping());
+                }
+                printByteArray(section, pos);
+                ends = sharedEnds(pos, pads.length);
+            }
+
+
+            // ---------------------
+            // B U T T O N   L E D S
+            // ---------------------
+
+            case BUT_LEDS -> {
+                section = new byte[butLeds.length * 3];
+                ends = new int[butLeds.length + 1];
+                pos = 0;
+                for (int i = 0; i < butLeds.length; i++) {
+                    RgbLed butLed = butLeds[i];
+                    pos = putShort(section, pos, ShortMessage.NOTE_ON, butLed.getChannel(), butLed.getMapping(),
+                            colorVelocity(butLed.getColor()));
+                    ends[i + 1] = pos;
+                }
             }
-            // Send the message
-            handler.sendCC(16, encoder.getMapping(), b);
-        }
-
-
-        // -------
-        // P A D S
-        // -------
-        
-        // -+- Pad mappings -+-
-        /*a = new byte[39];
-        // Headers
-        a[0] = (byte) 240;
-        a[1] = (byte) 0;
-        a[2] = (byte) 1;
-        a[3] = (byte) 106;
-        a[4] = (byte) 1;
-        a[5] = (byte) 4;
-        a[38]= (byte) 247;
-        // Data
-        for (int i = 0; i < pads.length; i++) {
-            a[6 + i * 2] = getCNOT(pads[i].getHitChannel(), true);
-            a[6 + i * 2 + 1] = pads[i].getHitMapping();
-        }
-        for (int i = 0; i < pads.length; i++) {
-            a[6 + (pads.length + i) * 2] = getCNOT(pads[i].getRetriggerChannel(), true);
-            a[6 + (pads.length + i) * 2 + 1] = pads[i].getRetriggerMapping();
-        }
-        // Send
-        printByteArray(a);
-        try {handler.sendSysEx(a.clone());}
-        catch (Exception e) {
-            Alert alert = new Alert(Alert.AlertType.ERROR, "Could not send pad mappings SysEx " +
-                    "(" + e.getMessage() + "). Nothing else will be dumped.");
-            alert.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
-            alert.showAndWait();
-            return;
-        }*/
 
 
-        // ---------------------
-        // B U T T O N   L E D S
-        // ---------------------
-
-        for (RgbLed butLed : butLeds) {
-            switch (butLed.getColor()) {
-                case 'o' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 0);
-                case 'g' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 1);
-                case 'r' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 4);
-                case 'y' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 8);
-                case 'b' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 16);
-                case 'c' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 32);
-                case 'm' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 64);
-                case 'w' -> handler.sendNote(butLed.getChannel(), butLed.getMapping(), 127);
+            // -----------------------------
+            // N A V I G A T I O N   L E D S
+            // -----------------------------
+
+            default -> {
+                section = new byte[navLeds.length * 3];
+                ends = new int[navLeds.length + 1];
+                pos = 0;
+                for (int i = 0; i < navLeds.length; i++) {
+                    MonoLed navLed = navLeds[i];
+                    pos = putShort(section, pos, ShortMessage.NOTE_ON, navLed.getChannel(), navLed.getMapping(),
+                            navLed.getStatus() ? 64 : 0);
+                    ends[i + 1] = pos;
+                }
             }
         }
 
+        // Messages skipped because of invalid values leave the end of the array unused
+        if (pos < section.length) section = Arrays.copyOf(section, pos);
+        planSections[group] = section;
+        planEnds[group] = ends;
+    }
 
-        // -----------------------------
-        // N A V I G A T I O N   L E D S
-        // -----------------------------
+    // Ends of a section where the controls have no messages of their own, only the common part
+    private static int[] sharedEnds(int common, int controls) {
+        int[] ends = new int[controls + 1];
+        Arrays.fill(ends, common);
+        return ends;
+    }
 
-        for (MonoLed navLed : navLeds) {
-            System.out.println("navLed status: " + navLed.getStatus());
-            if (navLed.getStatus()) handler.sendNote(navLed.getChannel(), navLed.getMapping(), 64);
-            else handler.sendNote(navLed.getChannel(), navLed.getMapping(), 0);
+    // Writes a channel message at section[pos] and returns where the next one goes. Values out of range
+    // are skipped, like sendNote and sendCC do
+    private static int putShort(byte[] section, int pos, int command, int channel, int data1, int data2) {
+        if (channel < 1 || channel > 16 || data1 < 0 || data1 > 127 || data2 < 0 || data2 > 127) {
+            Log.warn("compileSection: message out of range skipped (ch: {}, data: {})", channel, data1);
+            return pos;
         }
+        section[pos] = (byte) (command | (channel - 1));
+        section[pos + 1] = (byte) data1;
+        section[pos + 2] = (byte) data2;
+        return pos + 3;
+    }
 
+    // Ring mode, Output mode and Speed combined
+    // (Check Tweaker manual, page 25)
+    private static int encoderSettings(Encoder encoder) {
+        int b = 64;
+        // Offset with speed value
+        b += encoder.getSpeed() * 8;
+        // Offset with output mode
+        if (!encoder.getRelativeMode()) b += 4;
+        // Offset with ring mode
+        switch (encoder.getRingMode()) {
+            // Ignore f because it has no offset
+            case 'w' -> b += 1;
+            case 'e' -> b += 2;
+            case 's' -> b += 3;
+        }
+        return b;
+    }
 
-        sync();
+    private static int colorVelocity(char color) {
+        return switch (color) {
+            case 'g' -> TweakerHandler.GREEN;
+            case 'r' -> TweakerHandler.RED;
+            case 'y' -> TweakerHandler.YELLOW;
+            case 'b' -> TweakerHandler.BLUE;
+            case 'c' -> TweakerHandler.CYAN;
+            case 'm' -> TweakerHandler.MAGENTA;
+            case 'w' -> TweakerHandler.WHITE;
+            default -> TweakerHandler.OFF;
+        };
     }
 
 
@@ -373,25 +657,165 @@ public class TweakerConfig {
         this.changesText = changesText;
     }
 
+    // The text is only there when the UI is
     private void sync() {
         synced = true;
-        changesText.setText("Dumped successfully!");
+        if (changesText != null) changesText.setText("Dumped successfully!");
     }
 
     private void unsync() {
         synced = false;
-        changesText.setText("\u26A0 Some changes not dumped. \u26A0");
+        if (changesText != null) changesText.setText("\u26A0 Some changes not dumped. \u26A0");
+    }
+
+    // Called after every change to a control
+    private void changed(int group, int id) {
+        dirty[group] |= 1L << id;
+        changedSinceSnapshot |= 1 << group;
+        invalidatePlan(group);
+        unsync();
+        reindex(group, 1L << id);
+        notifyLater(group, 1L << id);
+    }
+
+    // Called after a change to several controls of the same group
+    private void changed(int group, long mask) {
+        dirty[group] |= mask;
+        changedSinceSnapshot |= 1 << group;
+        invalidatePlan(group);
+        unsync();
+        reindex(group, mask);
+        notifyLater(group, mask);
+    }
+
+    // -+- Mapping conflicts -+-
+
+    // Updates the mapping index for some controls of a group. Called by every change, which is
+    // cheaper than telling the mapping changes from the rest
+    private void reindex(int group, long mask) {
+        for (; mask != 0; mask &= mask - 1) {
+            int i = Long.numberOfTrailingZeros(mask);
+            switch (group) {
+                case ENCODERS -> mappingIndex.put(MappingIndex.ENCODER + i, MappingIndex.CC,
+                        encoders[i].getChannel(), encoders[i].getMapping());
+                case POTENTIOMETERS -> mappingIndex.put(MappingIndex.POTENTIOMETER + i, MappingIndex.NOTE,
+                        potentiometers[i].getChannel(), potentiometers[i].getMapping());
+                case BUTTONS -> mappingIndex.put(MappingIndex.BUTTON + i,
+                        buttons[i].getOutputType() ? MappingIndex.NOTE : MappingIndex.CC,
+                        buttons[i].getChannel(), buttons[i].getMapping());
+                case PADS -> {
+                    mappingIndex.put(MappingIndex.PAD_HIT + i, MappingIndex.NOTE,
+                            pads[i].getHitChannel(), pads[i].getHitMapping());
+                    mappingIndex.put(MappingIndex.PAD_RETRIGGER + i, MappingIndex.NOTE,
+                            pads[i].getRetriggerChannel(), pads[i].getRetriggerMapping());
+                }
+                // The LEDs are not indexed
+                default -> {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Which control sends each message, updated as the configuration changes. Also tells which
+    // control an incoming message comes from (MappingIndex.ownerOf)
+    public MappingIndex getMappingIndex() {
+        return mappingIndex;
+    }
+
+    // Every message sent by more than one control
+    public List<MappingIndex.Conflict> mappingConflicts() {
+        return mappingIndex.conflicts();
+    }
+
+
+    // -+- Change notifications -+-
+
+    // Listeners get what changed once per burst of edits: the changes made while handling one event
+    // (a propagation, a file load, an undo...) are delivered together on the next turn of the FX
+    // thread. Without the FX toolkit nothing is delivered until flushChanges() is called
+    public void addChangeListener(ChangeListener l) {
+        changeListeners.add(l);
+    }
+
+    public void removeChangeListener(ChangeListener l) {
+        changeListeners.remove(l);
+    }
+
+    private void notifyLater(int group, long mask) {
+        pendingChanges[group] |= mask;
+        if (flushPosted || changeListeners.isEmpty()) return;
+        try {
+            Platform.runLater(this::flushChanges);
+        } catch (IllegalStateException e) {
+            // No FX toolkit: kept until flushChanges(), without trying again every time
+        }
+        flushPosted = true;
+    }
+
+    // Delivers the pending changes now, if any value really changed. Returns the change delivered, or
+    // null
+    public ConfigChange flushChanges() {
+        flushPosted = false;
+        long[] controls = new long[GROUPS];
+        int[] fields = new int[GROUPS];
+        boolean any = false;
+        for (int g = 0; g < GROUPS; g++) {
+            long mask = pendingChanges[g];
+            pendingChanges[g] = 0;
+            int stride = GROUP_STRIDES[g];
+            for (; mask != 0; mask &= mask - 1) {
+                int i = Long.numberOfTrailingZeros(mask);
+                int base = GROUP_OFFSETS[g] + i * stride;
+                for (int f = 0; f < stride; f++) {
+                    if (packed.get(base + f) == published.get(base + f)) continue;
+                    published.set(base + f, packed.get(base + f));
+                    fields[g] |= 1 << f;
+                    controls[g] |= 1L << i;
+                }
+            }
+            any |= controls[g] != 0;
+        }
+        if (!any) return null;
+
+        ConfigChange change = new ConfigChange(controls, fields);
+        for (ChangeListener l : changeListeners) l.changed(change);
+        return change;
+    }
+
+
+    // Marks every control as changed, so the next delta dump sends everything. Useful when the state
+    // of the hardware is unknown (e.g. it has been power cycled)
+    public void markAllDirty() {
+        for (int g = 0; g < GROUPS; g++) dirty[g] = allMask(g);
+    }
+
+    private long allMask(int group) {
+        int n = switch (group) {
+            case ENCODERS -> encoders.length;
+            case POTENTIOMETERS -> potentiometers.length;
+            case BUTTONS -> buttons.length;
+            case PADS -> pads.length;
+            case BUT_LEDS -> butLeds.length;
+            default -> navLeds.length;
+        };
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+
+    public boolean hasChanges() {
+        for (long d : dirty) if (d != 0) return true;
+        return false;
     }
 
 
     // TODO Load configuration from file
     public void loadFromFile(File file) {
-        System.out.println("loadFromFile: load from " + file.getAbsolutePath());
+        Log.info("loadFromFile: load from {}", file.getAbsolutePath());
 
         Reader reader;
         try {reader = new FileReader(file);}
         catch (Exception e) {
-            System.out.println("loadFromFile: Could not read the file");
+            Log.warn("loadFromFile: Could not read the file");
             Alert a = new Alert(Alert.AlertType.ERROR, "The file could not be opened or read (" + e.getMessage() + ").");
             a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
             a.showAndWait();
@@ -401,9 +825,11 @@ public class TweakerConfig {
         // Read the file into a Map object
         Gson gson = new GsonBuilder().create();
         Map<?, ?> map = gson.fromJson(reader, Map.class);
+        try {reader.close();}
+        catch (IOException e) {Log.warn("loadFromFile: Could not close the file");}
 
         for (Map.Entry<?, ?> entry : map.entrySet()) {
-            System.out.println(entry.getKey() + "=" + entry.getValue());
+            Log.debug("{}={}", entry.getKey(), entry.getValue());
         }
 
         // Check the validity of the data
@@ -413,7 +839,7 @@ public class TweakerConfig {
             // Check every field
             // + ringMode
             if (!enc.containsKey("ringMode") || !(Arrays.asList("f", "w", "e", "s").contains(enc.get("ringMode")))) {
-                System.out.println("loadFromFile verification: No ringMode or wrong data");
+                Log.warn("loadFromFile verification: No ringMode or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'ringMode' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -421,7 +847,7 @@ public class TweakerConfig {
                 return;
             // + relativeMode
             } else if (!enc.containsKey("relativeMode") || !(enc.get("relativeMode") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No relativeMode or wrong data");
+                Log.warn("loadFromFile verification: No relativeMode or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'relativeMode' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -429,7 +855,7 @@ public class TweakerConfig {
                 return;
             // + speed
             } else if (!enc.containsKey("speed") || ((Double) enc.get("speed") < 1 || (Double) enc.get("speed") > 7)) {
-                System.out.println("loadFromFile verification: No speed or wrong data");
+                Log.warn("loadFromFile verification: No speed or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'speed' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -437,7 +863,7 @@ public class TweakerConfig {
                 return;
             // + localControl
             } else if (!enc.containsKey("localControl") || !(enc.get("relativeMode") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No localControl or wrong data");
+                Log.warn("loadFromFile verification: No localControl or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'localControl' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -445,7 +871,7 @@ public class TweakerConfig {
                 return;
             // + mapping
             } else if (!enc.containsKey("mapping") || ((Double) enc.get("mapping") < 0 || (Double) enc.get("mapping") > 127)) {
-                System.out.println("loadFromFile verification: No mapping or wrong data");
+                Log.warn("loadFromFile verification: No mapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'mapping' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -453,7 +879,7 @@ public class TweakerConfig {
                 return;
             // + channel
             } else if (!enc.containsKey("channel") || ((Double) enc.get("channel") < 1 || (Double) enc.get("channel") > 16)) {
-                System.out.println("loadFromFile verification: No channel or wrong data");
+                Log.warn("loadFromFile verification: No channel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'channel' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -461,7 +887,7 @@ public class TweakerConfig {
                 return;
             // + ledMapping
             } else if (!enc.containsKey("ledMapping") || ((Double) enc.get("ledMapping") < 0 || (Double) enc.get("ledMapping") > 127)) {
-                System.out.println("loadFromFile verification: No ledMapping or wrong data");
+                Log.warn("loadFromFile verification: No ledMapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'ledMapping' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -469,7 +895,7 @@ public class TweakerConfig {
                 return;
             // + ledChannel
             } else if (!enc.containsKey("ledChannel") || ((Double) enc.get("ledChannel") < 1 || (Double) enc.get("ledChannel") > 16)) {
-                System.out.println("loadFromFile verification: No ledChannel or wrong data");
+                Log.warn("loadFromFile verification: No ledChannel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'ledChannel' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -483,7 +909,7 @@ public class TweakerConfig {
             // Check every field
             // + mapping
             if (!pot.containsKey("mapping") || ((Double) pot.get("mapping") < 0 || (Double) pot.get("mapping") > 127)) {
-                System.out.println("loadFromFile verification: No mapping or wrong data");
+                Log.warn("loadFromFile verification: No mapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'mapping' from a potentiometer: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -491,7 +917,7 @@ public class TweakerConfig {
                 return;
             // + channel
             } else if (!pot.containsKey("channel") || ((Double) pot.get("channel") < 1 || (Double) pot.get("channel") > 16)) {
-                System.out.println("loadFromFile verification: No channel or wrong data");
+                Log.warn("loadFromFile verification: No channel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'channel' from an encoder: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -505,7 +931,7 @@ public class TweakerConfig {
             // Check every field
             // + mapping
             if (!but.containsKey("mapping") || ((Double) but.get("mapping") < 0 || (Double) but.get("mapping") > 127)) {
-                System.out.println("loadFromFile verification: No mapping or wrong data");
+                Log.warn("loadFromFile verification: No mapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'mapping' from a button: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -513,7 +939,7 @@ public class TweakerConfig {
                 return;
             // + channel
             } else if (!but.containsKey("channel") || ((Double) but.get("channel") < 1 || (Double) but.get("channel") > 16)) {
-                System.out.println("loadFromFile verification: No channel or wrong data");
+                Log.warn("loadFromFile verification: No channel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'channel' from a button: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -521,7 +947,7 @@ public class TweakerConfig {
                 return;
             // + outputType
             } else if (!but.containsKey("outputType") || !(but.get("outputType") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No outputType or wrong data");
+                Log.warn("loadFromFile verification: No outputType or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'outputType' from a button: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -529,7 +955,7 @@ public class TweakerConfig {
                 return;
             // + speedControl
             } else if (!but.containsKey("speedControl") || !(but.get("speedControl") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No speedControl or wrong data");
+                Log.warn("loadFromFile verification: No speedControl or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'speedControl' from a button: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -537,7 +963,7 @@ public class TweakerConfig {
                 return;
             // + localControl
             } else if (!but.containsKey("localControl") || !(but.get("localControl") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No localControl or wrong data");
+                Log.warn("loadFromFile verification: No localControl or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'localControl' from a button: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -550,7 +976,7 @@ public class TweakerConfig {
         for (LinkedTreeMap<?, ?> pad : padList) {
             // + hitMapping
             if (!pad.containsKey("hitMapping") || ((Double) pad.get("hitMapping") < 0 || (Double) pad.get("hitMapping") > 127)) {
-                System.out.println("loadFromFile verification: No hitMapping or wrong data");
+                Log.warn("loadFromFile verification: No hitMapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'hitMapping' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -558,7 +984,7 @@ public class TweakerConfig {
                 return;
             // + hitChannel
             } else if (!pad.containsKey("hitChannel") || ((Double) pad.get("hitChannel") < 1 || (Double) pad.get("hitChannel") > 16)) {
-                System.out.println("loadFromFile verification: No hitChannel or wrong data");
+                Log.warn("loadFromFile verification: No hitChannel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'hitChannel' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -566,7 +992,7 @@ public class TweakerConfig {
                 return;
             // + retriggerMapping
             }else if (!pad.containsKey("retriggerMapping") || ((Double) pad.get("retriggerMapping") < 0 || (Double) pad.get("retriggerMapping") > 127)) {
-                System.out.println("loadFromFile verification: No hitMapping or wrong data");
+                Log.warn("loadFromFile verification: No hitMapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'retriggerMapping' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -574,7 +1000,7 @@ public class TweakerConfig {
                 return;
             // + retriggerChannel
             } else if (!pad.containsKey("retriggerChannel") || ((Double) pad.get("retriggerChannel") < 1 || (Double) pad.get("retriggerChannel") > 16)) {
-                System.out.println("loadFromFile verification: No retriggerChannel or wrong data");
+                Log.warn("loadFromFile verification: No retriggerChannel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'retriggerChannel' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -582,7 +1008,7 @@ public class TweakerConfig {
                 return;
             // + ccRetrigger17
             } else if (!pad.containsKey("ccRetrigger17") || !(pad.get("ccRetrigger17") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No ccRetrigger17 or wrong data");
+                Log.warn("loadFromFile verification: No ccRetrigger17 or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'ccRetrigger17' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -590,7 +1016,7 @@ public class TweakerConfig {
                 return;
             // + ccRetrigger8
             } else if (!pad.containsKey("ccRetrigger8") || !(pad.get("ccRetrigger8") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No ccRetrigger8 or wrong data");
+                Log.warn("loadFromFile verification: No ccRetrigger8 or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'ccRetrigger8' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -598,7 +1024,7 @@ public class TweakerConfig {
                 return;
             // + onThresholdLow
             } else if (!pad.containsKey("onThresholdLow") || ((Double) pad.get("onThresholdLow") < 0 || (Double) pad.get("onThresholdLow") > 127)) {
-                System.out.println("loadFromFile verification: No onThresholdLow or wrong data");
+                Log.warn("loadFromFile verification: No onThresholdLow or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'onThresholdLow' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -606,7 +1032,7 @@ public class TweakerConfig {
                 return;
             // + onThresholdHigh
             } else if (!pad.containsKey("onThresholdHigh") || ((Double) pad.get("onThresholdHigh") < 0 || (Double) pad.get("onThresholdHigh") > 127)) {
-                System.out.println("loadFromFile verification: No onThresholdHigh or wrong data");
+                Log.warn("loadFromFile verification: No onThresholdHigh or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'onThresholdHigh' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -614,7 +1040,7 @@ public class TweakerConfig {
                 return;
             // + offThresholdLow
             } else if (!pad.containsKey("offThresholdLow") || ((Double) pad.get("offThresholdLow") < 0 || (Double) pad.get("offThresholdLow") > 127)) {
-                System.out.println("loadFromFile verification: No offThresholdLow or wrong data");
+                Log.warn("loadFromFile verification: No offThresholdLow or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'offThresholdLow' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -622,7 +1048,7 @@ public class TweakerConfig {
                 return;
             // + offThresholdHigh
             } else if (!pad.containsKey("offThresholdHigh") || ((Double) pad.get("offThresholdHigh") < 0 || (Double) pad.get("offThresholdHigh") > 127)) {
-                System.out.println("loadFromFile verification: No offThresholdHigh or wrong data");
+                Log.warn("loadFromFile verification: No offThresholdHigh or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'offThresholdHigh' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -630,7 +1056,7 @@ public class TweakerConfig {
                 return;
             // + resendRate
             } else if (!pad.containsKey("resendRate") || ((Double) pad.get("resendRate") < 1 || (Double) pad.get("resendRate") > 15)) {
-                System.out.println("loadFromFile verification: No resendRate or wrong data");
+                Log.warn("loadFromFile verification: No resendRate or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'resendRate' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -638,7 +1064,7 @@ public class TweakerConfig {
                 return;
             // + sensitivity
             } else if (!pad.containsKey("sensitivity") || ((Double) pad.get("sensitivity") < 0 || (Double) pad.get("sensitivity") > 5)) {
-                System.out.println("loadFromFile verification: No sensitivity or wrong data");
+                Log.warn("loadFromFile verification: No sensitivity or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'sensitivity' from a pad: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -651,7 +1077,7 @@ public class TweakerConfig {
         for (LinkedTreeMap<?, ?> led : butLedList) {
             // + color
             if (!led.containsKey("color") || !(Arrays.asList("o", "g", "r", "y", "b", "c", "m", "w").contains(led.get("color")))) {
-                System.out.println("loadFromFile verification: No color or wrong data");
+                Log.warn("loadFromFile verification: No color or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'color' from a button led: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -659,7 +1085,7 @@ public class TweakerConfig {
                 return;
             // + mapping
             } else if (!led.containsKey("mapping") || ((Double) led.get("mapping") < 0 || (Double) led.get("mapping") > 127)) {
-                System.out.println("loadFromFile verification: No mapping or wrong data");
+                Log.warn("loadFromFile verification: No mapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'mapping' from a button led: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -667,7 +1093,7 @@ public class TweakerConfig {
                 return;
             // + channel
             } else if (!led.containsKey("channel") || ((Double) led.get("channel") < 1 || (Double) led.get("channel") > 16)) {
-                System.out.println("loadFromFile verification: No channel or wrong data");
+                Log.warn("loadFromFile verification: No channel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'channel' from a button led: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -680,7 +1106,7 @@ public class TweakerConfig {
         for (LinkedTreeMap<?, ?> led : navLedList) {
             // + status
             if (!led.containsKey("status") || !(led.get("status") instanceof Boolean)) {
-                System.out.println("loadFromFile verification: No status or wrong data");
+                Log.warn("loadFromFile verification: No status or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'status' from a navigation button led: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -688,7 +1114,7 @@ public class TweakerConfig {
                 return;
                 // + mapping
             } else if (!led.containsKey("mapping") || ((Double) led.get("mapping") < 0 || (Double) led.get("mapping") > 127)) {
-                System.out.println("loadFromFile verification: No mapping or wrong data");
+                Log.warn("loadFromFile verification: No mapping or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'mapping' from a navigation button led: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -696,7 +1122,7 @@ public class TweakerConfig {
                 return;
                 // + channel
             } else if (!led.containsKey("channel") || ((Double) led.get("channel") < 1 || (Double) led.get("channel") > 16)) {
-                System.out.println("loadFromFile verification: No channel or wrong data");
+                Log.warn("loadFromFile verification: No channel or wrong data");
                 Alert a = new Alert(Alert.AlertType.ERROR, "Could not verify field 'channel' from a navigation button led: " +
                         "The data does not exist or it has an invalid value. The file will not be loaded.");
                 a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
@@ -706,87 +1132,97 @@ public class TweakerConfig {
         }
 
 
-        System.out.println("loadFromFile: File verified successfully");
+        Log.debug("loadFromFile: File verified successfully");
 
-        // If everything is correct, copy the data to the configuration
-        // - Encoders
-        for (int i = 0; i < encoderList.size(); i++) {
-            encoders[i].setRingMode(((String) encoderList.get(i).get("ringMode")).charAt(0));
-            encoders[i].setRelativeMode((Boolean) encoderList.get(i).get("relativeMode"));
-            encoders[i].setSpeed(((Double) encoderList.get(i).get("speed")).byteValue());
-            encoders[i].setLocalControl((Boolean) encoderList.get(i).get("localControl"));
-            encoders[i].setMapping(((Double) encoderList.get(i).get("mapping")).byteValue());
-            encoders[i].setChannel(((Double) encoderList.get(i).get("channel")).byteValue());
-            encoders[i].setLedMapping(((Double) encoderList.get(i).get("ledMapping")).byteValue());
-            encoders[i].setLedChannel(((Double) encoderList.get(i).get("ledChannel")).byteValue());
-        }
-        // - Potentiometers
-        for (int i = 0; i < potentiometerList.size(); i++) {
-            potentiometers[i].setMapping(((Double) potentiometerList.get(i).get(("mapping"))).byteValue());
-            potentiometers[i].setChannel(((Double) potentiometerList.get(i).get(("channel"))).byteValue());
-        }
-        // - Buttons
-        for (int i = 0; i < buttonList.size(); i++) {
-            buttons[i].setMapping(((Double) buttonList.get(i).get("mapping")).byteValue());
-            buttons[i].setChannel(((Double) buttonList.get(i).get("channel")).byteValue());
-            buttons[i].setOutputType((Boolean) buttonList.get(i).get("outputType"));
-            buttons[i].setSpeedControl((Boolean) buttonList.get(i).get("speedControl"));
-            buttons[i].setLocalControl((Boolean) buttonList.get(i).get("localControl"));
-        }
-        // - Pads
-        for (int i = 0; i < padList.size(); i++) {
-            pads[i].setHitMapping(((Double) padList.get(i).get("hitMapping")).byteValue());
-            pads[i].setHitChannel(((Double) padList.get(i).get("hitChannel")).byteValue());
-            pads[i].setRetriggerMapping(((Double) padList.get(i).get("retriggerMapping")).byteValue());
-            pads[i].setRetriggerChannel(((Double) padList.get(i).get("retriggerChannel")).byteValue());
-            pads[i].setCcRetrigger17((Boolean) padList.get(i).get("ccRetrigger17"));
-            pads[i].setCcRetrigger8((Boolean) padList.get(i).get("ccRetrigger8"));
-            pads[i].setOnThresholdLow(((Double) padList.get(i).get("onThresholdLow")).byteValue());
-            pads[i].setOnThresholdHigh(((Double) padList.get(i).get("onThresholdHigh")).byteValue());
-            pads[i].setOffThresholdLow(((Double) padList.get(i).get("offThresholdLow")).byteValue());
-            pads[i].setOffThresholdHigh(((Double) padList.get(i).get("offThresholdHigh")).byteValue());
-            pads[i].setResendRate(((Double) padList.get(i).get("resendRate")).byteValue());
-            pads[i].setSensitivity(((Double) padList.get(i).get("sensitivity")).byteValue());
-        }
-        // - ButLeds
-        for (int i = 0; i < butLedList.size(); i++) {
-            butLeds[i].setColor(((String) butLedList.get(i).get("color")).charAt(0));
-            butLeds[i].setMapping(((Double) butLedList.get(i).get("mapping")).byteValue());
-            butLeds[i].setChannel(((Double) butLedList.get(i).get("channel")).byteValue());
-        }
-        // - NavLeds
-        for (int i = 0; i < navLedList.size(); i++) {
-            navLeds[i].setStatus((Boolean) navLedList.get(i).get("status"));
-            navLeds[i].setMapping(((Double) navLedList.get(i).get("mapping")).byteValue());
-            navLeds[i].setChannel(((Double) navLedList.get(i).get("channel")).byteValue());
+        // If everything is correct, copy the data to the configuration, as a single edit
+        packed.beginWrite();
+        try {
+            // - Encoders
+            for (int i = 0; i < encoderList.size(); i++) {
+                encoders[i].setRingMode(((String) encoderList.get(i).get("ringMode")).charAt(0));
+                encoders[i].setRelativeMode((Boolean) encoderList.get(i).get("relativeMode"));
+                encoders[i].setSpeed(((Double) encoderList.get(i).get("speed")).byteValue());
+                encoders[i].setLocalControl((Boolean) encoderList.get(i).get("localControl"));
+                encoders[i].setMapping(((Double) encoderList.get(i).get("mapping")).byteValue());
+                encoders[i].setChannel(((Double) encoderList.get(i).get("channel")).byteValue());
+                encoders[i].setLedMapping(((Double) encoderList.get(i).get("ledMapping")).byteValue());
+                encoders[i].setLedChannel(((Double) encoderList.get(i).get("ledChannel")).byteValue());
+            }
+            // - Potentiometers
+            for (int i = 0; i < potentiometerList.size(); i++) {
+                potentiometers[i].setMapping(((Double) potentiometerList.get(i).get(("mapping"))).byteValue());
+                potentiometers[i].setChannel(((Double) potentiometerList.get(i).get(("channel"))).byteValue());
+            }
+            // - Buttons
+            for (int i = 0; i < buttonList.size(); i++) {
+                buttons[i].setMapping(((Double) buttonList.get(i).get("mapping")).byteValue());
+                buttons[i].setChannel(((Double) buttonList.get(i).get("channel")).byteValue());
+                buttons[i].setOutputType((Boolean) buttonList.get(i).get("outputType"));
+                buttons[i].setSpeedControl((Boolean) buttonList.get(i).get("speedControl"));
+                buttons[i].setLocalControl((Boolean) buttonList.get(i).get("localControl"));
+            }
+            // - Pads
+            for (int i = 0; i < padList.size(); i++) {
+                pads[i].setHitMapping(((Double) padList.get(i).get("hitMapping")).byteValue());
+                pads[i].setHitChannel(((Double) padList.get(i).get("hitChannel")).byteValue());
+                pads[i].setRetriggerMapping(((Double) padList.get(i).get("retriggerMapping")).byteValue());
+                pads[i].setRetriggerChannel(((Double) padList.get(i).get("retriggerChannel")).byteValue());
+                pads[i].setCcRetrigger17((Boolean) padList.get(i).get("ccRetrigger17"));
+                pads[i].setCcRetrigger8((Boolean) padList.get(i).get("ccRetrigger8"));
+                pads[i].setOnThresholdLow(((Double) padList.get(i).get("onThresholdLow")).byteValue());
+                pads[i].setOnThresholdHigh(((Double) padList.get(i).get("onThresholdHigh")).byteValue());
+                pads[i].setOffThresholdLow(((Double) padList.get(i).get("offThresholdLow")).byteValue());
+                pads[i].setOffThresholdHigh(((Double) padList.get(i).get("offThresholdHigh")).byteValue());
+                pads[i].setResendRate(((Double) padList.get(i).get("resendRate")).byteValue());
+                pads[i].setSensitivity(((Double) padList.get(i).get("sensitivity")).byteValue());
+            }
+            // - ButLeds
+            for (int i = 0; i < butLedList.size(); i++) {
+                butLeds[i].setColor(((String) butLedList.get(i).get("color")).charAt(0));
+                butLeds[i].setMapping(((Double) butLedList.get(i).get("mapping")).byteValue());
+                butLeds[i].setChannel(((Double) butLedList.get(i).get("channel")).byteValue());
+            }
+            // - NavLeds
+            for (int i = 0; i < navLedList.size(); i++) {
+                navLeds[i].setStatus((Boolean) navLedList.get(i).get("status"));
+                navLeds[i].setMapping(((Double) navLedList.get(i).get("mapping")).byteValue());
+                navLeds[i].setChannel(((Double) navLedList.get(i).get("channel")).byteValue());
+            }
+        } finally {
+            packed.endWrite();
         }
 
-        System.out.println("loadFromFile: File loaded successfully");
+        // Every control may have changed
+        for (int g = 0; g < GROUPS; g++) changed(g, allMask(g));
+
+        Log.info("loadFromFile: File loaded successfully");
     }
 
 
     public void saveToFile(File file) {
-        System.out.println("saveToFile: saving to " + file.getAbsolutePath());
+        Log.info("saveToFile: saving to {}", file.getAbsolutePath());
 
         // Create gson object with pretty printing enabled and JSON object
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
         JsonObject obj = new JsonObject();
 
-        // Add all the fields to the root JSON tree
+        // Add all the fields to the root JSON tree, from a copy, so the file has the values of one
+        // moment even if the configuration is edited meanwhile
+        PackedConfig copy = packed.copy();
         obj.add("creation_date", gson.toJsonTree(java.time.LocalDateTime.now().toString()));
-        obj.add("encoders", gson.toJsonTree(encoders));
-        obj.add("potentiometers", gson.toJsonTree(potentiometers));
-        obj.add("buttons", gson.toJsonTree(buttons));
-        obj.add("pads", gson.toJsonTree(pads));
-        obj.add("butLeds", gson.toJsonTree(butLeds));
-        obj.add("navLeds", gson.toJsonTree(navLeds));
+        obj.add("encoders", toJson(copy, encoders.length, Encoder::new, Encoder::toJson));
+        obj.add("potentiometers", toJson(copy, potentiometers.length, Potentiometer::new, Potentiometer::toJson));
+        obj.add("buttons", toJson(copy, buttons.length, Button::new, Button::toJson));
+        obj.add("pads", toJson(copy, pads.length, Pad::new, Pad::toJson));
+        obj.add("butLeds", toJson(copy, butLeds.length, RgbLed::new, RgbLed::toJson));
+        obj.add("navLeds", toJson(copy, navLeds.length, MonoLed::new, MonoLed::toJson));
         // TODO check that there are no more structures to save
 
         // Write the object into the file
         Writer writer;
         try {writer = new FileWriter(file);}
         catch (Exception e) {
-            System.out.println("saveToFile: Unable to write JSON object to file");
+            Log.warn("saveToFile: Unable to write JSON object to file");
             Alert a = new Alert(Alert.AlertType.ERROR, "The file could not be written (" + e.getMessage() + ").");
             a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
             a.showAndWait();
@@ -795,7 +1231,7 @@ public class TweakerConfig {
 
         try {gson.toJson(obj, writer);}
         catch (Exception e) {
-            System.out.println("saveToFile: Objects could not be written to file as JSON");
+            Log.warn("saveToFile: Objects could not be written to file as JSON");
             Alert a = new Alert(Alert.AlertType.ERROR, "There was a problem converting the configuration to a file (" + e.getMessage() + ").");
             a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
             a.showAndWait();
@@ -804,14 +1240,128 @@ public class TweakerConfig {
 
         try {writer.close();}
         catch (Exception e) {
-            System.out.println("saveToFile: File could not be closed");
+            Log.warn("saveToFile: File could not be closed");
             Alert a = new Alert(Alert.AlertType.ERROR, "The file could not be opened or read (" + e.getMessage() + ").");
             a.getDialogPane().setMinHeight(Region.USE_PREF_SIZE);
             a.showAndWait();
             return;
         }
 
-        System.out.println("saveToFile: File written successfully");
+        Log.info("saveToFile: File written successfully");
+    }
+
+    // One JSON object per control, with the same fields the files have always had
+    private static <T> JsonArray toJson(PackedConfig config, int count, BiFunction<PackedConfig, Integer, T> view,
+                                        Function<T, JsonObject> toJson) {
+        JsonArray array = new JsonArray(count);
+        for (int i = 0; i < count; i++) array.add(toJson.apply(view.apply(config, i)));
+        return array;
+    }
+
+
+    // -+- Packed form -+-
+
+    // The whole configuration as a few hundred bytes (see PackedConfig), e.g. for a preset library
+    // or undo states. Comparing or hashing two of them is comparing or hashing the arrays. Can be
+    // called from any thread
+    public byte[] toPackedBytes() {
+        return packed.toByteArray();
+    }
+
+    // Replaces the whole configuration with one taken from toPackedBytes(). Only the controls whose
+    // bytes differ are marked as changed, so a delta dump afterwards sends just those. Throws
+    // IllegalArgumentException, and changes nothing, if the bytes are not a valid configuration
+    public void loadPacked(byte[] bytes) {
+        PackedConfig incoming = PackedConfig.fromByteArray(bytes);
+
+        // Only what differs needs checking
+        long[] masks = new long[GROUPS];
+        for (int g = 0; g < GROUPS; g++) {
+            int controls = Long.bitCount(allMask(g));
+            for (int i = 0; i < controls; i++) {
+                int from = GROUP_OFFSETS[g] + i * GROUP_STRIDES[g];
+                if (packed.rangeEquals(incoming, from, from + GROUP_STRIDES[g])) continue;
+                if (!isValid(incoming, g, i)) throw new IllegalArgumentException("Invalid value in group " + g + ", control " + i);
+                masks[g] |= 1L << i;
+            }
+        }
+
+        packed.copyFrom(incoming);
+        for (int g = 0; g < GROUPS; g++) if (masks[g] != 0) changed(g, masks[g]);
+    }
+
+    private static boolean isValid(PackedConfig config, int group, int i) {
+        return switch (group) {
+            case ENCODERS -> new Encoder(config, i).isValid();
+            case POTENTIOMETERS -> new Potentiometer(config, i).isValid();
+            case BUTTONS -> new Button(config, i).isValid();
+            case PADS -> new Pad(config, i).isValid();
+            case BUT_LEDS -> new RgbLed(config, i).isValid();
+            default -> new MonoLed(config, i).isValid();
+        };
+    }
+
+    // Same value for configurations with the same values. Can be called from any thread
+    public int packedHashCode() {
+        return packed.hashCode();
+    }
+
+
+    // -+- Snapshots (see ConfigSnapshot and ConfigHistory) -+-
+
+    // The configuration as it is now. Only the groups that changed since the last snapshot are
+    // copied; if none did (or they were changed back), the last snapshot itself is returned
+    public ConfigSnapshot snapshot() {
+        if (snapshot != null && changedSinceSnapshot == 0) return snapshot;
+
+        byte[][] groups = new byte[GROUPS][];
+        boolean same = snapshot != null;
+        for (int g = 0; g < GROUPS; g++) {
+            byte[] previous = snapshot == null ? null : snapshot.group(g);
+            if (previous != null && ((changedSinceSnapshot & 1 << g) == 0
+                    || packed.rangeEquals(GROUP_OFFSETS[g], previous, 0, previous.length))) {
+                groups[g] = previous;
+            } else {
+                groups[g] = packed.copyRange(GROUP_OFFSETS[g], GROUP_OFFSETS[g] + groupLength(g));
+                same = false;
+            }
+        }
+        changedSinceSnapshot = 0;
+        if (!same) snapshot = new ConfigSnapshot(groups);
+        return snapshot;
+    }
+
+    // Puts back the configuration of a snapshot. Only the groups that are not shared with the current
+    // state are looked at, and only the controls that differ are marked as changed, so a delta dump
+    // afterwards sends just those
+    public void restore(ConfigSnapshot target) {
+        if (target == null) throw new IllegalArgumentException("target can not be null");
+
+        // Edits that were not in a snapshot yet are compared too
+        ConfigSnapshot current = snapshot();
+        long[] masks = new long[GROUPS];
+        // All the groups are put back as a single edit
+        packed.beginWrite();
+        try {
+            for (int g = 0; g < GROUPS; g++) {
+                if (target.sharesGroup(current, g)) continue;
+                byte[] bytes = target.group(g);
+                int stride = GROUP_STRIDES[g];
+                for (int i = 0; i * stride < bytes.length; i++) {
+                    if (!packed.rangeEquals(GROUP_OFFSETS[g] + i * stride, bytes, i * stride, stride)) masks[g] |= 1L << i;
+                }
+                if (masks[g] != 0) packed.setRange(GROUP_OFFSETS[g], bytes);
+            }
+        } finally {
+            packed.endWrite();
+        }
+        for (int g = 0; g < GROUPS; g++) if (masks[g] != 0) changed(g, masks[g]);
+        snapshot = target;
+        changedSinceSnapshot = 0;
+    }
+
+    private int groupLength(int group) {
+        return Long.bitCount(allMask(group)) * GROUP_STRIDES[group];
     }
 
 
@@ -828,7 +1378,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setRingMode(mode);
-            unsync();
+            changed(ENCODERS, id);
         }
     }
 
@@ -841,7 +1391,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setRelativeMode(mode);
-            unsync();
+            changed(ENCODERS, id);
         }
     }
 
@@ -854,7 +1404,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setSpeed(speed);
-            unsync();
+            changed(ENCODERS, id);
         }
     }
 
@@ -867,7 +1417,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setLocalControl(localControl);
-            unsync();
+            changed(ENCODERS, id);
         }
     }
 
@@ -880,7 +1430,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setMapping(mapping);
-            unsync();
+            changed(ENCODERS, id);
         }
     }
 
@@ -893,7 +1443,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setChannel(channel);
-            unsync();
+            changed(ENCODERS, id);
         }
     }
 
@@ -907,7 +1457,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setLedMapping(mapping);
-            unsync();
+            changed(ENCODERS, id);
         }
     }
 
@@ -920,7 +1470,7 @@ public class TweakerConfig {
         if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
         else {
             encoders[id].setLedChannel(channel);
-            unsync();
+            changed(ENCODERS, id);
         }
     }*/
 
@@ -938,7 +1488,7 @@ public class TweakerConfig {
         if (id < 0 || id >= potentiometers.length) throw new IllegalArgumentException();
         else {
             potentiometers[id].setMapping(mapping);
-            unsync();
+            changed(POTENTIOMETERS, id);
         }
     }
 
@@ -951,7 +1501,7 @@ public class TweakerConfig {
         if (id < 0 || id >= potentiometers.length) throw new IllegalArgumentException();
         else {
             potentiometers[id].setChannel(channel);
-            unsync();
+            changed(POTENTIOMETERS, id);
         }
     }
 
@@ -969,7 +1519,7 @@ public class TweakerConfig {
         if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
         else {
             buttons[id].setMapping(mapping);
-            unsync();
+            changed(BUTTONS, id);
         }
     }
 
@@ -982,7 +1532,7 @@ public class TweakerConfig {
         if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
         else {
             buttons[id].setChannel(channel);
-            unsync();
+            changed(BUTTONS, id);
         }
     }
 
@@ -995,7 +1545,7 @@ public class TweakerConfig {
         if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
         else {
             buttons[id].setOutputType(type);
-            unsync();
+            changed(BUTTONS, id);
         }
     }
 
@@ -1008,7 +1558,7 @@ public class TweakerConfig {
         if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
         else {
             buttons[id].setSpeedControl(control);
-            unsync();
+            changed(BUTTONS, id);
         }
     }
 
@@ -1021,7 +1571,7 @@ public class TweakerConfig {
         if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
         else {
             buttons[id].setLocalControl(control);
-            unsync();
+            changed(BUTTONS, id);
         }
     }
 
@@ -1039,7 +1589,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setHitMapping(mapping);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1052,7 +1602,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setHitChannel(channel);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1065,7 +1615,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setRetriggerMapping(mapping);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1078,7 +1628,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setRetriggerChannel(channel);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1091,7 +1641,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setCcRetrigger17(retrigger);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1104,7 +1654,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setCcRetrigger8(retrigger);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1117,7 +1667,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setOnThresholdLow(threshold);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1130,7 +1680,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setOnThresholdHigh(threshold);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1143,7 +1693,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setOffThresholdLow(threshold);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1156,7 +1706,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setOffThresholdHigh(threshold);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1169,7 +1719,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setResendRate(rate);
-            unsync();
+            changed(PADS, id);
         }
     }
 
@@ -1182,7 +1732,7 @@ public class TweakerConfig {
         if (id < 0 || id >= pads.length) throw new IllegalArgumentException();
         else {
             pads[id].setSensitivity(sensitivity);
-            unsync();
+            changed(PADS, id);
         }
     }*/
 
@@ -1202,7 +1752,7 @@ public class TweakerConfig {
         if (id < 0 || id >= butLeds.length) throw new IllegalArgumentException();
         else {
             butLeds[id].setColor(color);
-            unsync();
+            changed(BUT_LEDS, id);
         }
     }
 
@@ -1215,7 +1765,7 @@ public class TweakerConfig {
         if (id < 0 || id >= butLeds.length) throw new IllegalArgumentException();
         else {
             butLeds[id].setMapping(mapping);
-            unsync();
+            changed(BUT_LEDS, id);
         }
     }
 
@@ -1228,7 +1778,7 @@ public class TweakerConfig {
         if (id < 0 || id >= butLeds.length) throw new IllegalArgumentException();
         else {
             butLeds[id].setChannel(channel);
-            unsync();
+            changed(BUT_LEDS, id);
         }
     }
 
@@ -1284,7 +1834,7 @@ public class TweakerConfig {
         if (id < 0 || id >= navLeds.length) throw new IllegalArgumentException();
         else {
             navLeds[id].setStatus(status);
-            unsync();
+            changed(NAV_LEDS, id);
         }
     }
 
@@ -1297,7 +1847,7 @@ public class TweakerConfig {
         if (id < 0 || id >= navLeds.length) throw new IllegalArgumentException();
         else {
             navLeds[id].setMapping(mapping);
-            unsync();
+            changed(NAV_LEDS, id);
         }
     }
 
@@ -1310,7 +1860,7 @@ public class TweakerConfig {
         if (id < 0 || id >= navLeds.length) throw new IllegalArgumentException();
         else {
             navLeds[id].setChannel(channel);
-            unsync();
+            changed(NAV_LEDS, id);
         }
     }
 
@@ -1361,418 +1911,148 @@ public class TweakerConfig {
     // -+- P R O P A G A T O R S -+-
     // -----------------------------
 
-    // Buttons
-
-    public void butPropAll(int id, boolean mappings) {
-        System.out.println("Button propagate all: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
+    // Every propagator copies the fields of the source control to a precomputed set of targets (see
+    // Propagation), keeping their mappings if asked to. Only the targets that end up different are
+    // marked as changed, and listeners get the whole propagation as one change
 
-        // Copy the values to all other buttons
-        for (Button b : buttons) {
-            b.setOutputType(buttons[id].getOutputType());
-            b.setSpeedControl(buttons[id].getSpeedControl());
-            b.setLocalControl(buttons[id].getLocalControl());
-            if (!mappings) {
-                b.setMapping(buttons[id].getMapping());
-                b.setChannel(buttons[id].getChannel());
-            }
-        }
+    // Buttons. Their LEDs go with them, converting between RGB and mono when the source and the
+    // target LED are of different kinds (any color but off is on, and on is red)
 
-        // Copy the LED values
-        for (int i = 0; i < butLeds.length + navLeds.length; i++) {
-            // These are either rgb button LEDs or mono nav LEDs
-            if (i >= 38) {
-                // Navigation monochromatic LEDs
-                // Change source depending on what the copied button is
-                if (id >= 38) {
-                    // Navigation
-                    if (!mappings) {
-                        navLeds[i - 38].setMapping(navLeds[id - 38].getMapping());
-                        navLeds[i - 38].setChannel(navLeds[id - 38].getChannel());
-                    }
-                    navLeds[i - 38].setStatus(navLeds[id - 38].getStatus());
-                } else {
-                    // RGB
-                    System.out.println("i: " + i + ", id: " + id);
-                    if (!mappings) {
-                        navLeds[i - 38].setMapping(butLeds[id].getMapping());
-                        navLeds[i - 38].setChannel(butLeds[id].getChannel());
-                    }
-                    navLeds[i - 38].setStatus(butLeds[id].getColor() != 'o');
-                }
-            } else {
-                // RGB button LEDs
-                // Change source depending on what the copied button is
-                if (id >= 38) {
-                    // Navigation
-                    if (!mappings) {
-                        butLeds[i].setMapping(navLeds[id - 38].getMapping());
-                        butLeds[i].setChannel(navLeds[id - 38].getChannel());
-                    }
-                    butLeds[i].setColor(navLeds[id - 38].getStatus() ? 'r' : 'o');
-                } else {
-                    // RGB
-                    if (!mappings) {
-                        butLeds[i].setMapping(butLeds[id].getMapping());
-                        butLeds[i].setChannel(butLeds[id].getChannel());
-                    }
-                    butLeds[i].setColor(butLeds[id].getColor());
-                }
-            }
-        }
+    public void butPropAll(int id, boolean mappings) {
+        Log.debug("Button propagate all: {}, {}", id, mappings);
+        propagateButtons(Propagation.ALL, id, mappings);
     }
 
     public void butPropGrid(int id, boolean mappings) {
-        System.out.println("Button propagate grid: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
-
-        // Copy the values to first 32 buttons
-        for (int i = 0; i < 32; i++) {
-            buttons[i].setOutputType(buttons[id].getOutputType());
-            buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-            buttons[i].setLocalControl(buttons[id].getLocalControl());
-            if (!mappings) {
-                buttons[i].setMapping(buttons[id].getMapping());
-                buttons[i].setChannel(buttons[id].getChannel());
-            }
-
-            // LEDs
-            if (id >= 38) {
-                // Navigation
-                if (!mappings) {
-                    butLeds[i].setMapping(navLeds[id - 38].getMapping());
-                    butLeds[i].setChannel(navLeds[id - 38].getChannel());
-                }
-                butLeds[i].setColor(navLeds[id - 38].getStatus() ? 'r' : 'o');
-            } else {
-                // RGB
-                if (!mappings) {
-                    butLeds[i].setMapping(butLeds[id].getMapping());
-                    butLeds[i].setChannel(butLeds[id].getChannel());
-                }
-                butLeds[i].setColor(butLeds[id].getColor());
-            }
-        }
+        Log.debug("Button propagate grid: {}, {}", id, mappings);
+        propagateButtons(Propagation.GRID, id, mappings);
     }
 
     public void butPropControl(int id, boolean mappings) {
-        System.out.println("Button propagate control: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
-
-        // Copy the values to buttons with IDs between 32 and 37
-        for (int i = 32; i < 38; i++) {
-            buttons[i].setOutputType(buttons[id].getOutputType());
-            buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-            buttons[i].setLocalControl(buttons[id].getLocalControl());
-            if (!mappings) {
-                buttons[i].setMapping(buttons[id].getMapping());
-                buttons[i].setChannel(buttons[id].getChannel());
-            }
-
-            // LEDs
-            if (id >= 38) {
-                // Navigation
-                if (!mappings) {
-                    butLeds[i].setMapping(navLeds[id - 38].getMapping());
-                    butLeds[i].setChannel(navLeds[id - 38].getChannel());
-                }
-                butLeds[i].setColor(navLeds[id - 38].getStatus() ? 'r' : 'o');
-            } else {
-                // RGB
-                if (!mappings) {
-                    butLeds[i].setMapping(butLeds[id].getMapping());
-                    butLeds[i].setChannel(butLeds[id].getChannel());
-                }
-                butLeds[i].setColor(butLeds[id].getColor());
-            }
-        }
+        Log.debug("Button propagate control: {}, {}", id, mappings);
+        propagateButtons(Propagation.CONTROL, id, mappings);
     }
 
     public void butPropColumn(int id, boolean mappings) {
-        System.out.println("Button propagate column: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
-
-        // Three different cases:
-        // - Grid buttons
-        // - Control buttons
-        // - Navigation buttons
-
-
-        // GRID BUTTONS
-        if (id <= 31) {
-
-            // Select the button to propagate from
-            int column = id % 8;
-            System.out.println("column: " + column);
-
-            for (int i = column; i < 32; i += 8) {
-                buttons[i].setOutputType(buttons[id].getOutputType());
-                buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-                buttons[i].setLocalControl(buttons[id].getLocalControl());
-                if (!mappings) {
-                    buttons[i].setMapping(buttons[id].getMapping());
-                    buttons[i].setChannel(buttons[id].getChannel());
-                }
-
-                // LEDs
-                if (!mappings) {
-                    butLeds[i].setMapping(butLeds[id].getMapping());
-                    butLeds[i].setChannel(butLeds[id].getChannel());
-                }
-                butLeds[i].setColor(butLeds[id].getColor());
-            }
-
-        // CONTROL BUTTONS
-        } else if (id <= 37) {
-
-            // Can be left or right columns
-            if (id <= 34) {
-                for (int i = 32; i <= 34; i++) {
-                    buttons[i].setOutputType(buttons[id].getOutputType());
-                    buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-                    buttons[i].setLocalControl(buttons[id].getLocalControl());
-                    if (!mappings) {
-                        buttons[i].setMapping(buttons[id].getMapping());
-                        buttons[i].setChannel(buttons[id].getChannel());
-                    }
-
-                    // LEDs
-                    if (!mappings) {
-                        butLeds[i].setMapping(butLeds[id].getMapping());
-                        butLeds[i].setChannel(butLeds[id].getChannel());
-                    }
-                    butLeds[i].setColor(butLeds[id].getColor());
-                }
-            } else {
-                for (int i = 35; i <= 37; i++) {
-                    buttons[i].setOutputType(buttons[id].getOutputType());
-                    buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-                    buttons[i].setLocalControl(buttons[id].getLocalControl());
-                    if (!mappings) {
-                        buttons[i].setMapping(buttons[id].getMapping());
-                        buttons[i].setChannel(buttons[id].getChannel());
-                    }
-
-                    // LEDs
-                    if (!mappings) {
-                        butLeds[i].setMapping(butLeds[id].getMapping());
-                        butLeds[i].setChannel(butLeds[id].getChannel());
-                    }
-                    butLeds[i].setColor(butLeds[id].getColor());
-                }
-            }
-
-        // NAVIGATION BUTTONS
-        } else {
-            // Only one possibility
-            if (id == 38 || id == 39 || id == 40) {
-                for (Integer i : Arrays.asList(38, 39, 40)) {
-                    buttons[i].setOutputType(buttons[id].getOutputType());
-                    buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-                    buttons[i].setLocalControl(buttons[id].getLocalControl());
-                    if (!mappings) {
-                        buttons[i].setMapping(buttons[id].getMapping());
-                        buttons[i].setChannel(buttons[id].getChannel());
-                    }
-
-                    // Monochromatic LEDs
-                    if (!mappings) {
-                        navLeds[i - 38].setMapping(navLeds[id - 38].getMapping());
-                        navLeds[i - 38].setChannel(navLeds[id - 38].getChannel());
-                    }
-                    navLeds[i - 38].setStatus(navLeds[id - 38].getStatus());
-                }
-            }
-        }
+        Log.debug("Button propagate column: {}, {}", id, mappings);
+        propagateButtons(Propagation.COLUMN, id, mappings);
     }
 
     public void butPropRow(int id, boolean mappings) {
-        System.out.println("Button propagate row: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 0 || id >= buttons.length) throw new IllegalArgumentException();
-
-        // Three different cases:
-        // - Grid buttons
-        // - Control buttons
-        // - Navigation buttons
-
-
-        // GRID BUTTONS
-        if (id <= 31) {
-
-            // Get the row we have to propagate to
-            int row = id / 8;
-            for (int i = row * 8; i < row * 8 + 8; i++) {
-                buttons[i].setOutputType(buttons[id].getOutputType());
-                buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-                buttons[i].setLocalControl(buttons[id].getLocalControl());
-                if (!mappings) {
-                    buttons[i].setMapping(buttons[id].getMapping());
-                    buttons[i].setChannel(buttons[id].getChannel());
-                }
-
-                // LEDs
-                if (!mappings) {
-                    butLeds[i].setMapping(butLeds[id].getMapping());
-                    butLeds[i].setChannel(butLeds[id].getChannel());
-                }
-                butLeds[i].setColor(butLeds[id].getColor());
-            }
-
-
-        // CONTROL BUTTONS
-        } else if (id <= 37) {
-
-            // Get the ID of the button we have to change
-            int target;
-            if (id < 35) target = id + 3;
-            else target = id - 3;
-
-            buttons[target].setOutputType(buttons[id].getOutputType());
-            buttons[target].setSpeedControl(buttons[id].getSpeedControl());
-            buttons[target].setLocalControl(buttons[id].getLocalControl());
-            if (!mappings) {
-                buttons[target].setMapping(buttons[id].getMapping());
-                buttons[target].setChannel(buttons[id].getChannel());
-            }
-
-            // LEDs
-            if (!mappings) {
-                butLeds[target].setMapping(butLeds[id].getMapping());
-                butLeds[target].setChannel(butLeds[id].getChannel());
-            }
-            butLeds[target].setColor(butLeds[id].getColor());
-
-        // NAVIGATION BUTTONS
-        } else {
-
-            // Only one possibility
-            if (id == 39 || id == 41 || id == 42) {
-                for (Integer i : Arrays.asList(39, 41, 42)) {
-                    buttons[i].setOutputType(buttons[id].getOutputType());
-                    buttons[i].setSpeedControl(buttons[id].getSpeedControl());
-                    buttons[i].setLocalControl(buttons[id].getLocalControl());
-                    if (!mappings) {
-                        buttons[i].setMapping(buttons[id].getMapping());
-                        buttons[i].setChannel(buttons[id].getChannel());
-                    }
-
-                    // Monochromatic LEDs
-                    if (!mappings) {
-                        navLeds[i - 38].setMapping(navLeds[id - 38].getMapping());
-                        navLeds[i - 38].setChannel(navLeds[id - 38].getChannel());
-                    }
-                    navLeds[i - 38].setStatus(navLeds[id - 38].getStatus());
-                }
-            }
-        }
+        Log.debug("Button propagate row: {}, {}", id, mappings);
+        propagateButtons(Propagation.ROW, id, mappings);
     }
 
-    // Potentiometers
+    // Potentiometers. They only have a mapping and a channel, so keeping the mappings copies nothing
 
     public void potPropAll(int id, boolean mappings) {
-        System.out.println("Potentiometer propagate all: " + id + ", " + mappings);
+        Log.debug("Potentiometer propagate all: {}, {}", id, mappings);
+        propagate(POTENTIOMETERS, Propagation.ALL, id, mappings);
     }
 
     public void potPropFaders(int id, boolean mappings) {
-        System.out.println("Potentiometer propagate faders: " + id + ", " + mappings);
+        Log.debug("Potentiometer propagate faders: {}, {}", id, mappings);
+        propagate(POTENTIOMETERS, Propagation.FADERS, id, mappings);
     }
 
     // Encoders
 
     public void encPropAll(int id, boolean mappings) {
-        System.out.println("Encoder propagate all: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 0 || id >= encoders.length) throw new IllegalArgumentException();
-
-        // Copy all
-        for (Encoder e : encoders) {
-            e.setRingMode(encoders[id].getRingMode());
-            e.setRelativeMode(encoders[id].getRelativeMode());
-            e.setSpeed(encoders[id].getSpeed());
-            e.setLocalControl(encoders[id].getLocalControl());
-            if (!mappings) {
-                e.setMapping(encoders[id].getMapping());
-                e.setChannel(encoders[id].getChannel());
-            }
-        }
+        Log.debug("Encoder propagate all: {}, {}", id, mappings);
+        propagate(ENCODERS, Propagation.ALL, id, mappings);
     }
 
     public void encPropRow(int id, boolean mappings) {
-        System.out.println("Encoder propagate row: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 1 || id >= encoders.length) throw new IllegalArgumentException();
-
-        // Choose the encoder to which propagate the parameters
-        int target;
-        if (id > 3) target = id - 3;
-        else target = id + 3;
-
-        encoders[target].setRingMode(encoders[id].getRingMode());
-        encoders[target].setRelativeMode(encoders[id].getRelativeMode());
-        encoders[target].setSpeed(encoders[id].getSpeed());
-        encoders[target].setLocalControl(encoders[id].getLocalControl());
-        if (!mappings) {
-            encoders[target].setMapping(encoders[id].getMapping());
-            encoders[target].setChannel(encoders[id].getChannel());
-        }
+        Log.debug("Encoder propagate row: {}, {}", id, mappings);
+        // The big encoder is in no row
+        if (id < 1) throw new IllegalArgumentException();
+        propagate(ENCODERS, Propagation.ROW, id, mappings);
     }
 
     public void encPropColumn(int id, boolean mappings) {
-        System.out.println("Encoder propagate column: " + id + ", " + mappings);
-
-        // Check the arguments
-        if (id < 1 || id >= encoders.length) throw new IllegalArgumentException();
-
-        if (id < 4) {
-            // Copy from 1 to 3 (big encoder has the id 0)
-            for (int i = 1; i <= 3; i++) {
-                encoders[i].setRingMode(encoders[id].getRingMode());
-                encoders[i].setRelativeMode(encoders[id].getRelativeMode());
-                encoders[i].setSpeed(encoders[id].getSpeed());
-                encoders[i].setLocalControl(encoders[id].getLocalControl());
-                if (!mappings) {
-                    encoders[i].setMapping(encoders[id].getMapping());
-                    encoders[i].setChannel(encoders[id].getChannel());
-                }
-            }
-        } else {
-            // Copy from 4 to 6 (big encoder has the id 0)
-            for (int i = 4; i <= 6; i++) {
-                encoders[i].setRingMode(encoders[id].getRingMode());
-                encoders[i].setRelativeMode(encoders[id].getRelativeMode());
-                encoders[i].setSpeed(encoders[id].getSpeed());
-                encoders[i].setLocalControl(encoders[id].getLocalControl());
-                if (!mappings) {
-                    encoders[i].setMapping(encoders[id].getMapping());
-                    encoders[i].setChannel(encoders[id].getChannel());
-                }
-            }
-        }
+        Log.debug("Encoder propagate column: {}, {}", id, mappings);
+        if (id < 1) throw new IllegalArgumentException();
+        propagate(ENCODERS, Propagation.COLUMN, id, mappings);
     }
 
     // Pads
 
     public void padPropAll(int id, boolean mappings) {
-        System.out.println("Pad propagate all: " + id + ", " + mappings);
+        Log.debug("Pad propagate all: {}, {}", id, mappings);
+        propagate(PADS, Propagation.ALL, id, mappings);
     }
 
     public void padPropRow(int id, boolean mappings) {
-        System.out.println("Pad propagate row: " + id + ", " + mappings);
+        Log.debug("Pad propagate row: {}, {}", id, mappings);
+        propagate(PADS, Propagation.ROW, id, mappings);
     }
 
     public void padPropColumn(int id, boolean mappings) {
-        System.out.println("Pad propagate column: " + id + ", " + mappings);
+        Log.debug("Pad propagate column: {}, {}", id, mappings);
+        propagate(PADS, Propagation.COLUMN, id, mappings);
+    }
+
+
+    // Copies the fields of a control to the targets of a set, and returns them
+    private long propagate(int group, int set, int id, boolean keepMappings) {
+        long targets = Propagation.targets(group, set, id);
+        int fields = Propagation.fields(group, keepMappings);
+        int stride = GROUP_STRIDES[group];
+        int source = GROUP_OFFSETS[group] + id * stride;
+
+        long mask = 0;
+        packed.beginWrite();
+        try {
+            for (long t = targets; t != 0; t &= t - 1) {
+                int to = GROUP_OFFSETS[group] + Long.numberOfTrailingZeros(t) * stride;
+                if (packed.fieldsEqual(source, to, fields)) continue;
+                packed.copyFields(source, to, fields);
+                mask |= t & -t;
+            }
+        } finally {
+            packed.endWrite();
+        }
+        if (mask != 0) changed(group, mask);
+        return targets;
+    }
+
+    // The buttons and their LEDs are a single edit
+    private void propagateButtons(int set, int id, boolean keepMappings) {
+        packed.beginWrite();
+        try {
+            propagateButtonsAndLeds(set, id, keepMappings);
+        } finally {
+            packed.endWrite();
+        }
+    }
+
+    private void propagateButtonsAndLeds(int set, int id, boolean keepMappings) {
+        long targets = propagate(BUTTONS, set, id, keepMappings);
+
+        // Buttons past the navigation ones have no LED
+        int leds = butLeds.length + navLeds.length;
+        if (id >= leds) return;
+        boolean sourceMono = id >= butLeds.length;
+        int source = sourceMono ? GROUP_OFFSETS[NAV_LEDS] + (id - butLeds.length) * MonoLed.SIZE
+                : GROUP_OFFSETS[BUT_LEDS] + id * RgbLed.SIZE;
+        int fields = Propagation.fields(BUT_LEDS, keepMappings);
+
+        long[] masks = new long[2];
+        for (long t = targets & ((1L << leds) - 1); t != 0; t &= t - 1) {
+            int i = Long.numberOfTrailingZeros(t);
+            boolean mono = i >= butLeds.length;
+            int to = mono ? GROUP_OFFSETS[NAV_LEDS] + (i - butLeds.length) * MonoLed.SIZE
+                    : GROUP_OFFSETS[BUT_LEDS] + i * RgbLed.SIZE;
+            // The mapping and channel are at the same offsets in both kinds of LED; the first field is
+            // the color or the status
+            byte first = packed.get(source);
+            if (mono != sourceMono) first = mono ? (byte) (first != 'o' ? 1 : 0) : (byte) (first != 0 ? 'r' : 'o');
+            if (packed.get(to) == first && packed.fieldsEqual(source, to, fields & ~1)) continue;
+            packed.set(to, first);
+            packed.copyFields(source, to, fields & ~1);
+            masks[mono ? 1 : 0] |= 1L << (mono ? i - butLeds.length : i);
+        }
+        if (masks[0] != 0) changed(BUT_LEDS, masks[0]);
+        if (masks[1] != 0) changed(NAV_LEDS, masks[1]);
     }
 }
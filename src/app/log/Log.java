@@ -0,0 +1,265 @@
+package app.log;
+
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+
+// Small leveled logger. Calls only store the template and its arguments in a preallocated ring, and a
+// background thread formats and prints them, so the callers never wait on console I/O. When a level
+// is disabled the call returns before anything is built.
+//
+// Templates use {} as the placeholder for each argument, e.g.
+//   Log.debug("sendNote: ch: {}, note: {}, vel: {}", channel, note, velocity);
+// Numeric arguments have their own overloads, so they are not boxed.
+//
+// The level is read from the 'tweaker.log' system property (debug, info, warn, error or off) and can
+// be changed at runtime with setLevel(). If the ring is full, new entries are dropped and counted.
+public final class Log {
+
+    // Levels
+    public static final int DEBUG = 0;
+    public static final int INFO = 1;
+    public static final int WARN = 2;
+    public static final int ERROR = 3;
+    public static final int OFF = 4;
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO ", "WARN ", "ERROR"};
+
+    // Ring size, must be a power of two
+    private static final int CAPACITY = 1024;
+    private static final int MASK = CAPACITY - 1;
+
+    private static volatile int level = parseLevel(System.getProperty("tweaker.log", "info"));
+
+    // Ring entries. An entry can be read once its sequence matches the one the reader expects
+    private static final class Entry {
+        volatile long sequence;
+        int level;
+        String template;
+        int argCount;
+        boolean numeric;
+        long n0, n1, n2;
+        Object o0, o1, o2;
+        Thread thread;
+    }
+
+    private static final Entry[] ring = new Entry[CAPACITY];
+    // Next sequence to be claimed by a writer
+    private static final AtomicLong claimed = new AtomicLong(0);
+    // Next sequence to be read by the drain thread
+    private static volatile long consumed = 0;
+    private static final AtomicLong dropped = new AtomicLong(0);
+
+    private static final PrintStream out = System.out;
+    private static final PrintStream err = System.err;
+    private static final Thread drainer;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            ring[i] = new Entry();
+            ring[i].sequence = i - CAPACITY;
+        }
+        drainer = new Thread(Log::drainLoop, "log-drain");
+        drainer.setDaemon(true);
+        drainer.start();
+        // Print what is left when the application exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::drain, "log-flush"));
+    }
+
+
+    private Log() {
+    }
+
+
+    // -+- Level -+-
+
+    public static int parseLevel(String name) {
+        return switch (name.toLowerCase()) {
+            case "debug" -> DEBUG;
+            case "warn" -> WARN;
+            case "error" -> ERROR;
+            case "off" -> OFF;
+            default -> INFO;
+        };
+    }
+
+    public static void setLevel(int newLevel) {
+        if (newLevel < DEBUG || newLevel > OFF) throw new IllegalArgumentException();
+        level = newLevel;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static boolean isEnabled(int l) {
+        return l >= level;
+    }
+
+    public static boolean isDebugEnabled() {
+        return DEBUG >= level;
+    }
+
+    public static long getDropped() {
+        return dropped.get();
+    }
+
+
+    // -+- Logging calls -+-
+
+    public static void debug(String template) {
+        if (DEBUG >= level) write(DEBUG, template, 0, true, 0, 0, 0, null, null, null);
+    }
+
+    public static void debug(String template, long a) {
+        if (DEBUG >= level) write(DEBUG, template, 1, true, a, 0, 0, null, null, null);
+    }
+
+    public static void debug(String template, long a, long b) {
+        if (DEBUG >= level) write(DEBUG, template, 2, true, a, b, 0, null, null, null);
+    }
+
+    public static void debug(String template, long a, long b, long c) {
+        if (DEBUG >= level) write(DEBUG, template, 3, true, a, b, c, null, null, null);
+    }
+
+    public static void debug(String template, Object a) {
+        if (DEBUG >= level) write(DEBUG, template, 1, false, 0, 0, 0, a, null, null);
+    }
+
+    public static void debug(String template, Object a, Object b) {
+        if (DEBUG >= level) write(DEBUG, template, 2, false, 0, 0, 0, a, b, null);
+    }
+
+    public static void debug(String template, Object a, Object b, Object c) {
+        if (DEBUG >= level) write(DEBUG, template, 3, false, 0, 0, 0, a, b, c);
+    }
+
+    public static void info(String template) {
+        if (INFO >= level) write(INFO, template, 0, true, 0, 0, 0, null, null, null);
+    }
+
+    public static void info(String template, long a) {
+        if (INFO >= level) write(INFO, template, 1, true, a, 0, 0, null, null, null);
+    }
+
+    public static void info(String template, Object a) {
+        if (INFO >= level) write(INFO, template, 1, false, 0, 0, 0, a, null, null);
+    }
+
+    public static void info(String template, Object a, Object b) {
+        if (INFO >= level) write(INFO, template, 2, false, 0, 0, 0, a, b, null);
+    }
+
+    public static void warn(String template) {
+        if (WARN >= level) write(WARN, template, 0, true, 0, 0, 0, null, null, null);
+    }
+
+    public static void warn(String template, long a) {
+        if (WARN >= level) write(WARN, template, 1, true, a, 0, 0, null, null, null);
+    }
+
+    public static void warn(String template, Object a) {
+        if (WARN >= level) write(WARN, template, 1, false, 0, 0, 0, a, null, null);
+    }
+
+    public static void warn(String template, Object a, Object b) {
+        if (WARN >= level) write(WARN, template, 2, false, 0, 0, 0, a, b, null);
+    }
+
+    public static void error(String template) {
+        if (ERROR >= level) write(ERROR, template, 0, true, 0, 0, 0, null, null, null);
+    }
+
+    public static void error(String template, Object a) {
+        if (ERROR >= level) write(ERROR, template, 1, false, 0, 0, 0, a, null, null);
+    }
+
+    public static void error(String template, Object a, Object b) {
+        if (ERROR >= level) write(ERROR, template, 2, false, 0, 0, 0, a, b, null);
+    }
+
+
+    // Claims a slot in the ring and fills it. Several threads can write at the same time
+    private static void write(int l, String template, int argCount, boolean numeric,
+                              long n0, long n1, long n2, Object o0, Object o1, Object o2) {
+
+        long seq;
+        do {
+            seq = claimed.get();
+            // Full: drop the entry rather than making the caller wait
+            if (seq - consumed >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(seq, seq + 1));
+
+        Entry e = ring[(int) (seq & MASK)];
+        e.level = l;
+        e.template = template;
+        e.argCount = argCount;
+        e.numeric = numeric;
+        e.n0 = n0;
+        e.n1 = n1;
+        e.n2 = n2;
+        e.o0 = o0;
+        e.o1 = o1;
+        e.o2 = o2;
+        e.thread = Thread.currentThread();
+        // Publish
+        e.sequence = seq;
+    }
+
+
+    // -+- Drain thread -+-
+
+    private static void drainLoop() {
+        while (true) {
+            if (!drain()) LockSupport.parkNanos(2_000_000);
+        }
+    }
+
+    // Prints every published entry. Returns false if there was nothing to print
+    private static synchronized boolean drain() {
+        boolean any = false;
+        StringBuilder sb = new StringBuilder(128);
+        while (true) {
+            long seq = consumed;
+            Entry e = ring[(int) (seq & MASK)];
+            if (e.sequence != seq) break;
+
+            sb.setLength(0);
+            format(sb, e);
+            // Everything read from the slot is read before it is given back: a producer may refill it
+            // as soon as consumed moves on
+            PrintStream stream = e.level >= WARN ? err : out;
+            // Release the references before giving the slot back
+            e.o0 = null;
+            e.o1 = null;
+            e.o2 = null;
+            e.template = null;
+            e.thread = null;
+            consumed = seq + 1;
+
+            stream.println(sb);
+            any = true;
+        }
+        return any;
+    }
+
+    private static void format(StringBuilder sb, Entry e) {
+        sb.append(LEVEL_NAMES[e.level]).append(" [").append(e.thread.getName()).append("] ");
+        String t = e.template;
+        int arg = 0;
+        int from = 0;
+        int at;
+        while (arg < e.argCount && (at = t.indexOf("{}", from)) >= 0) {
+            sb.append(t, from, at);
+            if (e.numeric) sb.append(arg == 0 ? e.n0 : arg == 1 ? e.n1 : e.n2);
+            else sb.append(arg == 0 ? e.o0 : arg == 1 ? e.o1 : e.o2);
+            arg++;
+            from = at + 2;
+        }
+        sb.append(t, from, t.length());
+    }
+}
@@ -1,5 +1,6 @@
 package app.ui;
 
+import app.config.ConfigChange;
 import app.config.TweakerConfig;
 import javafx.collections.FXCollections;
 import javafx.geometry.Pos;
@@ -1023,6 +1024,26 @@ public class EditorPane {
     }
 
 
+    // Reloads the values of the pane that is open when its control changed under it (a file load,
+    // a propagation, an undo...). Setting the same values again through the listeners does not change
+    // the configuration
+    private void refresh(ConfigChange change) {
+        if (encoderBox.isVisible() && change.isChanged(ConfigChange.ENCODERS, encSelected)) {
+            configEncoderBox(encSelected - 1);
+        } else if (padBox.isVisible() && change.isChanged(ConfigChange.PADS, padSelected)) {
+            configPadBox(padSelected);
+        } else if (potentiometerBox.isVisible() && change.isChanged(ConfigChange.POTENTIOMETERS, potSelected)) {
+            configPotentiometerBox(potSelected);
+        } else if (buttonBox.isVisible() && (change.isChanged(ConfigChange.BUTTONS, butSelected)
+                || change.isChanged(ConfigChange.BUT_LEDS, butSelected)
+                || change.isChanged(ConfigChange.NAV_LEDS, butSelected - 38))) {
+            configButtonBox(butSelected);
+        } else if (bigEncoderBox.isVisible() && change.isChanged(ConfigChange.ENCODERS, 0)) {
+            configBigEncoderBox();
+        }
+    }
+
+
     // Create all the elements
     public EditorPane(TweakerConfig c) {
 
@@ -1062,6 +1083,8 @@ public class EditorPane {
 
         pane = new VBox(startBox, encoderBox, padBox, potentiometerBox, buttonBox, bigEncoderBox);
         pane.setAlignment(Pos.CENTER);
+
+        config.addChangeListener(this::refresh);
     }
 
 
@@ -0,0 +1,153 @@
+package app.ui;
+
+import app.com.MidiInput;
+import app.config.MappingIndex;
+import app.config.TweakerConfig;
+import app.log.Log;
+import javafx.application.Platform;
+
+import java.util.function.IntConsumer;
+
+
+// MIDI learn: the next note or CC that arrives is assigned to the target control (its channel and
+// number, and for buttons whether it is a note or a CC), then the target moves on to the next control
+// of the same section (grid buttons, control buttons, encoders, pads...), so a whole grid can be
+// learned by playing its notes one after the other.
+//
+// The input is read by a thread of its own, waiting on a cursor of the MidiInput ring, so a message is
+// picked up as soon as it arrives whatever the FX thread is doing. Only the assignment runs on the FX
+// thread, through the setters of TweakerConfig, like an edit in the editor. Targets are numbered like
+// the owners of MappingIndex.
+public class MidiLearn {
+
+    // How often the thread checks whether it has been stopped
+    private static final long POLL_NANOS = 100_000_000;
+
+    private final TweakerConfig config;
+    private final MidiInput input;
+    // Called on the FX thread with the new target after every assignment, or -1 when the section is done
+    private final IntConsumer onTarget;
+
+    // Written on the FX thread, read by the learning thread
+    private volatile int target;
+    private volatile boolean armed;
+    private Thread thread;
+    // Last message assigned (status, data1), ignored afterwards so a fader that keeps sending, or a
+    // note that is played twice, is not assigned to the next control too. Learning thread only
+    private int last;
+
+
+    public MidiLearn(TweakerConfig config, MidiInput input, IntConsumer onTarget) {
+        if (config == null || input == null) throw new IllegalArgumentException("config and input can not be null");
+        this.config = config;
+        this.input = input;
+        this.onTarget = onTarget;
+        target = -1;
+        armed = false;
+        thread = null;
+    }
+
+
+    // Starts learning into a control, or moves the learning to it if it had already started
+    public void start(int owner) {
+        if (owner < 0 || owner >= MappingIndex.OWNERS) throw new IllegalArgumentException("Invalid control: " + owner);
+        target = owner;
+        armed = true;
+        if (thread != null) return;
+
+        MidiInput.Cursor cursor = input.newCursor();
+        last = -1;
+        thread = new Thread(() -> listen(cursor), "midi-learn");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        target = -1;
+        armed = false;
+        if (thread == null) return;
+        thread.interrupt();
+        thread = null;
+    }
+
+    public boolean isLearning() {
+        return thread != null;
+    }
+
+    // Control the next message goes to, or -1
+    public int getTarget() {
+        return target;
+    }
+
+
+    private void listen(MidiInput.Cursor cursor) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!cursor.await(POLL_NANOS)) continue;
+                int status = cursor.getStatus();
+                int command = status & 0xF0;
+                // Only notes played and CCs
+                if (command != 0xB0 && (command != 0x90 || cursor.getData2() == 0)) continue;
+                int message = status | cursor.getData1() << 8;
+                if (!armed || message == last) continue;
+
+                armed = false;
+                last = message;
+                int owner = target;
+                Platform.runLater(() -> assign(owner, command == 0x90, (status & 0x0F) + 1, message >> 8));
+            }
+        } finally {
+            input.removeCursor(cursor);
+        }
+    }
+
+    // FX thread
+    private void assign(int owner, boolean note, int channel, int number) {
+        // Stopped, or moved to another control, since the message arrived
+        if (owner != target) return;
+
+        int id = MappingIndex.idOf(owner);
+        byte c = (byte) channel;
+        byte n = (byte) number;
+        switch (MappingIndex.kindOf(owner)) {
+            case MappingIndex.ENCODER -> {
+                config.encSetChannel(id, c);
+                config.encSetMapping(id, n);
+            }
+            case MappingIndex.POTENTIOMETER -> {
+                config.potSetChannel(id, c);
+                config.potSetMapping(id, n);
+            }
+            case MappingIndex.BUTTON -> {
+                config.butSetOutputType(id, note);
+                config.butSetChannel(id, c);
+                config.butSetMapping(id, n);
+            }
+            case MappingIndex.PAD_HIT -> {
+                config.padSetHitChannel(id, c);
+                config.padSetHitMapping(id, n);
+            }
+            default -> {
+                config.padSetRetriggerChannel(id, c);
+                config.padSetRetriggerMapping(id, n);
+            }
+        }
+        Log.info("MIDI learn: {} is {}", MappingIndex.nameOf(owner), (note ? "note " : "CC ") + number + " on channel " + channel);
+
+        int next = nextOf(owner);
+        target = next;
+        armed = next >= 0;
+        if (onTarget != null) onTarget.accept(next);
+    }
+
+    // Next control of the same section, or -1 after the last one
+    static int nextOf(int owner) {
+        int kind = MappingIndex.kindOf(owner);
+        int id = MappingIndex.idOf(owner);
+        if (owner + 1 >= MappingIndex.OWNERS || MappingIndex.kindOf(owner + 1) != kind) return -1;
+        if (kind == MappingIndex.ENCODER && id == 0) return -1;
+        // Grid, control buttons and navigation buttons; the ones after those are not on the model
+        if (kind == MappingIndex.BUTTON && (id == 31 || id == 37 || id >= 42)) return -1;
+        return owner + 1;
+    }
+}
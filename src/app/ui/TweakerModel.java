@@ -1,6 +1,12 @@
 package app.ui;
 
+import app.com.MidiInput;
+import app.config.MappingIndex;
 import app.config.TweakerConfig;
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
 import javafx.collections.ObservableList;
 import javafx.event.EventHandler;
 import javafx.geometry.Pos;
@@ -15,6 +21,8 @@ import javafx.scene.shape.Rectangle;
 import javafx.scene.shape.Shape;
 import javafx.scene.shape.StrokeType;
 
+import java.util.concurrent.atomic.AtomicBoolean;
+
 
 public class TweakerModel {
 
@@ -22,6 +30,13 @@ public class TweakerModel {
     private static final Color UNSELECTED = Color.TRANSPARENT;
     private static final Color HOVER = Color.LIGHTGRAY;
     private static final Color SELECTED = Color.LIGHTBLUE;
+    // Border of a control the device just sent something for
+    private static final Color PLAYED = Color.ORANGE;
+    private static final Color BORDER = Color.GREY;
+    // How long a control stays highlighted after its last message
+    private static final long PLAYED_NANOS = 150_000_000;
+    // How often the highlighting thread checks whether it has been stopped
+    private static final long WATCH_NANOS = 100_000_000;
 
 
     // Individual controls
@@ -37,6 +52,24 @@ public class TweakerModel {
     // Model
     private final HBox model;
 
+    // Shape of every owner of the mapping index (see MappingIndex), null for the ones not in the model
+    private final Shape[] shapes;
+    // Control selected last, as an owner of the mapping index (the hit for pads), or -1
+    private final ReadOnlyIntegerWrapper selectedOwner = new ReadOnlyIntegerWrapper(this, "selectedOwner", -1);
+    private EditorPane editorPane;
+
+    // Highlighting of the controls played on the device (see startHighlighting): when every owner
+    // last sent something
+    private long[] playedAt;
+    private boolean[] played;
+    private AnimationTimer highlighter;
+    private boolean highlighterRunning;
+    private MidiInput.Cursor cursor;
+    private MidiInput input;
+    // Waits for input while the timer is stopped, and whether it has a wake-up waiting on the FX thread
+    private Thread watcher;
+    private final AtomicBoolean wakePosted = new AtomicBoolean();
+
     // Events
     EventHandler<MouseEvent> greyOnMouseEnter;
     EventHandler<MouseEvent> transparentOnMouseExit;
@@ -46,7 +79,7 @@ public class TweakerModel {
     // Auxiliary function used in the constructor to set the fill color
     private void setColorAndBorders(Shape shape) {
         shape.setFill(UNSELECTED);
-        shape.setStroke(Color.GREY);
+        shape.setStroke(BORDER);
         shape.setStrokeWidth(2);
         shape.setStrokeType(StrokeType.INSIDE);
     }
@@ -235,6 +268,9 @@ public class TweakerModel {
         model = new HBox(leftColumn, centerColumn, rightColumn);
         model.setAlignment(Pos.CENTER);
         model.setSpacing(16);
+
+        shapes = new Shape[MappingIndex.OWNERS];
+        for (int i = 0; i < MappingIndex.OWNERS; i++) shapes[i] = shapeOf(i);
     }
 
 
@@ -257,75 +293,101 @@ public class TweakerModel {
         };
 
         // On mouse click, hide all left panels and make one visible
-        changeVisiblePanel = e -> {
+        changeVisiblePanel = e -> select((Shape) e.getSource());
+    }
 
-            // Get the calling object and change its color
-            Shape shape = (Shape) e.getSource();
-            System.out.println("changeVisiblePanel: Clicked on " + shape.getId());
-            // Set all controls to transparent
-            resetColorForAllControls();
-            // And then set the
-            shape.setFill(SELECTED);
-
-            // Hide all editor pages
-            for (Node n : editorPane.getPane().getChildren()) n.setVisible(false);
-
-            // Depending on the ID of the caller, we will open a panel or another
-            //  0 -> start (hidden after clicking any control)
-            //  1 -> encoder
-            //  2 -> pad
-            //  3 -> potentiometers
-            //  4 -> button, gridButton
-            //  5 -> bigEncoder
-
-            // Get the number of the control, without the name
-            int controlId = Integer.parseInt(shape.getId().substring(shape.getId().length() - 2));
-            // Use the name of the control to switch between panes
-            ObservableList<Node> panes = editorPane.getPane().getChildren();
-            switch (shape.getId().substring(0, shape.getId().length() - 2)) {
-                case "encoder":
-                    editorPane.configEncoderBox(controlId);
-                    panes.get(1).setVisible(true);
-                    break;
-                case "pad":
-                    editorPane.configPadBox(controlId);
-                    panes.get(2).setVisible(true);
-                    break;
-                case "fader":
-                    editorPane.configPotentiometerBox(controlId + 2);
-                    panes.get(3).setVisible(true);
-                    break;
-                case "crossfader":
-                    editorPane.configPotentiometerBox(4);
-                    panes.get(3).setVisible(true);
-                    break;
-                case "knob":
-                    editorPane.configPotentiometerBox(controlId);
-                    panes.get(3).setVisible(true);
-                    break;
-                case "button":
-                    editorPane.configButtonBox(controlId + 32);
-                    panes.get(4).setVisible(true);
-                    break;
-                case "navigation":
-                    editorPane.configButtonBox(controlId + 38);
-                    panes.get(4).setVisible(true);
-                    break;
-                case "gridButton":
-                    editorPane.configButtonBox(controlId);
-                    panes.get(4).setVisible(true);
-                    break;
-                case "bigEncoder":
-                    editorPane.configBigEncoderBox();
-                    panes.get(5).setVisible(true);
-                    break;
+
+    // Selects a control as if it had been clicked
+    public void selectOwner(int owner) {
+        if (owner < 0 || owner >= shapes.length || shapes[owner] == null) return;
+        select(shapes[owner]);
+    }
+
+    // Control selected last, as an owner of the mapping index (the hit for pads), or -1 if none
+    public int getSelectedOwner() {
+        return selectedOwner.get();
+    }
+
+    public ReadOnlyIntegerProperty selectedOwnerProperty() {
+        return selectedOwner.getReadOnlyProperty();
+    }
+
+    private void select(Shape shape) {
+
+        // Change the color of the control
+        System.out.println("changeVisiblePanel: Clicked on " + shape.getId());
+        // Set all controls to transparent
+        resetColorForAllControls();
+        // And then set the
+        shape.setFill(SELECTED);
+        // Remember which one it is (pads share their shape between the hit and the retrigger; the hit
+        // comes first)
+        for (int i = 0; i < shapes.length; i++) {
+            if (shapes[i] == shape) {
+                selectedOwner.set(i);
+                break;
             }
-        };
+        }
+
+        // Hide all editor pages
+        for (Node n : editorPane.getPane().getChildren()) n.setVisible(false);
+
+        // Depending on the ID of the caller, we will open a panel or another
+        //  0 -> start (hidden after clicking any control)
+        //  1 -> encoder
+        //  2 -> pad
+        //  3 -> potentiometers
+        //  4 -> button, gridButton
+        //  5 -> bigEncoder
+
+        // Get the number of the control, without the name
+        int controlId = Integer.parseInt(shape.getId().substring(shape.getId().length() - 2));
+        // Use the name of the control to switch between panes
+        ObservableList<Node> panes = editorPane.getPane().getChildren();
+        switch (shape.getId().substring(0, shape.getId().length() - 2)) {
+            case "encoder":
+                editorPane.configEncoderBox(controlId);
+                panes.get(1).setVisible(true);
+                break;
+            case "pad":
+                editorPane.configPadBox(controlId);
+                panes.get(2).setVisible(true);
+                break;
+            case "fader":
+                editorPane.configPotentiometerBox(controlId + 2);
+                panes.get(3).setVisible(true);
+                break;
+            case "crossfader":
+                editorPane.configPotentiometerBox(4);
+                panes.get(3).setVisible(true);
+                break;
+            case "knob":
+                editorPane.configPotentiometerBox(controlId);
+                panes.get(3).setVisible(true);
+                break;
+            case "button":
+                editorPane.configButtonBox(controlId + 32);
+                panes.get(4).setVisible(true);
+                break;
+            case "navigation":
+                editorPane.configButtonBox(controlId + 38);
+                panes.get(4).setVisible(true);
+                break;
+            case "gridButton":
+                editorPane.configButtonBox(controlId);
+                panes.get(4).setVisible(true);
+                break;
+            case "bigEncoder":
+                editorPane.configBigEncoderBox();
+                panes.get(5).setVisible(true);
+                break;
+        }
     }
 
 
     public void setHandlers(TweakerConfig config, EditorPane editorPane) {
 
+        this.editorPane = editorPane;
         createHandlers(config, editorPane);
 
         //Registering the event filter
@@ -376,6 +438,119 @@ public class TweakerModel {
     }
 
 
+    // Highlights the border of the controls as the device sends their messages. The input is read on
+    // the FX thread once per pulse, so a burst of messages (hammering the pads) costs one pass over
+    // what arrived, never a task per message. The index tells which control each message comes from.
+    //
+    // The timer only runs while there is something to do: it stops once everything was read and no
+    // control is lit, so an idle editor does not get a pulse every frame. A thread of its own waits for
+    // the next message meanwhile, and starts it again through a single runLater
+    public void startHighlighting(MidiInput input, MappingIndex index) {
+        stopHighlighting();
+
+        playedAt = new long[MappingIndex.OWNERS];
+        played = new boolean[MappingIndex.OWNERS];
+        this.input = input;
+        cursor = input.newCursor();
+
+        highlighter = new AnimationTimer() {
+            @Override
+            public void handle(long now) {
+                // Only the last CAPACITY messages are still in the ring, so this is bounded
+                while (cursor.next()) {
+                    int status = cursor.getStatus();
+                    // Releasing a note is not playing it
+                    if ((status & 0xF0) == 0x80 || ((status & 0xF0) == 0x90 && cursor.getData2() == 0)) continue;
+                    int owner = index.ownerOf(status, cursor.getData1());
+                    if (owner < 0 || shapes[owner] == null) continue;
+                    playedAt[owner] = now;
+                    if (!played[owner]) {
+                        played[owner] = true;
+                        shapes[owner].setStroke(PLAYED);
+                    }
+                }
+                boolean anyLit = false;
+                for (int i = 0; i < played.length; i++) {
+                    if (played[i] && now - playedAt[i] > PLAYED_NANOS && !lit(i, now)) {
+                        played[i] = false;
+                        shapes[i].setStroke(BORDER);
+                    }
+                    anyLit |= played[i];
+                }
+                // Anything that arrives after this is seen by the watcher
+                if (!anyLit && cursor.getBacklog() == 0) {
+                    stop();
+                    highlighterRunning = false;
+                }
+            }
+        };
+        highlighterRunning = true;
+        highlighter.start();
+
+        MidiInput.Cursor doorbell = input.newCursor();
+        watcher = new Thread(() -> watch(input, doorbell), "model-highlight");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Highlighting thread: only tells the FX thread that something arrived, the timer reads it
+    private void watch(MidiInput input, MidiInput.Cursor doorbell) {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                if (!doorbell.await(WATCH_NANOS)) continue;
+                doorbell.skipAll();
+                if (wakePosted.compareAndSet(false, true)) Platform.runLater(this::wake);
+            }
+        } finally {
+            input.removeCursor(doorbell);
+        }
+    }
+
+    // FX thread
+    private void wake() {
+        wakePosted.set(false);
+        if (highlighter == null || highlighterRunning) return;
+        highlighterRunning = true;
+        highlighter.start();
+    }
+
+    // Whether another owner with the same shape (a pad hit and its retrigger) is still lit
+    private boolean lit(int owner, long now) {
+        for (int i = 0; i < shapes.length; i++) {
+            if (i != owner && shapes[i] == shapes[owner] && played[i] && now - playedAt[i] <= PLAYED_NANOS) return true;
+        }
+        return false;
+    }
+
+    public void stopHighlighting() {
+        if (highlighter == null) return;
+        watcher.interrupt();
+        highlighter.stop();
+        input.removeCursor(cursor);
+        for (int i = 0; i < played.length; i++) if (played[i]) shapes[i].setStroke(BORDER);
+        highlighter = null;
+        highlighterRunning = false;
+        watcher = null;
+        cursor = null;
+        input = null;
+    }
+
+    // Shape of a control of the mapping index (see MappingIndex), or null if it is not in the model
+    private Shape shapeOf(int owner) {
+        int kind = MappingIndex.kindOf(owner);
+        int id = MappingIndex.idOf(owner);
+        if (kind == MappingIndex.ENCODER) return id == 0 ? bigEncoder : encoder[id - 1];
+        if (kind == MappingIndex.POTENTIOMETER) return id == 4 ? crossfader : id > 1 ? fader[id - 2] : knob[id];
+        if (kind == MappingIndex.BUTTON) {
+            if (id < 32) return gridButton[id];
+            if (id < 38) return button[id - 32];
+            if (id < 43) return navigation[id - 38];
+            return null;
+        }
+        return pad[id];
+    }
+
+
     public HBox getModel() {
         return model;
     }